@@ -14,9 +14,17 @@ public class AppConfig {
     private boolean isDurationOfDataRecordAdjustable = true;
     private String patientIdentification = "Default patient";
     private String recordingIdentification = "Default record";
-    private boolean[] filter50HzMask;
+    private boolean[] filter50HzMask; // power line notch
+    private double powerLineFrequency = 50; // Hz
+    private int powerLineHarmonics = 1; // number of notched harmonics (1 - only powerLineFrequency)
+    // cutoff frequencies (Hz) of the channels filters. 0 - filter is disabled
+    private double[] channelsDcBlockFrequencies;
+    private double[] channelsHighPassFrequencies;
+    private double[] channelsLowPassFrequencies;
     private ExtraDivider[] channelsExtraDividers;
     private ExtraDivider accelerometerExtraDivider = ExtraDivider.D1;
+    // extra dividers with anti-aliasing FIR filter instead of averaging (delay the divided signals)
+    private boolean isAntiAliasingEnabled = false;
 
     private boolean isLabStreamingEnabled = false;
     private String comportName;
@@ -35,6 +43,9 @@ public class AppConfig {
         for (int i = 0; i < channelsExtraDividers.length; i++) {
             channelsExtraDividers[i] = ExtraDivider.D1;
         }
+        channelsDcBlockFrequencies = new double[RecorderType.getMaxChannelsCount()];
+        channelsHighPassFrequencies = new double[RecorderType.getMaxChannelsCount()];
+        channelsLowPassFrequencies = new double[RecorderType.getMaxChannelsCount()];
     }
 
     public AppConfig(AppConfig configToCopy) {
@@ -46,10 +57,14 @@ public class AppConfig {
         comportName = configToCopy.comportName;
         dirToSave = configToCopy.dirToSave;
         fileName = configToCopy.fileName;
-        for (int i = 0; i < filter50HzMask.length; i++) {
-            filter50HzMask[i] = configToCopy.filter50HzMask[i];
-        }
+        filter50HzMask = configToCopy.filter50HzMask.clone();
+        powerLineFrequency = configToCopy.powerLineFrequency;
+        powerLineHarmonics = configToCopy.powerLineHarmonics;
+        channelsDcBlockFrequencies = configToCopy.channelsDcBlockFrequencies.clone();
+        channelsHighPassFrequencies = configToCopy.channelsHighPassFrequencies.clone();
+        channelsLowPassFrequencies = configToCopy.channelsLowPassFrequencies.clone();
         accelerometerExtraDivider = configToCopy.accelerometerExtraDivider;
+        isAntiAliasingEnabled = configToCopy.isAntiAliasingEnabled;
         channelsExtraDividers = new ExtraDivider[configToCopy.channelsExtraDividers.length];
         for (int i = 0; i < channelsExtraDividers.length; i++) {
             channelsExtraDividers[i] = configToCopy.channelsExtraDividers[i];
@@ -98,6 +113,62 @@ public class AppConfig {
          filter50HzMask[channelNumber] = is50HzFilterEnabled;
     }
 
+    public double getPowerLineFrequency() {
+        return powerLineFrequency;
+    }
+
+    /**
+     * @param powerLineFrequency frequency (50 or 60 Hz) removed by the power line filter
+     */
+    public void setPowerLineFrequency(double powerLineFrequency) {
+        this.powerLineFrequency = powerLineFrequency;
+    }
+
+    public int getPowerLineHarmonics() {
+        return powerLineHarmonics;
+    }
+
+    /**
+     * @param powerLineHarmonics number of the power line harmonics removed by the power line filter
+     *                           (1 - only power line frequency, 2 - also its second harmonic and so on)
+     */
+    public void setPowerLineHarmonics(int powerLineHarmonics) {
+        this.powerLineHarmonics = powerLineHarmonics;
+    }
+
+    /**
+     * @return cutoff frequency of the channel DC blocking filter or 0 if the filter is disabled
+     */
+    public double getChannelDcBlockFrequency(int channelNumber) {
+        return channelsDcBlockFrequencies[channelNumber];
+    }
+
+    public void setChannelDcBlockFrequency(int channelNumber, double cutoffFrequency) {
+        channelsDcBlockFrequencies[channelNumber] = cutoffFrequency;
+    }
+
+    /**
+     * @return cutoff frequency of the channel high pass filter or 0 if the filter is disabled
+     */
+    public double getChannelHighPassFrequency(int channelNumber) {
+        return channelsHighPassFrequencies[channelNumber];
+    }
+
+    public void setChannelHighPassFrequency(int channelNumber, double cutoffFrequency) {
+        channelsHighPassFrequencies[channelNumber] = cutoffFrequency;
+    }
+
+    /**
+     * @return cutoff frequency of the channel low pass filter or 0 if the filter is disabled
+     */
+    public double getChannelLowPassFrequency(int channelNumber) {
+        return channelsLowPassFrequencies[channelNumber];
+    }
+
+    public void setChannelLowPassFrequency(int channelNumber, double cutoffFrequency) {
+        channelsLowPassFrequencies[channelNumber] = cutoffFrequency;
+    }
+
     public ExtraDivider getChannelExtraDivider(int channelNumber) {
         return channelsExtraDividers[channelNumber];
     }
@@ -114,6 +185,20 @@ public class AppConfig {
         this.accelerometerExtraDivider = accelerometerExtraDivider;
     }
 
+    /**
+     * If true the extra dividers reduce the signals frequencies with anti-aliasing FIR filter
+     * (SignalFrequencyReducer.addPolyphaseDivider) instead of averaging samples.
+     * The filter delays the divided signals relative to the other ones
+     * by FirDecimator.TAPS_PER_PHASE / 2 resultant samples (by 160 ms for 500Hz / 10)
+     */
+    public boolean isAntiAliasingEnabled() {
+        return isAntiAliasingEnabled;
+    }
+
+    public void setAntiAliasingEnabled(boolean antiAliasingEnabled) {
+        isAntiAliasingEnabled = antiAliasingEnabled;
+    }
+
     public boolean isDurationOfDataRecordAdjustable() {
         return isDurationOfDataRecordAdjustable;
     }
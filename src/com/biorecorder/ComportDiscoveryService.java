@@ -0,0 +1,251 @@
+package com.biorecorder;
+
+import com.biorecorder.comport.ComportFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the cached list of available comports and notifies the listener
+ * only when the list really changes.
+ * <p>
+ * On Linux the device directory (/dev by default) is watched by WatchService
+ * so nothing is done while no devices are plugged or unplugged
+ * and ports are never opened (unlike {@link ComportFactory#getAvailableComportNames()}
+ * which on Linux opens and closes every port under the global lock).
+ * <p>
+ * If the directory can not be watched (other OS or no such directory)
+ * the service falls back to polling ComportFactory.getAvailableComportNames()
+ * with the given period.
+ */
+public class ComportDiscoveryService {
+    private static final Log log = LogFactory.getLog(ComportDiscoveryService.class);
+    public static final String DEFAULT_DEVICE_DIR = "/dev";
+    private static final int DEFAULT_POLLING_PERIOD_MS = 3000;
+    // udev creates devices nodes one by one so we wait a bit to get them all at once
+    private static final int SETTLING_TIME_MS = 200;
+    // the same names as jSSC finds on Linux
+    private static final Pattern SERIAL_PORT_PATTERN = Pattern.compile("(ttyS|ttyUSB|ttyACM|ttyAMA|rfcomm|ttyO)[0-9]{1,3}");
+    // kernel creates ttyS0..ttyS31 nodes even if there is no such hardware
+    private static final String PLACEHOLDER_PORT_PREFIX = "ttyS";
+    private static final String SYS_TTY_DIR = "/sys/class/tty";
+    // port type 0 (PORT_UNKNOWN) - no uart behind the node
+    private static final String UNKNOWN_PORT_TYPE = "0";
+
+    private final File deviceDir;
+    private final boolean isWatching;
+    private final int pollingPeriodMs;
+    // null until the first discovery
+    private volatile String[] availableComports;
+    private volatile boolean isNotificationForced;
+    private volatile AvailableComportsListener listener = new NullAvailableComportsListener();
+    private ScheduledExecutorService executor;
+
+    /**
+     * Watches /dev on Linux and polls every 3 seconds on other OS
+     */
+    public ComportDiscoveryService() {
+        this(System.getProperty("os.name").toLowerCase().contains("linux") ? new File(DEFAULT_DEVICE_DIR) : null,
+                DEFAULT_POLLING_PERIOD_MS);
+    }
+
+    /**
+     * @param deviceDir       directory to watch for serial devices. If null or
+     *                        not a directory comports will be polled
+     * @param pollingPeriodMs polling period if the directory can not be watched
+     */
+    public ComportDiscoveryService(File deviceDir, int pollingPeriodMs) {
+        this.deviceDir = deviceDir;
+        this.pollingPeriodMs = pollingPeriodMs;
+        isWatching = deviceDir != null && deviceDir.isDirectory();
+    }
+
+    /**
+     * Starts discovery (if it was not started). The listener is notified with the current list
+     * of comports as soon as it is found
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        ThreadFactory namedThreadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "«Comport discovery» thread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        executor = Executors.newSingleThreadScheduledExecutor(namedThreadFactory);
+        // after restart the listener gets the list even if it was not changed
+        isNotificationForced = true;
+        if (isWatching) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    watch();
+                }
+            });
+        } else {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    update(ComportFactory.getAvailableComportNames());
+                }
+            }, 0, pollingPeriodMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public boolean isWatching() {
+        return isWatching;
+    }
+
+    /**
+     * @return cached list of available comports. If comports were not discovered yet
+     * (the service was not started) finds them directly
+     */
+    public String[] getAvailableComportNames() {
+        String[] comports = availableComports;
+        if (comports == null) {
+            comports = isWatching ? listDeviceDir() : ComportFactory.getAvailableComportNames();
+            Arrays.sort(comports);
+        }
+        return comports.clone();
+    }
+
+    /**
+     * ComportDiscoveryService permits to add only ONE AvailableComportsListener!
+     * So if a new listener added the old one are automatically removed
+     */
+    public void addListener(AvailableComportsListener l) {
+        if (l != null) {
+            listener = l;
+        }
+    }
+
+    public void removeListener() {
+        listener = new NullAvailableComportsListener();
+    }
+
+    private void watch() {
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            deviceDir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.OVERFLOW);
+            update(listDeviceDir());
+            while (!Thread.currentThread().isInterrupted()) {
+                // block until something is changed in the directory
+                WatchKey key = watchService.take();
+                boolean isSerialPortChanged = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+                            SERIAL_PORT_PATTERN.matcher(event.context().toString()).matches()) {
+                        isSerialPortChanged = true;
+                    }
+                }
+                if (isSerialPortChanged) {
+                    Thread.sleep(SETTLING_TIME_MS);
+                    // events that came during settling are covered by the directory listing
+                    key.pollEvents();
+                }
+                if (!key.reset()) {
+                    log.error("Directory " + deviceDir + " can not be watched any more");
+                    break;
+                }
+                if (isSerialPortChanged) {
+                    update(listDeviceDir());
+                }
+            }
+        } catch (InterruptedException e) {
+            // service was stopped. Do nothing
+        } catch (IOException e) {
+            log.error("Failed to watch directory " + deviceDir, e);
+        } catch (ClosedWatchServiceException e) {
+            // service was stopped. Do nothing
+        } finally {
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    // do nothing
+                }
+            }
+        }
+    }
+
+    private String[] listDeviceDir() {
+        String[] names = deviceDir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return SERIAL_PORT_PATTERN.matcher(name).matches() && isRealPort(name);
+            }
+        });
+        if (names == null) {
+            return new String[0];
+        }
+        String[] comports = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            comports[i] = new File(deviceDir, names[i]).getPath();
+        }
+        return comports;
+    }
+
+    /**
+     * ttyS nodes exist for all possible legacy uarts. The port is real if sysfs
+     * shows the device behind it and its uart type is known.
+     * Without sysfs all ports are taken as real
+     */
+    private static boolean isRealPort(String name) {
+        if (!name.startsWith(PLACEHOLDER_PORT_PREFIX)) {
+            return true;
+        }
+        File sysTtyDir = new File(SYS_TTY_DIR);
+        if (!sysTtyDir.isDirectory()) {
+            return true;
+        }
+        File portDir = new File(sysTtyDir, name);
+        if (!new File(portDir, "device").exists()) {
+            return false;
+        }
+        File typeFile = new File(portDir, "type");
+        if (typeFile.exists()) {
+            try {
+                String type = new String(Files.readAllBytes(typeFile.toPath())).trim();
+                return !UNKNOWN_PORT_TYPE.equals(type);
+            } catch (IOException e) {
+                // the type can not be read. Consider the port real
+            }
+        }
+        return true;
+    }
+
+    private void update(String[] comports) {
+        Arrays.sort(comports);
+        if (isNotificationForced || !Arrays.equals(comports, availableComports)) {
+            isNotificationForced = false;
+            availableComports = comports;
+            listener.onAvailableComportsChanged(comports.clone());
+        }
+    }
+
+    class NullAvailableComportsListener implements AvailableComportsListener {
+        @Override
+        public void onAvailableComportsChanged(String[] availableComports) {
+            // do nothing
+        }
+    }
+}
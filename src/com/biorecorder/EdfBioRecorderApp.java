@@ -1,6 +1,7 @@
 package com.biorecorder;
 
-import com.biorecorder.digitalfilter.MovingAverageFilter;
+import com.biorecorder.digitalfilter.BiquadFilter;
+import com.biorecorder.digitalfilter.IirFilterDesigner;
 import com.biorecorder.multisignal.recordformat.DataRecordStream;
 import com.biorecorder.multisignal.recordformat.DataHeader;
 import com.biorecorder.recorder.*;
@@ -12,6 +13,7 @@ import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 
 /**
  * Created by galafit on 2/6/17.
@@ -22,8 +24,10 @@ public class EdfBioRecorderApp {
     private static final int NOTIFICATION_PERIOD_MS = 1000;
     private static final int NOTIFICATION_QUARTER_PERIOD_MS = NOTIFICATION_PERIOD_MS / 4;
     private static final int COMPORT_CONNECTION_PERIOD_MS = 2000;
-    private static final int AVAILABLE_COMPORTS_CHECKING_PERIOD_MS = 3000;
-    private static final int FUTURE_CHECKING_PERIOD_MS = 1000;
+    // records waiting for lab streaming (if the outlet can not keep up the oldest ones are dropped)
+    private static final int LSL_SINK_CAPACITY = 64;
+    // order of the channels Butterworth high and low pass filters
+    private static final int CHANNEL_FILTER_ORDER = 2;
 
     private final Timer timer = new Timer("EdfBioRecorderApp Timer");
 
@@ -36,17 +40,27 @@ public class EdfBioRecorderApp {
     private volatile Integer batteryLevel;
     private volatile String comportName;
     private volatile TimerTask connectionTask = new ConnectionTask();
-    private volatile TimerTask availableComportsTask = new AvailableComportsTask();
+    private final ComportDiscoveryService comportDiscoveryService = new ComportDiscoveryService();
     private volatile TimerTask notificationTask = new NotificationTask();
 
-    private volatile TimerTask startFutureHandlingTask;
+    private volatile StartFutureHandler startFutureHandler;
     private volatile boolean isLoffDetecting;
     private volatile long lastNotificationTime;
 
     private volatile LslStream lslStream;
     private volatile EdfStream edfStream;
+    // every stream is written in its own thread so file stalls
+    // do not block lab streaming and vice versa
+    private volatile AsyncRecordStream lslSink;
+    private volatile AsyncRecordStream edfSink;
 
     public EdfBioRecorderApp() {
+        comportDiscoveryService.addListener(new AvailableComportsListener() {
+            @Override
+            public void onAvailableComportsChanged(String[] availableComports) {
+                notifyAvailableComports(addSelectedComport(availableComports));
+            }
+        });
         restartAvailableComportsTask();
         restartNotificationTask();
      }
@@ -101,6 +115,18 @@ public class EdfBioRecorderApp {
                 notifyStateChange(new Message(Message.TYPE_LOW_BUTTERY));
                 stop1();
             }
+
+            public void handleDataStreamFailure(DataRecordStream stream, RuntimeException ex) {
+                if (stream == edfStream) {
+                    // the file can not be written: recording has no sense
+                    log.error(ex);
+                    stop();
+                    notifyStateChange(new Message(Message.TYPE_FAILED_WRITE_DATA));
+                } else {
+                    // other sinks (lab streaming) are just dropped, the file recording continues
+                    log.error("Data stream failed and was removed: " + stream, ex);
+                }
+            }
         });
 
         bioRecorder.addLeadOffListener(new LeadOffListener() {
@@ -179,7 +205,10 @@ public class EdfBioRecorderApp {
 
         lslStream = null;
         edfStream = null;
+        lslSink = null;
+        edfSink = null;
         bioRecorder.removeDataListener();
+        bioRecorder.removeDataStreams();
         // remove all previously added filters
         bioRecorder.removeChannelsFilters();
 
@@ -202,13 +231,7 @@ public class EdfBioRecorderApp {
                 // disable lead off detection
                 recorderConfig.setChannelLeadOffEnable(i, false);
 
-                if (appConfig.is50HzFilterEnabled(i)) {
-                    // Apply MovingAverage filter to the channel to reduce 50Hz noise
-                    int numberOfAveragingPoints = recorderConfig.getChannelSampleRate(i) / 50;
-                    if (numberOfAveragingPoints > 1) {
-                        bioRecorder.addChannelFilter(i, new MovingAverageFilter(numberOfAveragingPoints), "MovAvg:" + numberOfAveragingPoints);
-                    }
-                }
+                addChannelFilters(appConfig, recorderConfig, i);
             }
 
             // check if dir name is ok and directory exist
@@ -245,8 +268,10 @@ public class EdfBioRecorderApp {
                 }
                 try {
                     lslStream = new LslStream(numberOfAdsChannels, numberOfAccChannels);
-                    lslStream.setHeader(dataHeader);
-                    streams.add(lslStream);
+                    // old data are useless for online streaming
+                    lslSink = bioRecorder.addDataStream(lslStream, LSL_SINK_CAPACITY, RecordRingBuffer.OverflowPolicy.DROP_OLDEST);
+                    lslSink.setHeader(dataHeader);
+                    streams.add(lslSink);
                 } catch (IllegalArgumentException ex) {
                     log.info("LabStreaming failed to start", ex);
                     return new OperationResult(false, new Message(Message.TYPE_LAB_STREAMING_FAILED));
@@ -281,11 +306,14 @@ public class EdfBioRecorderApp {
             }
 
             try {
-                edfStream = new EdfStream(edfFile, appConfig.getNumberOfRecordsToJoin(), extraDividers, appConfig.isDurationOfDataRecordAdjustable());
+                edfStream = new EdfStream(edfFile, appConfig.getNumberOfRecordsToJoin(), extraDividers,
+                        appConfig.isAntiAliasingEnabled(), appConfig.isDurationOfDataRecordAdjustable());
                 dataHeader.setPatientIdentification(appConfig.getPatientIdentification());
                 dataHeader.setRecordingIdentification(appConfig.getRecordingIdentification());
-                edfStream.setHeader(dataHeader);
-                streams.add(edfStream);
+                // no records are lost if the file stalls
+                edfSink = bioRecorder.addDataStream(edfStream, AsyncRecordStream.DEFAULT_CAPACITY, RecordRingBuffer.OverflowPolicy.SPILL);
+                edfSink.setHeader(dataHeader);
+                streams.add(edfSink);
             } catch (FileNotFoundRuntimeException ex) {
                 log.error(ex);
                 return new OperationResult(false, new Message(Message.TYPE_FILE_NOT_ACCESSIBLE, edfFile.toString()));
@@ -293,73 +321,115 @@ public class EdfBioRecorderApp {
         }
 
 
-        bioRecorder.addDataListener(new BioRecorderDataHandler(streams));
-        Future startFuture = bioRecorder.startRecording(recorderConfig);
-        startFutureHandlingTask = new StartFutureHandlingTask(startFuture, recorderConfig.getDeviceType(), streams);
-        timer.schedule(startFutureHandlingTask, FUTURE_CHECKING_PERIOD_MS, FUTURE_CHECKING_PERIOD_MS);
+        bioRecorder.addDataListener(new BioRecorderDataHandler());
+        CompletableFuture<Void> startFuture = bioRecorder.startRecording(recorderConfig);
+        startFutureHandler = new StartFutureHandler(recorderConfig.getDeviceType(), streams);
+        // handled not in the ads thread that completes the future
+        startFuture.whenCompleteAsync(startFutureHandler);
         notifyStateChange(null);
         return new OperationResult(true);
     }
 
-    class BioRecorderDataHandler implements DataRecordListener {
-        private final List<DataRecordStream> streams;
+    /**
+     * Adds to the channel the filters enabled in the app config
+     * (as one cascade of biquads). Filters whose frequency is not
+     * less than the half of the channel sample rate are skipped
+     */
+    private void addChannelFilters(AppConfig appConfig, RecorderConfig recorderConfig, int channel) {
+        double sampleRate = recorderConfig.getChannelSampleRate(channel);
+        List<BiquadFilter> filters = new ArrayList<>();
+        StringBuilder filterName = new StringBuilder();
+        double dcBlockFrequency = appConfig.getChannelDcBlockFrequency(channel);
+        if (dcBlockFrequency > 0 && dcBlockFrequency < sampleRate / 2) {
+            filters.add(IirFilterDesigner.dcBlock(sampleRate, dcBlockFrequency));
+            filterName.append("DC:").append(frequencyToString(dcBlockFrequency)).append("Hz;");
+        }
+        double highPassFrequency = appConfig.getChannelHighPassFrequency(channel);
+        if (highPassFrequency > 0 && highPassFrequency < sampleRate / 2) {
+            filters.add(IirFilterDesigner.butterworthHighPass(sampleRate, highPassFrequency, CHANNEL_FILTER_ORDER));
+            filterName.append("HP:").append(frequencyToString(highPassFrequency)).append("Hz;");
+        }
+        double lowPassFrequency = appConfig.getChannelLowPassFrequency(channel);
+        if (lowPassFrequency > 0 && lowPassFrequency < sampleRate / 2) {
+            filters.add(IirFilterDesigner.butterworthLowPass(sampleRate, lowPassFrequency, CHANNEL_FILTER_ORDER));
+            filterName.append("LP:").append(frequencyToString(lowPassFrequency)).append("Hz;");
+        }
+        double powerLineFrequency = appConfig.getPowerLineFrequency();
+        if (appConfig.is50HzFilterEnabled(channel) && powerLineFrequency > 0 && powerLineFrequency < sampleRate / 2) {
+            filters.add(IirFilterDesigner.notch(sampleRate, powerLineFrequency,
+                    IirFilterDesigner.DEFAULT_NOTCH_Q, appConfig.getPowerLineHarmonics()));
+            filterName.append("N:").append(frequencyToString(powerLineFrequency)).append("Hz;");
+        }
+        if (!filters.isEmpty()) {
+            // remove last ";"
+            filterName.setLength(filterName.length() - 1);
+            BiquadFilter filter = BiquadFilter.cascade(filters.toArray(new BiquadFilter[filters.size()]));
+            bioRecorder.addChannelFilter(channel, filter, filterName.toString());
+        }
+    }
 
-        public BioRecorderDataHandler(List<DataRecordStream> streams) {
-            this.streams = streams;
+    private static String frequencyToString(double frequency) {
+        if (frequency == Math.rint(frequency)) {
+            return Long.toString((long) frequency);
         }
+        return Double.toString(frequency);
+    }
 
+    /**
+     * Records are written to the streams by BioRecorder (see addDataStream()).
+     * Here we only notify the progress
+     */
+    class BioRecorderDataHandler implements DataRecordListener {
         public void onDataRecordReceived(int[] dataRecord) {
-            try {
-                for (DataRecordStream stream : streams) {
-                    stream.writeDataRecord(dataRecord);
-                }
+            BioRecorder recorder = bioRecorder;
+            // old records after bluetooth disconnection. Progress will be notified after catching up
+            if (recorder == null || !recorder.isCatchingUp()) {
                 notifyProgressOnDataReceived();
-            } catch (IORuntimeException ex) {
-                stop();
-                notifyStateChange(new Message(Message.TYPE_FAILED_WRITE_DATA));
-                log.error(ex);
-            } catch (Exception ex) {
-                // after stopping BioRecorder and closing streams
-                // some records still can be received and IllegalStateException
-                // can be thrown.
-                log.info(ex);
             }
         }
     }
 
-    class StartFutureHandlingTask extends TimerTask {
-        private Future future;
+    /**
+     * Handles the result of starting as soon as it is known
+     */
+    class StartFutureHandler implements BiConsumer<Void, Throwable> {
         private final List<DataRecordStream> streams;
-        private RecorderType recorderType;
+        private final RecorderType recorderType;
+        private volatile boolean isCancelled;
 
-        public StartFutureHandlingTask(Future future, RecorderType recorderType, List<DataRecordStream> streams) {
-            this.future = future;
+        public StartFutureHandler(RecorderType recorderType, List<DataRecordStream> streams) {
             this.streams = streams;
             this.recorderType = recorderType;
         }
 
-        public void run() {
-            if (future.isDone()) {
-                try {
-                    // if start successful
-                    future.get();
-                    availableComportsTask.cancel();
-                    notificationTask.cancel();
-                } catch (ExecutionException e) {
-                    closeStreamsAndStartMonitoring();
-                    RecorderType connectedRecorder = getConnectedRecorder();
-                    if (connectedRecorder != null && recorderType != connectedRecorder) {
-                        notifyStateChange(new Message(Message.TYPE_WRONG_DEVICE));
+        public void cancel() {
+            isCancelled = true;
+        }
 
-                    } else {
-                        notifyStateChange(new Message(Message.TYPE_START_FAILED));
-                    }
-                } catch (CancellationException | InterruptedException e) {
-                    closeStreamsAndStartMonitoring();
-                    notifyStateChange(null);
-                } finally {
-                    cancel(); // cancel this task
-                }
+        @Override
+        public void accept(Void result, Throwable throwable) {
+            if (isCancelled) {
+                return;
+            }
+            if (throwable == null) {
+                // if start successful
+                comportDiscoveryService.stop();
+                notificationTask.cancel();
+                return;
+            }
+            if (throwable instanceof CompletionException && throwable.getCause() != null) {
+                throwable = throwable.getCause();
+            }
+            closeStreamsAndStartMonitoring();
+            if (throwable instanceof CancellationException) {
+                notifyStateChange(null);
+                return;
+            }
+            RecorderType connectedRecorder = getConnectedRecorder();
+            if (connectedRecorder != null && recorderType != connectedRecorder) {
+                notifyStateChange(new Message(Message.TYPE_WRONG_DEVICE));
+            } else {
+                notifyStateChange(new Message(Message.TYPE_START_FAILED));
             }
         }
 
@@ -384,9 +454,8 @@ public class EdfBioRecorderApp {
 
 
     private void restartAvailableComportsTask() {
-        availableComportsTask.cancel();
-        availableComportsTask = new AvailableComportsTask();
-        timer.schedule(availableComportsTask, AVAILABLE_COMPORTS_CHECKING_PERIOD_MS, AVAILABLE_COMPORTS_CHECKING_PERIOD_MS);
+        comportDiscoveryService.stop();
+        comportDiscoveryService.start();
     }
 
     private void restartNotificationTask() {
@@ -420,24 +489,29 @@ public class EdfBioRecorderApp {
     private synchronized void stop1() {
         RecordingInfo recordingInfo = null;
 
+        if (startFutureHandler != null) {
+            startFutureHandler.cancel();
+        }
         if (bioRecorder != null) {
-            bioRecorder.removeDataListener();
+            // records received before stop are still written to the streams
             recordingInfo = bioRecorder.stop();
-        }
-        if (startFutureHandlingTask != null) {
-            startFutureHandlingTask.cancel();
+            bioRecorder.removeDataListener();
+            bioRecorder.removeDataStreams();
         }
 
         Message msg = null;
         if (edfStream != null) {
             try {
-                edfStream.close(recordingInfo);
+                edfStream.setRecordingInfo(recordingInfo);
+                // write the remaining records and close the file
+                edfSink.close();
                 if (edfStream.getNumberOfWrittenDataRecords() > 0) {
                     //msg = new Message(Message.TYPE_DATA_SUCCESSFULLY_SAVED, edfFile + "\n\n" + edfStream1.getWritingInfo());
                     String logMsg = new Message(Message.TYPE_DATA_SUCCESSFULLY_SAVED, edfStream.getFile() + "\n\n" + edfStream.getWritingInfo()).getMessage();
                     log.info(logMsg);
                 }
                 edfStream = null;
+                edfSink = null;
             } catch (Exception ex) {
                 log.error(ex);
                 msg = new Message(Message.TYPE_FAILED_CLOSE_FILE, ex.getMessage());
@@ -446,8 +520,9 @@ public class EdfBioRecorderApp {
 
         if(lslStream != null) {
             try {
-                lslStream.close();
+                lslSink.close();
                 lslStream = null;
+                lslSink = null;
             } catch (Exception ex) {
                 log.error(ex);
             }
@@ -480,6 +555,7 @@ public class EdfBioRecorderApp {
     public void finalize() {
         disconnectRecorder();
         timer.cancel();
+        comportDiscoveryService.stop();
     }
 
     /**
@@ -508,7 +584,10 @@ public class EdfBioRecorderApp {
      * @return available comports list with selected port included
      */
     public String[] getAvailableComports() {
-        String[] availablePorts = BioRecorder.getAvailableComportNames();
+        return addSelectedComport(comportDiscoveryService.getAvailableComportNames());
+    }
+
+    private String[] addSelectedComport(String[] availablePorts) {
         if (comportName == null || comportName.isEmpty()) {
             return availablePorts;
         }
@@ -638,12 +717,6 @@ public class EdfBioRecorderApp {
         }
     }
 
-    class AvailableComportsTask extends TimerTask {
-        public void run() {
-            notifyAvailableComports(getAvailableComports());
-        }
-    }
-
     class ConnectionTask extends TimerTask {
         public void run() {
             try {
@@ -3,6 +3,7 @@ package com.biorecorder;
 import com.biorecorder.multisignal.recordformat.DataHeader;
 import com.biorecorder.multisignal.recordformat.DataRecordStream;
 import com.biorecorder.multisignal.edflib.EdfWriter;
+import com.biorecorder.multisignal.recordfilter.FusedRecordFilter;
 import com.biorecorder.multisignal.recordfilter.RecordsJoiner;
 import com.biorecorder.multisignal.recordfilter.SignalFrequencyReducer;
 import com.biorecorder.recorder.RecordingInfo;
@@ -22,7 +23,8 @@ import java.util.concurrent.atomic.AtomicLong;
  * some transformation with income data records:
  * <ul>
  * <li>join data records</li>
- * <li>reduce signal frequencies if it was specified</li>
+ * <li>reduce signal frequencies if it was specified (by averaging samples
+ * or with anti-aliasing filtering that delays the divided signals)</li>
  * </ul>
  */
 public class EdfStream implements DataRecordStream {
@@ -34,8 +36,19 @@ public class EdfStream implements DataRecordStream {
     private DataHeader header;
     private AtomicLong numberOfWrittenDataRecords = new AtomicLong(0);
     private String writingInfo;
+    private volatile RecordingInfo recordingInfo;
 
     public EdfStream(File edfFile, int numberOfRecordsToJoin, Map<Integer, Integer> extraDividers,  boolean isDurationOfDataRecordComputable) throws FileNotFoundRuntimeException  {
+        this(edfFile, numberOfRecordsToJoin, extraDividers, false, isDurationOfDataRecordComputable);
+    }
+
+    /**
+     * @param isAntiAliasingEnabled if true signals frequencies are reduced by
+     *                              {@link SignalFrequencyReducer#addPolyphaseDivider(int, int)}
+     *                              (divided signals are delayed relative to the other ones),
+     *                              otherwise by {@link SignalFrequencyReducer#addDivider(int, int)}
+     */
+    public EdfStream(File edfFile, int numberOfRecordsToJoin, Map<Integer, Integer> extraDividers, boolean isAntiAliasingEnabled, boolean isDurationOfDataRecordComputable) throws FileNotFoundRuntimeException  {
         this.isDurationOfDataRecordComputable = isDurationOfDataRecordComputable;
         this.file = edfFile;
 
@@ -45,7 +58,11 @@ public class EdfStream implements DataRecordStream {
         if (!extraDividers.isEmpty()) {
             SignalFrequencyReducer edfFrequencyDivider = new SignalFrequencyReducer(DataStream);
             for (Integer signal : extraDividers.keySet()) {
-                edfFrequencyDivider.addDivider(signal, extraDividers.get(signal));
+                if (isAntiAliasingEnabled) {
+                    edfFrequencyDivider.addPolyphaseDivider(signal, extraDividers.get(signal));
+                } else {
+                    edfFrequencyDivider.addDivider(signal, extraDividers.get(signal));
+                }
             }
 
             DataStream = edfFrequencyDivider;
@@ -55,6 +72,8 @@ public class EdfStream implements DataRecordStream {
         if(numberOfRecordsToJoin > 1) {
             DataStream = new RecordsJoiner(DataStream, numberOfRecordsToJoin);
         }
+        // joining and frequency reducing in one pass
+        DataStream = FusedRecordFilter.compile(DataStream);
     }
 
     @Override
@@ -68,9 +87,17 @@ public class EdfStream implements DataRecordStream {
         DataStream.writeDataRecord(dataRecord);
     }
 
+    /**
+     * Sets the recording info (start time and real duration of data record)
+     * that will be written to the file header on close()
+     */
+    public void setRecordingInfo(@Nullable RecordingInfo recordingInfo) {
+        this.recordingInfo = recordingInfo;
+    }
+
     @Override
     public void close() throws IORuntimeException {
-        close(null);
+        close(recordingInfo);
     }
 
     public void close(@Nullable RecordingInfo recordingInfo) throws IORuntimeException {
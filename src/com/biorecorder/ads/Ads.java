@@ -1,8 +1,10 @@
 package com.biorecorder.ads;
 
 
+import com.biorecorder.comport.AsyncComportListener;
 import com.biorecorder.comport.Comport;
 import com.biorecorder.comport.ComportFactory;
+import com.biorecorder.comport.ComportWriter;
 import com.biorecorder.multisignal.recordformat.DataHeader;
 import com.biorecorder.multisignal.recordformat.FormatVersion;
 import com.sun.istack.internal.Nullable;
@@ -67,6 +69,7 @@ public class Ads {
     private static final int ACTIVE_PERIOD_MS = 2 * SLEEP_TIME_MS;
 
     private static final int MAX_STARTING_TIME_MS = 30 * 1000;
+    private static final int MAX_WRITING_TIME_MS = 2 * 1000;
 
     private static final String DISCONNECTED_MSG = "Ads is disconnected and its work is finalised";
     private static final String RECORDING_MSG = "Ads is recording. Stop it first";
@@ -74,9 +77,26 @@ public class Ads {
 
 
     private final Comport comport;
+    // received bytes are decoded in separated thread not in the comport one
+    private final AsyncComportListener comportListener;
+    // commands are written in separated thread and never block the controlExecutor
+    private final ComportWriter comportWriter;
+    // decoder of the current monitoring or recording session
+    private volatile FrameDecoder frameDecoder;
+    private volatile boolean isFrameResyncEnabled = true;
+    private volatile boolean isFrameErrorDetailsEnabled;
 
     private volatile long lastEventTime;
     private volatile boolean isDataReceived;
+    private volatile long startRecordingTime;
+    private volatile long firstDataTime;
+
+    // completed by the frame decoder listeners when the awaited message or data come
+    private volatile CompletableFuture<Void> helloFuture = new CompletableFuture<Void>();
+    private volatile CompletableFuture<Void> hardwareFuture = new CompletableFuture<Void>();
+    private volatile CompletableFuture<Void> stopFuture = new CompletableFuture<Void>();
+    private volatile CompletableFuture<Void> firstDataFuture = new CompletableFuture<Void>();
+    private volatile CompletableFuture<Void> startFuture;
     private volatile AdsType adsType;
 
 
@@ -87,22 +107,91 @@ public class Ads {
             new AtomicReference<AdsState>(AdsState.UNDEFINED);
 
 
-    private final ExecutorService singleThreadExecutor;
+    // pinging and monitoring tasks
+    private final ScheduledExecutorService controlExecutor;
+    // starting task (waits for the device answers). May be the controlExecutor
+    private final ExecutorService startingExecutor;
+    // false if the executor is shared with other devices
+    private final boolean isControlExecutorOwner;
     private volatile Future executorFuture;
 
     private volatile NumberedDataRecordListener dataListener;
     private volatile MessageListener messageListener;
 
     public Ads(String comportName) throws ComportRuntimeException {
+        this(comportName, AsyncComportListener.DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * @param comportName              name of the comport
+     * @param comportBufferCapacity capacity (in bytes) of the ring buffer between
+     *                                 the comport reading thread and the frame decoding thread
+     */
+    public Ads(String comportName, int comportBufferCapacity) throws ComportRuntimeException {
+        this(comportName, comportBufferCapacity, null, null, null);
+    }
+
+    /**
+     * Permits to run several devices on the same (shared) executors,
+     * so the number of threads does not grow with the number of devices.
+     * If some executor is null Ads creates its own single thread executor instead.
+     * <p>
+     * Shared executors are not shut down by disconnect().
+     *
+     * @param comportName           name of the comport
+     * @param comportBufferCapacity capacity (in bytes) of the ring buffer between
+     *                              the comport reading thread and the frame decoding
+     * @param decodingExecutor      executor to decode received frames in
+     * @param writingExecutor       executor to write commands to the comport in
+     * @param controlExecutor       executor to run starting, pinging and monitoring tasks in.
+     *                              Starting task waits for device answers so starts of devices
+     *                              may be queued if there are more of them than threads
+     */
+    public Ads(String comportName, int comportBufferCapacity, @Nullable Executor decodingExecutor,
+               @Nullable Executor writingExecutor, @Nullable ScheduledExecutorService controlExecutor) throws ComportRuntimeException {
+        this(comportName, comportBufferCapacity, decodingExecutor, writingExecutor, controlExecutor, null);
+    }
+
+    /**
+     * The same as above but the starting task is run in the separate executor.
+     * Starting task occupies the thread for up to MAX_STARTING_TIME_MS waiting for the device answers,
+     * so with the separate executor the starts of some devices never delay
+     * pinging and monitoring of the other devices sharing the control executor
+     *
+     * @param startingExecutor executor to run starting task in. If null the control executor is used
+     */
+    public Ads(String comportName, int comportBufferCapacity, @Nullable Executor decodingExecutor,
+               @Nullable Executor writingExecutor, @Nullable ScheduledExecutorService controlExecutor,
+               @Nullable ExecutorService startingExecutor) throws ComportRuntimeException {
         comport = ComportFactory.getComport(comportName, COMPORT_SPEED);
+        if (decodingExecutor == null) {
+            comportListener = new AsyncComportListener(comportBufferCapacity, "«Ads» frame decoding thread");
+        } else {
+            comportListener = new AsyncComportListener(comportBufferCapacity, decodingExecutor);
+        }
+        comport.addListener(comportListener);
+        if (writingExecutor == null) {
+            comportWriter = new ComportWriter(comport, ComportWriter.DEFAULT_QUEUE_CAPACITY,
+                    "«Ads» comport writing thread", PING_COMMAND, HELLO_REQUEST);
+        } else {
+            comportWriter = new ComportWriter(comport, ComportWriter.DEFAULT_QUEUE_CAPACITY,
+                    writingExecutor, PING_COMMAND, HELLO_REQUEST);
+        }
         dataListener = new NullDataListener();
         messageListener = new NullMessageListener();
-        ThreadFactory namedThreadFactory = new ThreadFactory() {
-            public Thread newThread(Runnable r) {
-                return new Thread(r, "«Data Records handling» thread");
-            }
-        };
-        singleThreadExecutor = Executors.newSingleThreadExecutor(namedThreadFactory);
+        if (controlExecutor == null) {
+            ThreadFactory namedThreadFactory = new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "«Data Records handling» thread");
+                }
+            };
+            this.controlExecutor = Executors.newSingleThreadScheduledExecutor(namedThreadFactory);
+            isControlExecutorOwner = true;
+        } else {
+            this.controlExecutor = controlExecutor;
+            isControlExecutorOwner = false;
+        }
+        this.startingExecutor = startingExecutor == null ? this.controlExecutor : startingExecutor;
     }
 
     /**
@@ -122,23 +211,24 @@ public class Ads {
             throw new IllegalStateException(RECORDING_MSG);
         }
         // create frame decoder to handle ads messages
-        comport.addListener(createAndConfigureFrameDecoder(null));
+        frameDecoder = createAndConfigureFrameDecoder(null);
+        comportListener.setListener(frameDecoder);
 
         if (adsStateAtomicReference.get() == AdsState.UNDEFINED) {
-            comport.writeByte(STOP_REQUEST);
+            comportWriter.writeByte(STOP_REQUEST);
         }
         if (executorFuture != null) {
             executorFuture.cancel(true);
         }
-        executorFuture = singleThreadExecutor.submit(new MonitoringTask());
+        executorFuture = controlExecutor.scheduleWithFixedDelay(new MonitoringTask(), 0, MONITORING_PERIOD_MS, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Start Ads measurements. Stop monitoring if it was activated before
      *
      * @param config object with ads config info
-     * @return Future: if starting was successful future.get() return null,
-     * otherwise throw RuntimeException. Usually starting fails due to device is not connected
+     * @return CompletableFuture: completed (with null) as soon as the first data record is received.
+     * Otherwise it is completed exceptionally with RuntimeException. Usually starting fails due to device is not connected
      * or wrong device type is specified in config (that does not coincide
      * with the really connected device type)
      * @throws IllegalStateException if Ads was disconnected and its work was finalised
@@ -147,7 +237,7 @@ public class Ads {
      *
      */
 
-    public Future<Void> startRecording(AdsConfig config) throws IllegalStateException, IllegalArgumentException {
+    public CompletableFuture<Void> startRecording(AdsConfig config) throws IllegalStateException, IllegalArgumentException {
         if (!comport.isOpened()) {
             throw new IllegalStateException(DISCONNECTED_MSG);
         }
@@ -178,58 +268,93 @@ public class Ads {
         }
 
         isDataReceived = false;
+        startRecordingTime = System.nanoTime();
+        firstDataTime = 0;
+        firstDataFuture = new CompletableFuture<Void>();
         // create frame decoder corresponding to the configuration
         // and set it as listener to comport
-        comport.addListener(createAndConfigureFrameDecoder(adsConfig));
+        frameDecoder = createAndConfigureFrameDecoder(adsConfig);
+        comportListener.setListener(frameDecoder);
         AdsState stateBeforeStart = adsStateAtomicReference.get();
         adsStateAtomicReference.set(AdsState.RECORDING);
-        executorFuture = singleThreadExecutor.submit(new StartingTask(adsConfig, stateBeforeStart));
-        return executorFuture;
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        startFuture = future;
+        executorFuture = startingExecutor.submit(new StartingTask(adsConfig, stateBeforeStart, future));
+        return future;
     }
 
 
-    class StartingTask implements Callable<Void> {
+    /**
+     * Start sequence. Every step advances as soon as the device answers
+     * (frame decoder receives the awaited message or the first data record).
+     * The old fixed waiting times are kept only as upper bounds.
+     */
+    class StartingTask implements Runnable {
         private final String TIME_OUT_ERR_MSG = "Starting time exceeds allowed limits: " + MAX_STARTING_TIME_MS + " ms";
-        private AdsConfig config;
-        private AdsState stateBeforeStart;
+        private final AdsConfig config;
+        private final AdsState stateBeforeStart;
+        private final CompletableFuture<Void> startFuture;
+        private final long startTime = System.currentTimeMillis();
 
 
-        public StartingTask(AdsConfig config, AdsState stateBeforeStart) {
+        public StartingTask(AdsConfig config, AdsState stateBeforeStart, CompletableFuture<Void> startFuture) {
             this.config = config;
             this.stateBeforeStart = stateBeforeStart;
+            this.startFuture = startFuture;
         }
 
         @Override
-        public Void call() throws Exception {
-            long startTime = System.currentTimeMillis();
+        public void run() {
+            try {
+                start();
+                startFuture.complete(null);
+            } catch (InterruptedException ex) {
+                // starting was cancelled
+                startFuture.cancel(false);
+            } catch (Exception ex) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // starting was cancelled during comport writing
+                    startFuture.cancel(false);
+                    return;
+                }
+                try {
+                    comportWriter.writeByte(STOP_REQUEST);
+                } catch (Exception ex1) {
+                    // do nothing;
+                }
+                adsStateAtomicReference.set(AdsState.UNDEFINED);
+                startFuture.completeExceptionally(ex);
+            }
+        }
+
+        private void start() throws Exception {
             // 1) check that ads is connected and "active"
             while (!isActive()) {
-                comport.writeByte(HELLO_REQUEST);
-                Thread.sleep(SLEEP_TIME_MS);
-
-                // if message with Hello request do not come during too long time
-                if((System.currentTimeMillis() - startTime) > MAX_STARTING_TIME_MS) {
-                    throwException(TIME_OUT_ERR_MSG);
-                }
+                helloFuture = new CompletableFuture<Void>();
+                comportWriter.writeByte(HELLO_REQUEST);
+                awaitMessage(helloFuture, SLEEP_TIME_MS);
+                checkStartingTime();
             }
 
             // 2) request adsType if it is unknown
             if (adsType == null) {
-                comport.writeByte(HARDWARE_REQUEST);
-                Thread.sleep(SLEEP_TIME_MS * 2);
+                hardwareFuture = new CompletableFuture<Void>();
+                comportWriter.writeByte(HARDWARE_REQUEST);
+                awaitMessage(hardwareFuture, SLEEP_TIME_MS * 2);
             }
 
             // if adsType is wrong
             if (adsType != null && adsType != config.getAdsType()) {
                 String errMsg = "Wrong device type: "+ config.getAdsType() + " Connected: "+adsType;
-                throwException(errMsg);
+                throw new RuntimeException(errMsg);
             }
 
             // 2) if adsType is ok try to stop ads first if it was not stopped before
             if (stateBeforeStart == AdsState.UNDEFINED) {
-                if (comport.writeByte(STOP_REQUEST)) {
+                stopFuture = new CompletableFuture<Void>();
+                if (writeAndWait(comportWriter.writeByte(STOP_REQUEST))) {
                     // give the ads time to stop
-                    Thread.sleep(SLEEP_TIME_MS * 2);
+                    awaitMessage(stopFuture, SLEEP_TIME_MS * 2);
                 }
             }
 
@@ -242,41 +367,72 @@ public class Ads {
             }
             log.info(sb.toString());
 
-            if(!comport.writeBytes(adsConfigCommand)) {
+            if(!writeAndWait(comportWriter.writeBytes(adsConfigCommand))) {
                 // if writing start command to comport was failed
                 String errMsg = "Failed to write start command to comport";
-                throwException(errMsg);
+                throw new RuntimeException(errMsg);
             }
 
-
             // 4) waiting for data
-            while (!isDataReceived) {
-                Thread.sleep(SLEEP_TIME_MS);
-
-                // if data do note come during too long time
-                if((System.currentTimeMillis() - startTime) > MAX_STARTING_TIME_MS) {
-                    throwException(TIME_OUT_ERR_MSG);
-                }
+            long remainingTime = MAX_STARTING_TIME_MS - (System.currentTimeMillis() - startTime);
+            if (!awaitMessage(firstDataFuture, remainingTime)) {
+                throw new RuntimeException(TIME_OUT_ERR_MSG);
             }
+            log.info("Start to first data record latency: " + getStartLatencyMs() + " ms");
 
             // 5) startRecording ping timer
             // ping timer permits Ads to detect bluetooth connection problems
             // and restart connection when it is necessary
-            executorFuture = singleThreadExecutor.submit(new PingTask(), PING_PERIOD_MS);
+            executorFuture = controlExecutor.scheduleWithFixedDelay(new PingTask(), 0, PING_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
 
-            return null;
+        private void checkStartingTime() {
+            // if message with Hello request do not come during too long time
+            if((System.currentTimeMillis() - startTime) > MAX_STARTING_TIME_MS) {
+                throw new RuntimeException(TIME_OUT_ERR_MSG);
+            }
         }
+    }
 
+    /**
+     * Waits till the future is completed by the frame decoder listener
+     *
+     * @return true if the awaited event happened and false if waiting time is out
+     */
+    private static boolean awaitMessage(Future<Void> messageFuture, long maxWaitingTimeMs) throws InterruptedException {
+        if (maxWaitingTimeMs <= 0) {
+            return messageFuture.isDone();
+        }
+        try {
+            messageFuture.get(maxWaitingTimeMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException ex) {
+            return false;
+        } catch (ExecutionException ex) {
+            return false;
+        }
+    }
 
-        private void throwException(String errMsg) {
-            try {
-                comport.writeByte(STOP_REQUEST);
-            } catch (Exception ex) {
-                // do nothing;
+    /**
+     * Waits (not longer than MAX_WRITING_TIME_MS) till the command is written
+     *
+     * @return true if the command was successfully written and false otherwise
+     * @throws IllegalStateException if the comport was closed
+     */
+    private boolean writeAndWait(Future<Boolean> writeFuture) throws IllegalStateException {
+        try {
+            return writeFuture.get(MAX_WRITING_TIME_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (TimeoutException e) {
+            log.error("Comport write timeout");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IllegalStateException) {
+                throw (IllegalStateException) e.getCause();
             }
-            adsStateAtomicReference.set(AdsState.UNDEFINED);
-            throw new RuntimeException(errMsg);
+            log.error("Comport write failed", e.getCause());
         }
+        return false;
     }
 
     private boolean stop1() {
@@ -284,16 +440,24 @@ public class Ads {
         if (executorFuture != null && !executorFuture.isDone()) {
             executorFuture.cancel(true);
         }
+        CompletableFuture<Void> future = startFuture;
+        if (future != null) {
+            // if starting task was cancelled before running
+            future.cancel(false);
+        }
 
         if (adsStateAtomicReference.get() == AdsState.RECORDING) {
             adsStateAtomicReference.set(AdsState.UNDEFINED);
         }
         // send stop command
-        boolean isStopOk = comport.writeByte(STOP_REQUEST);
+        stopFuture = new CompletableFuture<Void>();
+        boolean isStopOk = writeAndWait(comportWriter.writeByte(STOP_REQUEST));
         if (isStopOk) {
-            // give ads time to stop
+            // give ads time to stop: wait for stop message
             try {
-                Thread.sleep(SLEEP_TIME_MS);
+                if (!awaitMessage(stopFuture, SLEEP_TIME_MS)) {
+                    log.info("Stop recording message was not received");
+                }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
@@ -315,15 +479,24 @@ public class Ads {
     }
 
     public boolean disconnect() {
-        singleThreadExecutor.shutdownNow();
+        if (executorFuture != null) {
+            executorFuture.cancel(true);
+        }
+        if (isControlExecutorOwner) {
+            controlExecutor.shutdownNow();
+        }
         if(adsStateAtomicReference.get() == AdsState.RECORDING) {
             stop1();
         }
         if (!comport.isOpened()) {
+            comportWriter.stop();
+            comportListener.stop();
             return true;
         }
 
         if (comport.close()) {
+            comportWriter.stop();
+            comportListener.stop();
             removeDataListener();
             removeMessageListener();
             return true;
@@ -331,14 +504,142 @@ public class Ads {
         return false;
     }
 
+    /**
+     * @return max time (ms) from the command submitting to the end of its writing to the comport
+     */
+    public double getComportMaxWriteLatencyMs() {
+        return comportWriter.getMaxWriteLatencyMs();
+    }
+
+    /**
+     * @return average time (ms) from the command submitting to the end of its writing to the comport
+     */
+    public double getComportAverageWriteLatencyMs() {
+        return comportWriter.getAverageWriteLatencyMs();
+    }
+
+    /**
+     * @return time (ms) from the last startRecording() call to the receiving of the first data record
+     * or -1 if data was not received yet
+     */
+    public double getStartLatencyMs() {
+        long firstTime = firstDataTime;
+        if (firstTime == 0) {
+            return -1;
+        }
+        return (firstTime - startRecordingTime) / 1.0E6;
+    }
+
+    /**
+     * @return max number of received bytes that were waiting for decoding at the same time
+     */
+    public int getComportBufferHighWaterMark() {
+        return comportListener.getHighWaterMark();
+    }
+
+    /**
+     * @return total number of received bytes passed to the frame decoding
+     */
+    public long getReceivedBytesCount() {
+        return comportListener.getHandledBytesCount();
+    }
+
+    /**
+     * @return total number of received bytes lost because the decoding could not keep up
+     */
+    public long getComportBufferOverflowCount() {
+        return comportListener.getOverflowCount();
+    }
+
+    /**
+     * If enabled (default) after a broken frame the received bytes are rescanned
+     * to find the next valid frame instead of being discarded.
+     * Takes effect from the next monitoring or recording start
+     */
+    public void setFrameResyncEnabled(boolean isFrameResyncEnabled) {
+        this.isFrameResyncEnabled = isFrameResyncEnabled;
+    }
+
+    /**
+     * If enabled every broken frame is reported by a separate FRAME_BROKEN message
+     * (with the received byte). Otherwise (default) broken frames are reported
+     * by periodic summary messages.
+     * Takes effect from the next monitoring or recording start
+     */
+    public void setFrameErrorDetailsEnabled(boolean isFrameErrorDetailsEnabled) {
+        this.isFrameErrorDetailsEnabled = isFrameErrorDetailsEnabled;
+    }
+
+    /**
+     * @return number of messages of the given type received during the current
+     * monitoring or recording session. For FRAME_BROKEN - number of corruption episodes
+     * (runs of broken frames and garbage bytes between two valid frames)
+     */
+    public long getMessageCount(AdsMessageType messageType) {
+        FrameDecoder decoder = frameDecoder;
+        return decoder == null ? 0 : decoder.getMessageCount(messageType);
+    }
+
+    /**
+     * @return number of all frame errors of the current monitoring or recording session
+     * (one corrupted frame may give several errors because its bytes are rescanned)
+     */
+    public long getFrameErrorsCount() {
+        FrameDecoder decoder = frameDecoder;
+        return decoder == null ? 0 : decoder.getFrameErrors();
+    }
+
+    /**
+     * @return number of received bytes discarded by the current monitoring or recording session
+     * as not belonging to any valid frame
+     */
+    public long getSkippedBytesCount() {
+        FrameDecoder decoder = frameDecoder;
+        return decoder == null ? 0 : decoder.getBytesSkipped();
+    }
+
+    /**
+     * @return number of frames recovered by the current monitoring or recording session
+     * from the bytes of broken frames
+     */
+    public long getRecoveredFramesCount() {
+        FrameDecoder decoder = frameDecoder;
+        return decoder == null ? 0 : decoder.getFramesRecovered();
+    }
+
+    /**
+     * @return clock model of the data records of the current recording
+     * (restores records numbers and estimates records times)
+     * or null if there was no recording
+     */
+    public RecordClock getRecordClock() {
+        FrameDecoder decoder = frameDecoder;
+        return decoder == null ? null : decoder.getRecordClock();
+    }
+
+    /**
+     * @return number of data records missing in the records numbering during the current recording
+     * (not received because of the link or broken by corruption)
+     */
+    public long getLostFramesCount() {
+        FrameDecoder decoder = frameDecoder;
+        return decoder == null ? 0 : decoder.getFramesLost();
+    }
+
     FrameDecoder createAndConfigureFrameDecoder(@Nullable AdsConfig adsConfig) {
         FrameDecoder frameDecoder = new FrameDecoder(adsConfig);
+        frameDecoder.setResyncEnabled(isFrameResyncEnabled);
+        frameDecoder.setErrorDetailsEnabled(isFrameErrorDetailsEnabled);
         if (adsConfig != null) {
             frameDecoder.addDataListener(new NumberedDataRecordListener() {
                 @Override
                 public void onDataRecordReceived(int[] dataRecord, int recordNumber) {
                     lastEventTime = System.currentTimeMillis();
-                    isDataReceived = true;
+                    if (!isDataReceived) {
+                        firstDataTime = System.nanoTime();
+                        isDataReceived = true;
+                        firstDataFuture.complete(null);
+                    }
                     notifyDataListeners(dataRecord, recordNumber);
                 }
             });
@@ -349,17 +650,21 @@ public class Ads {
             public void onMessage(AdsMessageType messageType, String message) {
                 if (messageType == AdsMessageType.HELLO || messageType == AdsMessageType.UNKNOWN) {
                     lastEventTime = System.currentTimeMillis();
+                    helloFuture.complete(null);
                 }
                 if (messageType == AdsMessageType.ADS_2_CHANNELS) {
                     adsType = AdsType.ADS_2;
                     lastEventTime = System.currentTimeMillis();
+                    hardwareFuture.complete(null);
                 }
                 if (messageType == AdsMessageType.ADS_8_CHANNELS) {
                     adsType = AdsType.ADS_8;
                     lastEventTime = System.currentTimeMillis();
+                    hardwareFuture.complete(null);
                 }
                 if (messageType == AdsMessageType.STOP_RECORDING) {
                     adsStateAtomicReference.compareAndSet(AdsState.UNDEFINED, AdsState.STOPPED);
+                    stopFuture.complete(null);
                     log.info(message);
                 }
                 if (messageType == AdsMessageType.FRAME_BROKEN) {
@@ -738,31 +1043,23 @@ public class Ads {
         return "Bit mask";
     }
 
+    /**
+     * Periodic task. Does not occupy the thread between the runs
+     */
     class PingTask implements Runnable {
         @Override
         public void run() {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    comport.writeByte(PING_COMMAND);
-                    Thread.sleep(PING_PERIOD_MS);
-                } catch (Exception ex) {
-                    break;
-                }
-            }
+            comportWriter.writeByte(PING_COMMAND);
         }
     }
 
+    /**
+     * Periodic task. Does not occupy the thread between the runs
+     */
     class MonitoringTask implements Runnable {
         @Override
         public void run() {
-            while (!Thread.currentThread().isInterrupted()) {
-                try {
-                    comport.writeByte(HELLO_REQUEST);
-                    Thread.sleep(MONITORING_PERIOD_MS);
-                } catch (Exception ex) {
-                    break;
-                }
-            }
+            comportWriter.writeByte(HELLO_REQUEST);
         }
 
     }
@@ -0,0 +1,625 @@
+package com.biorecorder.ads;
+
+import com.biorecorder.comport.Comport;
+import com.biorecorder.comport.ComportListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Simulated Ads device. Permits to test and benchmark the whole
+ * Ads -> BioRecorder -> EdfStream pipeline without hardware.
+ * <p>
+ * Like the real device it answers HELLO, HARDWARE and STOP requests (PING is just ignored)
+ * and on receiving the configuration command (see {@link AdsConfigurator})
+ * starts sending data frames in exactly the same layout as the real device:
+ * sample rate, channels dividers, accelerometer, battery and lead-off data
+ * are taken from the received command. Until the command is received
+ * the frame layout is determined by the AdsConfig given to the constructor.
+ * <p>
+ * Frames are generated at the real rate (or faster, see {@link #setSpeed(double)})
+ * and may be lost, corrupted or sent in bursts to simulate a noisy bluetooth link.
+ * The 16 bit record counter starts from the given value so its wraparound can be tested.
+ * <p>
+ * The simulator may be created by {@link com.biorecorder.comport.ComportFactory}
+ * with the pseudo port name: «simulator» or «simulator:key=value,key=value...».
+ * See {@link #createFromPortName(String)}
+ */
+public class AdsSimulator implements Comport {
+    private static final Log log = LogFactory.getLog(AdsSimulator.class);
+    public static final String PORT_NAME_PREFIX = "simulator";
+
+    private static final byte START_FRAME_MARKER = (byte) (0xAA & 0xFF);
+    private static final byte MESSAGE_MARKER = (byte) (0xA5 & 0xFF);
+    private static final byte STOP_FRAME_MARKER = (byte) (0x55 & 0xFF);
+    private static final byte PING_COMMAND = (byte) (0xFB & 0xFF);
+    private static final byte HELLO_REQUEST = (byte) (0xFD & 0xFF);
+    private static final byte STOP_REQUEST = (byte) (0xFF & 0xFF);
+    private static final byte HARDWARE_REQUEST = (byte) (0xFA & 0xFF);
+
+    private static final byte[] HELLO_MESSAGE = {START_FRAME_MARKER, MESSAGE_MARKER, 0x05, (byte) 0xA0, STOP_FRAME_MARKER};
+    private static final byte[] STOP_MESSAGE = {START_FRAME_MARKER, MESSAGE_MARKER, 0x05, (byte) 0xA5, STOP_FRAME_MARKER};
+
+    private static final int TICK_MS = 10;
+    // max number of frames sent to the listener at once
+    private static final int MAX_CHUNK_FRAMES = 64;
+    private static final int SIGNAL_AMPLITUDE = 100000;
+
+    private final String portName;
+    private final AdsConfig deviceConfig;
+    private final ScheduledExecutorService executor;
+    private volatile ComportListener comportListener = new NullComportListener();
+    private volatile boolean isOpened = true;
+
+    private volatile double frameLossRate;
+    private volatile double frameCorruptionRate;
+    private volatile int burstSize = 1;
+    private volatile int startRecordCounter;
+    private volatile double speed = 1;
+    private final Random random;
+
+    /*******************************************************************
+     * streaming state. Changed only by the simulator thread
+     *******************************************************************/
+    private Layout layout;
+    private ScheduledFuture<?> streamingFuture;
+    private long streamingStartTime;
+    private long framesGenerated;
+    private byte[] chunk;
+    private volatile long framesSent;
+    private volatile long framesLost;
+    private volatile long framesCorrupted;
+    /***************************************************************/
+
+    /**
+     * @param deviceConfig determines the device type (2 or 8 channels) and
+     *                     the frame layout until the configuration command is received
+     */
+    public AdsSimulator(AdsConfig deviceConfig) {
+        this(PORT_NAME_PREFIX, deviceConfig, System.nanoTime());
+    }
+
+    public AdsSimulator(String portName, AdsConfig deviceConfig, long randomSeed) {
+        this.portName = portName;
+        this.deviceConfig = new AdsConfig(deviceConfig);
+        random = new Random(randomSeed);
+        layout = new Layout(deviceConfig);
+        ThreadFactory namedThreadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "«Ads simulator» thread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        executor = Executors.newSingleThreadScheduledExecutor(namedThreadFactory);
+    }
+
+    /**
+     * Creates simulator from the pseudo port name:
+     * «simulator» or «simulator:key=value,key=value...». Available keys:
+     * <ul>
+     * <li>channels - 2 or 8 (default 8)</li>
+     * <li>sps - 500, 1000 or 2000 (used until the configuration command is received)</li>
+     * <li>loss - probability that a frame is lost (0...1)</li>
+     * <li>corruption - probability that a random byte of a frame is corrupted (0...1)</li>
+     * <li>burst - number of frames sent together</li>
+     * <li>counter - start value of the 16 bit record counter (0...65535)</li>
+     * <li>speed - frames rate multiplier (0 - as fast as possible)</li>
+     * <li>seed - seed of the random generator</li>
+     * </ul>
+     * Example: «simulator:channels=2,loss=0.01,counter=65000,speed=10»
+     *
+     * @throws IllegalArgumentException if the name is not a valid simulator name
+     */
+    public static AdsSimulator createFromPortName(String portName) throws IllegalArgumentException {
+        if (!portName.startsWith(PORT_NAME_PREFIX)) {
+            String errMsg = "Invalid simulator name: " + portName;
+            throw new IllegalArgumentException(errMsg);
+        }
+        AdsConfig config = new AdsConfig();
+        config.setAdsType(AdsType.ADS_8);
+        long seed = System.nanoTime();
+        double loss = 0;
+        double corruption = 0;
+        int burst = 1;
+        int counter = 0;
+        double speed = 1;
+        String params = portName.substring(PORT_NAME_PREFIX.length());
+        if (params.startsWith(":")) {
+            params = params.substring(1);
+        }
+        for (String param : params.split(",")) {
+            if (param.trim().isEmpty()) {
+                continue;
+            }
+            String[] keyValue = param.split("=");
+            if (keyValue.length != 2) {
+                String errMsg = "Invalid simulator parameter: " + param;
+                throw new IllegalArgumentException(errMsg);
+            }
+            String key = keyValue[0].trim();
+            String value = keyValue[1].trim();
+            try {
+                if (key.equals("channels")) {
+                    config.setAdsType(Integer.parseInt(value) == 2 ? AdsType.ADS_2 : AdsType.ADS_8);
+                } else if (key.equals("sps")) {
+                    config.setSampleRate(Sps.valueOf(Integer.parseInt(value)));
+                } else if (key.equals("loss")) {
+                    loss = Double.parseDouble(value);
+                } else if (key.equals("corruption")) {
+                    corruption = Double.parseDouble(value);
+                } else if (key.equals("burst")) {
+                    burst = Integer.parseInt(value);
+                } else if (key.equals("counter")) {
+                    counter = Integer.parseInt(value);
+                } else if (key.equals("speed")) {
+                    speed = Double.parseDouble(value);
+                } else if (key.equals("seed")) {
+                    seed = Long.parseLong(value);
+                } else {
+                    String errMsg = "Unknown simulator parameter: " + key;
+                    throw new IllegalArgumentException(errMsg);
+                }
+            } catch (NumberFormatException ex) {
+                String errMsg = "Invalid simulator parameter: " + param;
+                throw new IllegalArgumentException(errMsg, ex);
+            }
+        }
+        AdsSimulator simulator = new AdsSimulator(portName, config, seed);
+        simulator.setFrameLossRate(loss);
+        simulator.setFrameCorruptionRate(corruption);
+        simulator.setBurstSize(burst);
+        simulator.setStartRecordCounter(counter);
+        simulator.setSpeed(speed);
+        return simulator;
+    }
+
+    /**
+     * @param frameLossRate probability (0...1) that a frame is not sent
+     */
+    public void setFrameLossRate(double frameLossRate) {
+        this.frameLossRate = frameLossRate;
+    }
+
+    /**
+     * @param frameCorruptionRate probability (0...1) that one random byte
+     *                            of a frame is replaced by a random value
+     */
+    public void setFrameCorruptionRate(double frameCorruptionRate) {
+        this.frameCorruptionRate = frameCorruptionRate;
+    }
+
+    /**
+     * @param burstSize number of frames that are held back and then sent together
+     */
+    public void setBurstSize(int burstSize) {
+        if (burstSize < 1) {
+            String errMsg = "Burst size must be > 0: " + burstSize;
+            throw new IllegalArgumentException(errMsg);
+        }
+        this.burstSize = burstSize;
+    }
+
+    /**
+     * @param startRecordCounter value of the 16 bit record counter of the first frame.
+     *                           Set it close to 65535 to test the counter wraparound
+     */
+    public void setStartRecordCounter(int startRecordCounter) {
+        this.startRecordCounter = startRecordCounter & 0xFFFF;
+    }
+
+    /**
+     * @param speed frames rate multiplier. 1 - real rate,
+     *              0 - frames are generated as fast as possible
+     *              (like a real port the simulator does not wait for the receiver
+     *              so the receiver buffer may overflow)
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0) {
+            String errMsg = "Speed must be >= 0: " + speed;
+            throw new IllegalArgumentException(errMsg);
+        }
+        this.speed = speed;
+    }
+
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    public long getFramesLost() {
+        return framesLost;
+    }
+
+    public long getFramesCorrupted() {
+        return framesCorrupted;
+    }
+
+    @Override
+    public String getComportName() {
+        return portName;
+    }
+
+    @Override
+    public boolean isOpened() {
+        return isOpened;
+    }
+
+    @Override
+    public boolean close() {
+        isOpened = false;
+        executor.shutdownNow();
+        removeListener();
+        return true;
+    }
+
+    @Override
+    public boolean writeBytes(byte[] bytes) throws IllegalStateException {
+        checkOpened();
+        if (bytes.length == 1) {
+            return writeByte(bytes[0]);
+        }
+        final byte[] command = bytes.clone();
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                onConfigCommand(command);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean writeByte(final byte b) throws IllegalStateException {
+        checkOpened();
+        if (b == PING_COMMAND) {
+            return true;
+        }
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                onRequest(b);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * AdsSimulator permits to add only ONE listener! So if a new listener added
+     * the old one are automatically removed
+     */
+    @Override
+    public void addListener(ComportListener comportListener) {
+        if (comportListener != null) {
+            this.comportListener = comportListener;
+        }
+    }
+
+    @Override
+    public void removeListener() {
+        comportListener = new NullComportListener();
+    }
+
+    private void checkOpened() throws IllegalStateException {
+        if (!isOpened) {
+            throw new IllegalStateException("Serial Port " + portName + " was finalised and closed");
+        }
+    }
+
+    private void submit(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            // simulator was closed. Do nothing
+        }
+    }
+
+    private void onRequest(byte request) {
+        if (request == HELLO_REQUEST) {
+            send(HELLO_MESSAGE);
+        } else if (request == HARDWARE_REQUEST) {
+            byte channelsMarker = (byte) (deviceConfig.getAdsChannelsCount() == 8 ? 0x08 : 0x02);
+            byte[] hardwareMessage = {START_FRAME_MARKER, MESSAGE_MARKER, 0x07, (byte) 0xA4, channelsMarker, 0x01, STOP_FRAME_MARKER};
+            send(hardwareMessage);
+        } else if (request == STOP_REQUEST) {
+            stopStreaming();
+            send(STOP_MESSAGE);
+        } else {
+            log.info("Simulator: unknown request " + (request & 0xFF));
+        }
+    }
+
+    private void onConfigCommand(byte[] command) {
+        try {
+            layout = new Layout(command, deviceConfig.getAdsChannelsCount());
+        } catch (IllegalArgumentException ex) {
+            log.error("Simulator: invalid configuration command. " + ex.getMessage());
+            return;
+        }
+        startStreaming();
+    }
+
+    private void startStreaming() {
+        stopStreaming();
+        chunk = new byte[layout.frameSize * Math.max(MAX_CHUNK_FRAMES, burstSize)];
+        framesGenerated = 0;
+        streamingStartTime = System.nanoTime();
+        streamingFuture = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                generateFrames();
+            }
+        }, 0, speed == 0 ? 1 : TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopStreaming() {
+        if (streamingFuture != null) {
+            streamingFuture.cancel(false);
+            streamingFuture = null;
+        }
+    }
+
+    private void generateFrames() {
+        long framesDue;
+        if (speed == 0) {
+            framesDue = framesGenerated + MAX_CHUNK_FRAMES * 16;
+        } else {
+            double seconds = (System.nanoTime() - streamingStartTime) / 1.0E9;
+            framesDue = (long) (seconds * layout.framesPerSecond * speed);
+        }
+        // frames are held back until the whole burst is ready
+        framesDue -= (framesDue % burstSize);
+        int chunkFrames = chunk.length / layout.frameSize;
+        while (framesGenerated < framesDue && streamingFuture != null) {
+            int n = (int) Math.min(chunkFrames, framesDue - framesGenerated);
+            int length = 0;
+            for (int i = 0; i < n; i++) {
+                length += generateFrame(chunk, length);
+            }
+            if (length > 0) {
+                comportListener.onBytesReceived(chunk, 0, length);
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes written to the buffer (0 if the frame is lost)
+     */
+    private int generateFrame(byte[] buffer, int offset) {
+        long frameNumber = framesGenerated++;
+        if (frameLossRate > 0 && random.nextDouble() < frameLossRate) {
+            framesLost++;
+            return 0;
+        }
+        int counter = (int) ((startRecordCounter + frameNumber) & 0xFFFF);
+        int pos = offset;
+        buffer[pos++] = START_FRAME_MARKER;
+        buffer[pos++] = START_FRAME_MARKER;
+        buffer[pos++] = (byte) counter;
+        buffer[pos++] = (byte) (counter >> 8);
+        int maxDivider = layout.maxDivider;
+        for (int channel = 0; channel < layout.dividers.length; channel++) {
+            int divider = layout.dividers[channel];
+            if (divider == 0) {
+                continue;
+            }
+            int samples = maxDivider / divider;
+            double channelSps = layout.sps / divider;
+            for (int i = 0; i < samples; i++) {
+                double time = (frameNumber * samples + i) / channelSps;
+                int value = (int) (SIGNAL_AMPLITUDE * Math.sin(2 * Math.PI * (channel + 1) * time));
+                buffer[pos++] = (byte) value;
+                buffer[pos++] = (byte) (value >> 8);
+                buffer[pos++] = (byte) (value >> 16);
+            }
+        }
+        if (layout.isAccelerometerEnabled) {
+            for (int i = 0; i < 3; i++) {
+                int value = 1000 * i + (int) frameNumber % 100;
+                buffer[pos++] = (byte) value;
+                buffer[pos++] = (byte) (value >> 8);
+            }
+        }
+        if (layout.isBatteryVoltageMeasureEnabled) {
+            int value = 3700;
+            buffer[pos++] = (byte) value;
+            buffer[pos++] = (byte) (value >> 8);
+        }
+        for (int i = 0; i < layout.leadOffBytes; i++) {
+            buffer[pos++] = 0;
+        }
+        buffer[pos++] = STOP_FRAME_MARKER;
+
+        if (frameCorruptionRate > 0 && random.nextDouble() < frameCorruptionRate) {
+            buffer[offset + random.nextInt(layout.frameSize)] = (byte) random.nextInt(256);
+            framesCorrupted++;
+        }
+        framesSent++;
+        return pos - offset;
+    }
+
+    private void send(byte[] message) {
+        comportListener.onBytesReceived(message, 0, message.length);
+    }
+
+    /**
+     * Data frame layout determined by AdsConfig or by the
+     * configuration command (see {@link AdsConfigurator2Ch} and {@link AdsConfigurator8Ch})
+     */
+    static class Layout {
+        final int maxDivider;
+        final double sps;
+        final double framesPerSecond;
+        // 0 - channel disabled
+        final int[] dividers;
+        final boolean isAccelerometerEnabled;
+        final boolean isBatteryVoltageMeasureEnabled;
+        final int leadOffBytes;
+        final int frameSize;
+
+        Layout(AdsConfig config) {
+            Divider[] dividerValues = Divider.values();
+            maxDivider = dividerValues[dividerValues.length - 1].getValue();
+            sps = config.getSampleRate().getValue();
+            framesPerSecond = sps / maxDivider;
+            dividers = new int[config.getAdsChannelsCount()];
+            for (int i = 0; i < dividers.length; i++) {
+                dividers[i] = config.isAdsChannelEnabled(i) ? config.getAdsChannelDivider(i) : 0;
+            }
+            isAccelerometerEnabled = config.isAccelerometerEnabled();
+            isBatteryVoltageMeasureEnabled = config.isBatteryVoltageMeasureEnabled();
+            leadOffBytes = config.isLeadOffEnabled() ? (dividers.length == 8 ? 2 : 1) : 0;
+            frameSize = frameSize();
+        }
+
+        /**
+         * @param command       configuration command
+         * @param channelsCount number of device ads channels
+         * @throws IllegalArgumentException if the command can not be parsed
+         */
+        Layout(byte[] command, int channelsCount) throws IllegalArgumentException {
+            Divider[] dividerValues = Divider.values();
+            maxDivider = dividerValues[dividerValues.length - 1].getValue();
+            int spsValue = 0;
+            int[] channelDividers = null;
+            boolean isAccelerometer = false;
+            boolean isBattery = false;
+            boolean isLeadOff = false;
+            int pos = 1; // command[0] - command length
+            try {
+                while (pos < command.length && command[pos] != STOP_FRAME_MARKER) {
+                    int tag = command[pos] & 0xFF;
+                    switch (tag) {
+                        case 0xF1: // ads registers: first register address, number of registers, values
+                            int registersCount = command[pos + 2] & 0xFF;
+                            spsValue = registerToSps(command[pos + 3] & 0xFF, channelsCount);
+                            pos += 3 + registersCount;
+                            break;
+                        case 0xF2: // channels dividers
+                            channelDividers = new int[channelsCount];
+                            for (int i = 0; i < channelsCount; i++) {
+                                channelDividers[i] = command[pos + 1 + i];
+                            }
+                            pos += 1 + channelsCount;
+                            break;
+                        case 0xF3:
+                            isAccelerometer = command[pos + 1] != 0;
+                            pos += 2;
+                            break;
+                        case 0xF4:
+                            isBattery = command[pos + 1] != 0;
+                            pos += 2;
+                            break;
+                        case 0xF5:
+                            isLeadOff = command[pos + 1] != 0;
+                            pos += 2;
+                            break;
+                        case 0xF0: // ads command
+                        case 0xF6: // reset timeout
+                            pos += 2;
+                            break;
+                        case 0xFE: // start recording
+                            pos += 1;
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown tag " + tag + " at position " + pos);
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                throw new IllegalArgumentException("Command is too short", ex);
+            }
+            if (spsValue == 0 || channelDividers == null) {
+                throw new IllegalArgumentException("No sample rate or channels dividers");
+            }
+            sps = spsValue;
+            framesPerSecond = sps / maxDivider;
+            dividers = channelDividers;
+            isAccelerometerEnabled = isAccelerometer;
+            isBatteryVoltageMeasureEnabled = isBattery;
+            leadOffBytes = isLeadOff ? (channelsCount == 8 ? 2 : 1) : 0;
+            frameSize = frameSize();
+        }
+
+        private static int registerToSps(int registerValue, int channelsCount) throws IllegalArgumentException {
+            if (channelsCount == 8) {
+                // ads1298: 0x86 - 500, 0x85 - 1000, 0x84 - 2000
+                switch (registerValue & 0x07) {
+                    case 6:
+                        return 500;
+                    case 5:
+                        return 1000;
+                    case 4:
+                        return 2000;
+                }
+            } else {
+                for (Sps sps : Sps.values()) {
+                    if (sps.getRegisterBits() == registerValue) {
+                        return sps.getValue();
+                    }
+                }
+            }
+            throw new IllegalArgumentException("Invalid sample rate register value: " + registerValue);
+        }
+
+        private int frameSize() {
+            int size = 4; // start markers and record counter
+            for (int divider : dividers) {
+                if (divider > 0) {
+                    size += 3 * maxDivider / divider;
+                }
+            }
+            if (isAccelerometerEnabled) {
+                size += 6;
+            }
+            if (isBatteryVoltageMeasureEnabled) {
+                size += 2;
+            }
+            return size + leadOffBytes + 1;
+        }
+    }
+
+    class NullComportListener implements ComportListener {
+        @Override
+        public void onByteReceived(byte inByte) {
+            // do nothing;
+        }
+
+        @Override
+        public void onBytesReceived(byte[] buf, int off, int len) {
+            // do nothing;
+        }
+    }
+
+    /**
+     * Unit Test. Usage Example.
+     */
+    public static void main(String[] args) {
+        String portName = "simulator:channels=8,counter=65500,speed=20";
+        if (args.length > 0) {
+            portName = args[0];
+        }
+        AdsConfig adsConfig = new AdsConfig();
+        adsConfig.setAdsType(AdsType.ADS_8);
+        adsConfig.setSampleRate(Sps.S2000);
+        Ads ads = new Ads(portName);
+        final long[] records = new long[2];
+        ads.addDataListener(new NumberedDataRecordListener() {
+            @Override
+            public void onDataRecordReceived(int[] dataRecord, int recordNumber) {
+                records[0]++;
+                records[1] = recordNumber;
+            }
+        });
+        try {
+            ads.startRecording(adsConfig).get();
+            Thread.sleep(5000);
+        } catch (Exception ex) {
+            log.error(ex);
+        }
+        ads.stop();
+        System.out.println("received records: " + records[0] + ", last record number: " + records[1]
+                + ", lost frames: " + ads.getLostFramesCount() + ", start latency ms: " + ads.getStartLatencyMs());
+        ads.disconnect();
+    }
+}
@@ -0,0 +1,159 @@
+package com.biorecorder.ads;
+
+/**
+ * Layout of Ads data frames for the given AdsConfig:
+ * offsets and widths of all the fields of the raw frame and
+ * the size of the decoded data record.
+ * <p>
+ * The plan is built once (asking AdsConfig only here) so that
+ * decoding every frame is just a tight loop over the raw bytes.
+ * <p>
+ * Raw data frame structure:
+ * <br>START_FRAME_MARKER|START_FRAME_MARKER|record_number (2 bytes)|
+ * ads samples (3 bytes each)|accelerometer x, y, z (2 bytes each)|
+ * battery voltage (2 bytes)|lead-off status (1 byte for 2 channels, 2 bytes for 8 channels)|STOP_FRAME_MARKER
+ * <p>
+ * All numbers are LITTLE_ENDIAN ordered.
+ */
+class FrameDecodePlan {
+    static final int RECORD_NUMBER_OFFSET = 2;
+    static final int SAMPLES_OFFSET = 4;
+
+    private final int numberOf3ByteSamples;
+    private final boolean isAccelerometerEnabled;
+    private final boolean isAccelerometerOneChannelMode;
+    private final boolean isBatteryVoltageMeasureEnabled;
+    private final int leadOffBytes;
+    private final int noiseDivider;
+    // if noiseDivider is a power of 2 division is replaced by shift
+    private final int noiseDividerShift;
+    private final int rawFrameSize;
+    private final int decodedFrameSize;
+
+    FrameDecodePlan(AdsConfig adsConfig) {
+        Divider[] dividers = Divider.values();
+        int maxDivider = dividers[dividers.length - 1].getValue();
+        int samples = 0;
+        for (int i = 0; i < adsConfig.getAdsChannelsCount(); i++) {
+            if (adsConfig.isAdsChannelEnabled(i)) {
+                samples += (maxDivider / adsConfig.getAdsChannelDivider(i));
+            }
+        }
+        numberOf3ByteSamples = samples;
+        isAccelerometerEnabled = adsConfig.isAccelerometerEnabled();
+        isAccelerometerOneChannelMode = adsConfig.isAccelerometerOneChannelMode();
+        isBatteryVoltageMeasureEnabled = adsConfig.isBatteryVoltageMeasureEnabled();
+        if (adsConfig.isLeadOffEnabled()) {
+            // 2 bytes for 8 channels and 1 byte for 2 channels
+            leadOffBytes = (adsConfig.getAdsChannelsCount() == 8) ? 2 : 1;
+        } else {
+            leadOffBytes = 0;
+        }
+        noiseDivider = adsConfig.getNoiseDivider();
+        noiseDividerShift = (noiseDivider > 0 && Integer.bitCount(noiseDivider) == 1) ? Integer.numberOfTrailingZeros(noiseDivider) : -1;
+
+        int rawSize = SAMPLES_OFFSET + 3 * numberOf3ByteSamples;
+        int decodedSize = numberOf3ByteSamples;
+        if (isAccelerometerEnabled) {
+            rawSize += 6;
+            decodedSize += isAccelerometerOneChannelMode ? 1 : 3;
+        }
+        if (isBatteryVoltageMeasureEnabled) {
+            rawSize += 2;
+            decodedSize += 1;
+        }
+        if (leadOffBytes > 0) {
+            rawSize += leadOffBytes;
+            decodedSize += 1;
+        }
+        rawSize += 1; // footer
+        rawFrameSize = rawSize;
+        decodedFrameSize = decodedSize;
+    }
+
+    int getRawFrameSize() {
+        return rawFrameSize;
+    }
+
+    int getDecodedFrameSize() {
+        return decodedFrameSize;
+    }
+
+    int getNumberOf3ByteSamples() {
+        return numberOf3ByteSamples;
+    }
+
+    boolean isAccelerometerEnabled() {
+        return isAccelerometerEnabled;
+    }
+
+    boolean isBatteryVoltageMeasureEnabled() {
+        return isBatteryVoltageMeasureEnabled;
+    }
+
+    int getLeadOffBytes() {
+        return leadOffBytes;
+    }
+
+    /**
+     * Decodes the data frame that starts at the given offset of the frame array
+     * into the given data record. Nothing is allocated.
+     *
+     * @param frame      array with the raw frame
+     * @param offset     position of the frame start marker
+     * @param dataRecord array to write decoded samples to (size >= decodedFrameSize)
+     * @param accPrev    previous accelerometer values (used and updated
+     *                   in accelerometer one channel mode)
+     * @return record short number (unsigned 16 bit counter sent by ads)
+     */
+    int decode(byte[] frame, int offset, int[] dataRecord, int[] accPrev) {
+        int pos = offset + SAMPLES_OFFSET;
+        int end = pos + 3 * numberOf3ByteSamples;
+        int outIndex = 0;
+        if (noiseDividerShift >= 0) {
+            int shift = noiseDividerShift;
+            int mask = (1 << shift) - 1;
+            for (; pos < end; pos += 3) {
+                int value = (frame[pos + 2] << 16) | (frame[pos + 1] & 0xFF) << 8 | (frame[pos] & 0xFF);
+                // shift with rounding toward zero, exactly as integer division does
+                dataRecord[outIndex++] = (value + ((value >> 31) & mask)) >> shift;
+            }
+        } else {
+            int divider = noiseDivider;
+            for (; pos < end; pos += 3) {
+                int value = (frame[pos + 2] << 16) | (frame[pos + 1] & 0xFF) << 8 | (frame[pos] & 0xFF);
+                dataRecord[outIndex++] = value / divider;
+            }
+        }
+
+        if (isAccelerometerEnabled) {
+            int accX = (frame[pos + 1] << 8) | (frame[pos] & 0xFF);
+            int accY = (frame[pos + 3] << 8) | (frame[pos + 2] & 0xFF);
+            int accZ = (frame[pos + 5] << 8) | (frame[pos + 4] & 0xFF);
+            pos += 6;
+            if (isAccelerometerOneChannelMode) {
+                dataRecord[outIndex++] = Math.abs(accX - accPrev[0]) + Math.abs(accY - accPrev[1]) + Math.abs(accZ - accPrev[2]);
+                accPrev[0] = accX;
+                accPrev[1] = accY;
+                accPrev[2] = accZ;
+            } else {
+                dataRecord[outIndex++] = accX;
+                dataRecord[outIndex++] = accY;
+                dataRecord[outIndex++] = accZ;
+            }
+        }
+
+        if (isBatteryVoltageMeasureEnabled) {
+            dataRecord[outIndex++] = (frame[pos + 1] << 8) | (frame[pos] & 0xFF);
+            pos += 2;
+        }
+
+        if (leadOffBytes == 2) {
+            dataRecord[outIndex] = (frame[pos + 1] << 8) | (frame[pos] & 0xFF);
+        } else if (leadOffBytes == 1) {
+            dataRecord[outIndex] = frame[pos];
+        }
+
+        return (frame[offset + RECORD_NUMBER_OFFSET + 1] & 0xFF) << 8 | (frame[offset + RECORD_NUMBER_OFFSET] & 0xFF);
+    }
+}
@@ -5,6 +5,8 @@ import com.sun.istack.internal.Nullable;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.concurrent.atomic.AtomicLongArray;
+
 class FrameDecoder implements ComportListener {
     private static final Log log = LogFactory.getLog(FrameDecoder.class);
     private static final byte START_FRAME_MARKER = (byte) (0xAA & 0xFF);
@@ -19,38 +21,92 @@ class FrameDecoder implements ComportListener {
     private static final byte MESSAGE_FIRMWARE_MARKER = (byte) (0xA1 & 0xFF);
 
     private int MAX_MESSAGE_SIZE = 7;
-    /*******************************************************************
-     * these fields we need to restore  data records numbers
-     *  from short (sent by ads in 2 bytes) to int
-     *******************************************************************/
-    private static int SHORT_MAX = 65535; // max value of unsigned short
-    private int durationOfShortBlockMs;
-    private int previousRecordShortNumber = -1;
-    private long previousRecordTime;
-    private int startRecordNumber;
-    private int shortBlocksCount;
-    /***************************************************************/
-
     private int frameIndex;
     private int frameSize;
     private int rowFrameSizeInByte;
-    private int numberOf3ByteSamples;
-    private int decodedFrameSizeInInt;
     private byte[] rawFrame;
     private int[] accPrev = new int[3];
+    /*******************************************************************
+     * resync: bytes of the broken frames to be rescanned and statistic.
+     * Statistic is changed only by the decoding thread.
+     * Counters:
+     * <ul>
+     * <li>FRAME_BROKEN message count - number of corruption episodes:
+     * runs of broken frames and garbage bytes between two valid frames.
+     * Rescanning the bytes of a broken frame does not start a new episode</li>
+     * <li>frameErrors - every single frame error (including the ones found while rescanning)</li>
+     * <li>bytesSkipped - bytes discarded as not belonging to any valid frame</li>
+     * <li>framesRecovered - valid frames found by rescanning the bytes of broken frames</li>
+     * <li>framesOutOfOrder - valid data frames dropped as duplicated or out of order</li>
+     * <li>framesRejected - valid data frames dropped because their record counter
+     * did not agree with the arrival time (see {@link RecordClock})</li>
+     * <li>framesLost - data records missing in the records numbering
+     * (not received because of the link or broken by corruption)</li>
+     * </ul>
+     *******************************************************************/
+    private volatile boolean isResyncEnabled = true;
+    private final byte[] rescanBuffer;
+    private int rescanStart;
+    private int rescanEnd;
+    private boolean isRescanning;
+    private boolean isFrameRescanned;
+    // true from the first frame error till the next valid frame
+    private boolean isCorruptionEpisode;
+    private volatile long frameErrors;
+    private int lastRecordNumber = -1;
+    private volatile long bytesSkipped;
+    private volatile long framesRecovered;
+    private volatile long framesLost;
+    private volatile long framesOutOfOrder;
+    private volatile long framesRejected;
+    /***************************************************************/
+
+    /*******************************************************************
+     * aggregated messages and frame errors statistic
+     *******************************************************************/
+    private static final int ERRORS_SUMMARY_PERIOD_MS = 1000;
+    private static final int FRAME_BROKEN_INDEX = AdsMessageType.FRAME_BROKEN.ordinal();
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final String TOO_BIG_MESSAGE_MSG = "Invalid message frame. Too big frame size.";
+    private static final String NO_MESSAGE_STOP_MARKER_MSG = "Invalid message frame. No stop frame marker.";
+    private static final String NO_DATA_STOP_MARKER_MSG = "Invalid data frame. No stop frame marker.";
+    private static final String UNRECOGNIZED_BYTE_MSG = "Unrecognized byte received.";
+    // number of received messages (and frame errors) of every AdsMessageType
+    private final AtomicLongArray messageCounts = new AtomicLongArray(AdsMessageType.values().length);
+    private volatile boolean isErrorDetailsEnabled;
+    private boolean isErrorsSummaryNotified;
+    private long lastErrorsSummaryTime;
+    private long lastErrorsSummaryErrors;
+    private long lastErrorsSummaryBytesSkipped;
+    /***************************************************************/
     private final AdsConfig adsConfig;
+    // null if adsConfig is null (decoder handles only messages)
+    private final FrameDecodePlan decodePlan;
+    // reusable data record. Listeners must copy it if they need it after notification
+    private final int[] decodedFrame;
+    // restores data records numbers and times. Null if adsConfig is null
+    private final RecordClock recordClock;
     private volatile NumberedDataRecordListener dataListener = new NullDataListener();
     private volatile MessageListener messageListener = new NullMessageListener();
 
     FrameDecoder(@Nullable AdsConfig configuration) {
         if (configuration != null) {
-            durationOfShortBlockMs = (int) (configuration.getDurationOfDataRecord() * 1000 * SHORT_MAX);
+            recordClock = new RecordClock(configuration.getDurationOfDataRecord());
+        } else {
+            recordClock = null;
         }
         adsConfig = configuration;
-        numberOf3ByteSamples = getNumberOf3ByteSamples();
-        rowFrameSizeInByte = getRawFrameSize();
-        decodedFrameSizeInInt = getDecodedFrameSize();
+        if (configuration != null) {
+            decodePlan = new FrameDecodePlan(configuration);
+            rowFrameSizeInByte = decodePlan.getRawFrameSize();
+            decodedFrame = new int[decodePlan.getDecodedFrameSize()];
+        } else {
+            decodePlan = null;
+            rowFrameSizeInByte = 0;
+            decodedFrame = new int[0];
+        }
         rawFrame = new byte[Math.max(rowFrameSizeInByte, MAX_MESSAGE_SIZE)];
+        rescanBuffer = new byte[rawFrame.length];
         log.info("frame size: " + rowFrameSizeInByte + " bytes");
     }
 
@@ -82,11 +138,72 @@ class FrameDecoder implements ComportListener {
         messageListener = new NullMessageListener();
     }
 
+    /**
+     * Chunk mode. Scans the whole chunk for frame boundaries and
+     * if a complete and valid frame (data record or message) starts at the current position
+     * decodes it straight from the chunk without copying it byte by byte to rawFrame.
+     * Frames split between chunks or broken frames are handled by
+     * the byte-wise state machine {@link #onByteReceived(byte)}.
+     */
+    @Override
+    public void onBytesReceived(byte[] buf, int off, int len) {
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (frameIndex == 0) {
+                int size = completeFrameSize(buf, i, end);
+                if (size > 0) {
+                    onFrameReceived(buf, i, size);
+                    i += size;
+                    continue;
+                }
+            }
+            onByteReceived(buf[i]);
+            i++;
+        }
+    }
+
+    /**
+     * @return size of the complete valid frame that starts at the given position
+     * of the chunk or -1 if there is no such frame
+     */
+    private int completeFrameSize(byte[] buf, int pos, int end) {
+        if (end - pos < 3 || buf[pos] != START_FRAME_MARKER) {
+            return -1;
+        }
+        int size;
+        if (buf[pos + 1] == START_FRAME_MARKER) {
+            size = rowFrameSizeInByte;
+        } else if (buf[pos + 1] == MESSAGE_MARKER) {
+            size = buf[pos + 2] & 0xFF;
+            if (size > MAX_MESSAGE_SIZE) {
+                return -1;
+            }
+        } else {
+            return -1;
+        }
+        if (size < 5 || end - pos < size || buf[pos + size - 1] != STOP_FRAME_MARKER) {
+            return -1;
+        }
+        return size;
+    }
+
     @Override
     public void onByteReceived(byte inByte) {
+        isRescanning = false;
+        handleByte(inByte);
+        // bytes of the broken frames are rescanned to find the frames started inside them
+        isRescanning = true;
+        while (rescanStart < rescanEnd) {
+            handleByte(rescanBuffer[rescanStart++]);
+        }
+    }
+
+    private void handleByte(byte inByte) {
         if (frameIndex == 0 && inByte == START_FRAME_MARKER) {
             rawFrame[frameIndex] = inByte;
             frameIndex++;
+            isFrameRescanned = isRescanning;
         } else if (frameIndex == 1 && inByte == START_FRAME_MARKER) {  //receiving data record
             rawFrame[frameIndex] = inByte;
             frameSize = rowFrameSizeInByte;
@@ -104,9 +221,8 @@ class FrameDecoder implements ComportListener {
                     frameSize = msg_size;
 
                 } else {
-                    String infoMsg = "Invalid message frame. Too big frame size. Received byte = " + byteToHexString(inByte) + ",  max message size: "+ MAX_MESSAGE_SIZE + ". Frame index = " + (frameIndex - 1);
-                    notifyMessageListeners(AdsMessageType.FRAME_BROKEN, infoMsg);
-                    frameIndex = 0;
+                    onFrameBroken(frameIndex);
+                    onFrameError(TOO_BIG_MESSAGE_MSG, inByte, 2);
                 }
             }
         } else if (frameIndex > 2 && frameIndex < (frameSize - 1)) {
@@ -115,63 +231,234 @@ class FrameDecoder implements ComportListener {
         } else if (frameIndex == (frameSize - 1)) {
             rawFrame[frameIndex] = inByte;
             if (inByte == STOP_FRAME_MARKER) {
-                onFrameReceived();
+                if (isFrameRescanned) {
+                    framesRecovered++;
+                }
+                onFrameReceived(rawFrame, 0, frameSize);
+                frameIndex = 0;
             } else {
-                String infoMsg = "Invalid data frame. ";
+                int index = frameIndex;
+                onFrameBroken(index + 1);
                 if(rawFrame[1] == MESSAGE_MARKER) {
-                    infoMsg = "Invalid message frame. ";
+                    onFrameError(NO_MESSAGE_STOP_MARKER_MSG, inByte, index);
+                } else {
+                    onFrameError(NO_DATA_STOP_MARKER_MSG, inByte, index);
                 }
-                infoMsg = infoMsg + "No stop frame marker. Received byte = " + byteToHexString(inByte) + ". Frame index = " + frameIndex;
-                notifyMessageListeners(AdsMessageType.FRAME_BROKEN, infoMsg);
             }
-            frameIndex = 0;
         } else {
-            String infoMsg = "Unrecognized byte received: " + byteToHexString(inByte);
-            notifyMessageListeners(AdsMessageType.FRAME_BROKEN, infoMsg);
+            int index = frameIndex;
+            if (index == 0) {
+                bytesSkipped++;
+            } else {
+                rawFrame[index] = inByte;
+                onFrameBroken(index + 1);
+            }
+            onFrameError(UNRECOGNIZED_BYTE_MSG, inByte, index);
+        }
+    }
 
-            frameIndex = 0;
+    /**
+     * Frame errors may come in thousands per second on a noisy link so by default
+     * they are only counted and reported as a summary not often than once per
+     * ERRORS_SUMMARY_PERIOD_MS. Every error is reported separately (with the received byte)
+     * only if error details are enabled.
+     */
+    private void onFrameError(String errMsg, byte inByte, int frameIndex) {
+        frameErrors++;
+        if (!isCorruptionEpisode) {
+            // the errors that follow (rescanning of the same bytes) belong to the same episode
+            isCorruptionEpisode = true;
+            messageCounts.lazySet(FRAME_BROKEN_INDEX, messageCounts.get(FRAME_BROKEN_INDEX) + 1);
+        }
+        if (isErrorDetailsEnabled) {
+            String infoMsg = errMsg + " Received byte = " + byteToHexString(inByte) + ". Frame index = " + frameIndex;
+            messageListener.onMessage(AdsMessageType.FRAME_BROKEN, infoMsg);
+            lastErrorsSummaryErrors = messageCounts.get(FRAME_BROKEN_INDEX);
+            lastErrorsSummaryBytesSkipped = bytesSkipped;
+        } else {
+            notifyErrorsSummaryIfTime();
         }
     }
 
-    private void onFrameReceived() {
+    private void notifyErrorsSummaryIfTime() {
+        long time = System.nanoTime();
+        long periodNs = time - lastErrorsSummaryTime;
+        if (isErrorsSummaryNotified && periodNs < ERRORS_SUMMARY_PERIOD_MS * 1000000L) {
+            return;
+        }
+        long errors = messageCounts.get(FRAME_BROKEN_INDEX);
+        StringBuilder sb = new StringBuilder("Corruption episodes (broken frames): ");
+        sb.append(errors - lastErrorsSummaryErrors);
+        sb.append(", bytes skipped: ").append(bytesSkipped - lastErrorsSummaryBytesSkipped);
+        if (isErrorsSummaryNotified) {
+            sb.append(" in the last ").append(periodNs / 1000000L).append(" ms");
+        }
+        lastErrorsSummaryTime = time;
+        isErrorsSummaryNotified = true;
+        lastErrorsSummaryErrors = errors;
+        lastErrorsSummaryBytesSkipped = bytesSkipped;
+        messageListener.onMessage(AdsMessageType.FRAME_BROKEN, sb.toString());
+    }
+
+    /**
+     * Broken frame handling. Without resync all received bytes of the broken frame
+     * are discarded. In resync mode only the first byte (start marker of the broken frame)
+     * is discarded and the rest bytes are rescanned, so that a valid frame started
+     * inside the broken one is not lost.
+     *
+     * @param receivedBytes number of the broken frame bytes stored in rawFrame
+     */
+    private void onFrameBroken(int receivedBytes) {
+        frameIndex = 0;
+        if (!isResyncEnabled) {
+            bytesSkipped += receivedBytes;
+            return;
+        }
+        bytesSkipped++;
+        int n = receivedBytes - 1;
+        // bytes to rescan are placed before the not yet rescanned ones
+        int remaining = rescanEnd - rescanStart;
+        System.arraycopy(rescanBuffer, rescanStart, rescanBuffer, n, remaining);
+        System.arraycopy(rawFrame, 1, rescanBuffer, 0, n);
+        rescanStart = 0;
+        rescanEnd = n + remaining;
+    }
+
+    /**
+     * Resync mode is enabled by default
+     */
+    public void setResyncEnabled(boolean isResyncEnabled) {
+        this.isResyncEnabled = isResyncEnabled;
+    }
+
+    public boolean isResyncEnabled() {
+        return isResyncEnabled;
+    }
+
+    /**
+     * If enabled every frame error is reported by a separate FRAME_BROKEN message
+     * with the received byte. Otherwise (default) frame errors are reported
+     * by periodic summary messages
+     */
+    public void setErrorDetailsEnabled(boolean isErrorDetailsEnabled) {
+        this.isErrorDetailsEnabled = isErrorDetailsEnabled;
+    }
+
+    /**
+     * @return number of received messages of the given type.
+     * For FRAME_BROKEN - number of corruption episodes (runs of broken frames
+     * and garbage bytes between two valid frames)
+     */
+    public long getMessageCount(AdsMessageType messageType) {
+        return messageCounts.get(messageType.ordinal());
+    }
+
+    /**
+     * @return number of all frame errors. One corrupted frame may give several errors
+     * because its bytes are rescanned
+     */
+    public long getFrameErrors() {
+        return frameErrors;
+    }
+
+    /**
+     * @return number of received bytes that were discarded as not belonging to any valid frame
+     */
+    public long getBytesSkipped() {
+        return bytesSkipped;
+    }
+
+    /**
+     * @return number of valid frames found by rescanning the bytes of broken frames
+     */
+    public long getFramesRecovered() {
+        return framesRecovered;
+    }
+
+    /**
+     * @return number of data frames that were dropped because their numbers were not bigger
+     * than the number of the previous frame (duplicated or out of order frames)
+     */
+    public long getFramesOutOfOrder() {
+        return framesOutOfOrder;
+    }
+
+    /**
+     * @return number of data frames that were dropped because their record counters
+     * were rejected by the record clock (probably corrupted counters)
+     */
+    public long getFramesRejected() {
+        return framesRejected;
+    }
+
+    /**
+     * @return clock model of the data records or null if the decoder handles only messages
+     */
+    public RecordClock getRecordClock() {
+        return recordClock;
+    }
+
+    /**
+     * @return number of data records missing in the records numbering (gaps in data records numbers).
+     * It includes the records not received because of the link
+     * as well as the records whose frames were broken by corruption
+     */
+    public long getFramesLost() {
+        return framesLost;
+    }
+
+    /**
+     * @param frame  array containing the frame
+     * @param offset position of the frame start marker in the array
+     * @param size   frame size in bytes
+     */
+    private void onFrameReceived(byte[] frame, int offset, int size) {
+        isCorruptionEpisode = false;
+        // errors not included in the last summary are reported after the storm ends
+        if (lastErrorsSummaryErrors != messageCounts.get(FRAME_BROKEN_INDEX)) {
+            notifyErrorsSummaryIfTime();
+        }
         // Frame = \xAA\xAA... => frame[0] and frame[1] = START_FRAME_MARKER - data
-        if (rawFrame[1] == START_FRAME_MARKER) {
-            onDataRecordReceived();
+        if (frame[offset + 1] == START_FRAME_MARKER) {
+            onDataRecordReceived(frame, offset);
         }
         // Frame = \xAA\xA5... => frame[0] = START_FRAME_MARKER and frame[1] = MESSAGE_MARKER - massage
-        if (rawFrame[1] == MESSAGE_MARKER) {
-            onMessageReceived();
+        if (frame[offset + 1] == MESSAGE_MARKER) {
+            onMessageReceived(frame, offset, size);
         }
     }
 
-    private void onMessageReceived() {
+    private void onMessageReceived(byte[] frame, int offset, int size) {
         // hardwareConfigMessage: xAA|xA5|x07|xA4|x02|x01|x55 =>
         // START_FRAME|MESSAGE_MARKER|number_of_bytes|HARDWARE_CONFIG|number_of_ads_channels|???|STOP_FRAME
         //  - reserved, power button, 2ADS channels, 1 accelerometer
 
         // stop recording message: \xAA\xA5\x05\xA5\x55
         // hello message: \xAA\xA5\x05\xA0\x55
+        byte messageByte3 = messageByte(frame, offset, size, 3);
+        byte messageByte4 = messageByte(frame, offset, size, 4);
+        byte messageByte5 = messageByte(frame, offset, size, 5);
         AdsMessageType adsMessageType = null;
         String info = "";
-        if (rawFrame[3] == MESSAGE_HELLO_MARKER) {
+        if (messageByte3 == MESSAGE_HELLO_MARKER) {
             adsMessageType = AdsMessageType.HELLO;
             info = "Hello message received";
-        } else if (rawFrame[3] == MESSAGE_STOP_RECORDING_MARKER) {
+        } else if (messageByte3 == MESSAGE_STOP_RECORDING_MARKER) {
             adsMessageType = AdsMessageType.STOP_RECORDING;
             info = "Stop recording message received";
-        } else if (rawFrame[3] == MESSAGE_FIRMWARE_MARKER) {
+        } else if (messageByte3 == MESSAGE_FIRMWARE_MARKER) {
             adsMessageType = AdsMessageType.FIRMWARE;
             info = "Firmware version message received";
-        } else if (rawFrame[3] == MESSAGE_HARDWARE_CONFIG_MARKER && rawFrame[4] == MESSAGE_2CH_MARKER) {
+        } else if (messageByte3 == MESSAGE_HARDWARE_CONFIG_MARKER && messageByte4 == MESSAGE_2CH_MARKER) {
             adsMessageType = AdsMessageType.ADS_2_CHANNELS;
             info = "Ads_2channel message received";
-        } else if (rawFrame[3] == MESSAGE_HARDWARE_CONFIG_MARKER && rawFrame[4] == MESSAGE_8CH_MARKER) {
+        } else if (messageByte3 == MESSAGE_HARDWARE_CONFIG_MARKER && messageByte4 == MESSAGE_8CH_MARKER) {
             adsMessageType = AdsMessageType.ADS_8_CHANNELS;
             info = "Ads_8channel message received";
-        } else if (((rawFrame[3] & 0xFF) == 0xA3) && ((rawFrame[5] & 0xFF) == 0x01)) {
+        } else if (((messageByte3 & 0xFF) == 0xA3) && ((messageByte5 & 0xFF) == 0x01)) {
             adsMessageType = AdsMessageType.LOW_BATTERY;
             info = "Low battery message received";
-        } else if (((rawFrame[3] & 0xFF) == 0xA2) && ((rawFrame[5] & 0xFF) == 0x04)) {
+        } else if (((messageByte3 & 0xFF) == 0xA2) && ((messageByte5 & 0xFF) == 0x04)) {
             info = "TX fail message received";
             adsMessageType = AdsMessageType.TX_FAIL;
         } else {
@@ -182,152 +469,36 @@ class FrameDecoder implements ComportListener {
         notifyMessageListeners(adsMessageType, info);
     }
 
-    private void onDataRecordReceived() {
-        int[] decodedFrame = new int[decodedFrameSizeInInt];
-        int rawFrameOffset = 4;
-        int decodedFrameOffset = 0;
-        for (int i = 0; i < numberOf3ByteSamples; i++) {
-            decodedFrame[decodedFrameOffset++] = bytesToSignedInt(rawFrame[rawFrameOffset], rawFrame[rawFrameOffset + 1], rawFrame[rawFrameOffset + 2]) / adsConfig.getNoiseDivider();
-            rawFrameOffset += 3;
-        }
-
-        if (adsConfig.isAccelerometerEnabled()) {
-            int[] accVal = new int[3];
-            int accSum = 0;
-            for (int i = 0; i < 3; i++) {
-//                decodedFrame[decodedFrameOffset++] = AdsUtils.littleEndianBytesToInt(rawFrame[rawFrameOffset], rawFrame[rawFrameOffset + 1]);
-                accVal[i] = bytesToSignedInt(rawFrame[rawFrameOffset], rawFrame[rawFrameOffset + 1]);
-                rawFrameOffset += 2;
-            }
-            if (adsConfig.isAccelerometerOneChannelMode()) {
-                for (int i = 0; i < accVal.length; i++) {
-                    accSum += Math.abs(accVal[i] - accPrev[i]);
-                    accPrev[i] = accVal[i];
-                }
-                decodedFrame[decodedFrameOffset++] = accSum;
-            } else {
-                for (int i = 0; i < accVal.length; i++) {
-                    decodedFrame[decodedFrameOffset++] = accVal[i];
-                }
-            }
-        }
-
-        if (adsConfig.isBatteryVoltageMeasureEnabled()) {
-            decodedFrame[decodedFrameOffset++] = bytesToSignedInt(rawFrame[rawFrameOffset], rawFrame[rawFrameOffset + 1]);
-            rawFrameOffset += 2;
-        }
-
-        if (adsConfig.isLeadOffEnabled()) {
-            if (adsConfig.getAdsChannelsCount() == 8) {
-                // 2 bytes for 8 channels
-                decodedFrame[decodedFrameOffset++] = bytesToSignedInt(rawFrame[rawFrameOffset], rawFrame[rawFrameOffset + 1]);
-                rawFrameOffset += 2;
-            } else {
-                // 1 byte for 2 channels
-                decodedFrame[decodedFrameOffset++] = rawFrame[rawFrameOffset];
-                rawFrameOffset += 1;
-            }
-        }
-
-        int recordShortNumber = bytesToUnsignedInt(rawFrame[2], rawFrame[3]);
-        notifyDataListeners(decodedFrame, recordShortNumberToInt(recordShortNumber));
-    }
-
-
-    private int recordShortNumberToInt(int recordShortNumber) {
-        long time = System.currentTimeMillis();
-
-        if (previousRecordShortNumber == -1) {
-            previousRecordShortNumber = recordShortNumber;
-            previousRecordTime = time;
-            startRecordNumber = recordShortNumber;
-            return 0;
-        }
-        int recordsDistance = recordShortNumber - previousRecordShortNumber;
-        if (recordsDistance <= 0) {
-            shortBlocksCount++;
-            recordsDistance += SHORT_MAX;
-        }
-        if (time - previousRecordTime > durationOfShortBlockMs / 2 ) {
-            long blocks =  (time - previousRecordTime) / durationOfShortBlockMs;
-            long timeRecordsDistance = (time - previousRecordTime) % durationOfShortBlockMs;
-            // if recordsDistance big and timeRecordsDistance small
-            if (recordsDistance > SHORT_MAX * 2 / 3 && timeRecordsDistance < durationOfShortBlockMs / 3) {
-                blocks--;
-            }
-            // if recordsDistance small and timeRecordsDistance big
-            if (recordsDistance < SHORT_MAX / 3 && timeRecordsDistance > durationOfShortBlockMs * 2 / 3) {
-                blocks++;
-            }
-
-            shortBlocksCount += blocks;
-        }
-
-        previousRecordTime = time;
-        previousRecordShortNumber = recordShortNumber;
-        return shortBlocksCount * SHORT_MAX + recordShortNumber - startRecordNumber;
-    }
-
-
-    private int getRawFrameSize() {
-        if (adsConfig == null) {
-            return 0;
-        }
-        int result = 2;//маркер начала фрейма
-        result += 2; // счечик фреймов
-        result += 3 * getNumberOf3ByteSamples();
-        if (adsConfig.isAccelerometerEnabled()) {
-            result += 6;
-        }
-        if (adsConfig.isBatteryVoltageMeasureEnabled()) {
-            result += 2;
-        }
-        if (adsConfig.isLeadOffEnabled()) {
-            if (adsConfig.getAdsChannelsCount() == 8) {
-                result += 2;
-            } else {
-                result += 1;
-            }
+    /**
+     * Bytes beyond the message size do not belong to the message, so we do not read them
+     */
+    private static byte messageByte(byte[] frame, int offset, int size, int index) {
+        if (index < size) {
+            return frame[offset + index];
         }
-        result += 1;//footer
-        return result;
+        return 0;
     }
 
-    private int getDecodedFrameSize() {
-        if (adsConfig == null) {
-            return 0;
+    private void onDataRecordReceived(byte[] frame, int offset) {
+        int recordShortNumber = decodePlan.decode(frame, offset, decodedFrame, accPrev);
+        int recordNumber = (int) recordClock.onRecordReceived(recordShortNumber, System.nanoTime());
+        if (recordNumber < 0) {
+            // counter does not agree with the time
+            framesRejected++;
+            return;
         }
-        int result = 0;
-        result += getNumberOf3ByteSamples();
-        if (adsConfig.isAccelerometerEnabled()) {
-            result = result + (adsConfig.isAccelerometerOneChannelMode() ? 1 : 3);
+        if (recordNumber <= lastRecordNumber) {
+            // duplicated or out of order frame
+            framesOutOfOrder++;
+            return;
         }
-        if (adsConfig.isBatteryVoltageMeasureEnabled()) {
-            result += 1;
+        if (lastRecordNumber >= 0 && recordNumber > lastRecordNumber + 1) {
+            framesLost += recordNumber - lastRecordNumber - 1;
         }
-        if (adsConfig.isLeadOffEnabled()) {
-            result += 1;
-        }
-
-        return result;
+        lastRecordNumber = recordNumber;
+        notifyDataListeners(decodedFrame, recordNumber);
     }
 
-    private int getNumberOf3ByteSamples() {
-        if (adsConfig == null) {
-            return 0;
-        }
-        int result = 0;
-
-        Divider[] dividers = Divider.values();
-        int maxDivider = dividers[dividers.length - 1].getValue();
-        for (int i = 0; i < adsConfig.getAdsChannelsCount(); i++) {
-            if (adsConfig.isAdsChannelEnabled(i)) {
-                int divider = adsConfig.getAdsChannelDivider(i);
-                result += (maxDivider / divider);
-            }
-        }
-        return result;
-    }
 
     private void notifyDataListeners(int[] dataRecord, int recordNumber) {
         dataListener.onDataRecordReceived(dataRecord, recordNumber);
@@ -335,23 +506,11 @@ class FrameDecoder implements ComportListener {
     }
 
     private void notifyMessageListeners(AdsMessageType adsMessageType, String additionalInfo) {
+        int index = adsMessageType.ordinal();
+        messageCounts.lazySet(index, messageCounts.get(index) + 1);
         messageListener.onMessage(adsMessageType, additionalInfo);
     }
 
-    /* Java int BIG_ENDIAN, Byte order: LITTLE_ENDIAN  */
-    private static int bytesToSignedInt(byte... b) {
-        switch (b.length) {
-            case 1:
-                return b[0];
-            case 2:
-                return (b[1] << 8) | (b[0] & 0xFF);
-            case 3:
-                return (b[2] << 16) | (b[1] & 0xFF) << 8 | (b[0] & 0xFF);
-            default:
-                return (b[3] << 24) | (b[2] & 0xFF) << 16 | (b[1] & 0xFF) << 8 | (b[0] & 0xFF);
-        }
-    }
-
     /**
      * Convert given LITTLE_ENDIAN ordered bytes to BIG_ENDIAN 32-bit UNSIGNED int.
      * Available number of input bytes: 4, 3, 2 or 1.
@@ -379,7 +538,8 @@ class FrameDecoder implements ComportListener {
 
 
     private static String byteToHexString(byte b) {
-        return String.format("%02X ", b);
+        char[] chars = {HEX_DIGITS[(b >> 4) & 0x0F], HEX_DIGITS[b & 0x0F]};
+        return new String(chars);
     }
 
     class NullMessageListener implements MessageListener {
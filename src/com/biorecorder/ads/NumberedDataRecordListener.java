@@ -2,6 +2,10 @@ package com.biorecorder.ads;
 
 /**
  * Created by galafit on 30/5/18.
+ * <p>
+ * The dataRecord array is reused by the sender for the next records.
+ * So it is valid only during the call and listeners that need it
+ * afterwards (for example to hand it to another thread) must copy it.
  */
 public interface NumberedDataRecordListener {
     public void onDataRecordReceived(int[] dataRecord, int dataRecordNumber);
@@ -0,0 +1,303 @@
+package com.biorecorder.ads;
+
+/**
+ * Clock model of the Ads data records.
+ * <p>
+ * Ads numbers data records by a 16 bit counter. RecordClock restores
+ * the full monotonic record number from it and estimates online
+ * the real duration of data record (the device sample clock against the host clock)
+ * so that every record gets a precise host timestamp.
+ * <p>
+ * The arrival time (System.nanoTime, not affected by the wall clock jumps)
+ * of every record is fitted by the line: time = intercept + slope * recordNumber.
+ * The line is estimated by the exponentially weighted running linear regression
+ * (old records are gradually forgotten so the model follows the clock drift).
+ * Records delayed by the link (bluetooth buffering, bursts) are
+ * detected as outliers and do not spoil the model.
+ * <p>
+ * Counter wraparound is resolved by choosing the record number (among all
+ * numbers with the given 16 bit counter) nearest to the number predicted by the model.
+ * So even a long communication break is resolved correctly.
+ * <p>
+ * A record whose number jumps ahead and is far from the model prediction
+ * (corrupted counter) is rejected: it does not change the last record number and the model.
+ * If such records come consecutively numbered RESYNC_RECORDS times in a row
+ * the new sequence is accepted (device restart, clock jump) and the model is restarted from it.
+ * <p>
+ * Records are numbered from 0 (the first received record).
+ * RecordClock is updated by one thread (frame decoder) but
+ * the estimates may be read from any thread.
+ */
+public class RecordClock {
+    private static final int COUNTER_MODULUS = 1 << 16;
+    // weight of the old records is multiplied by FORGETTING_FACTOR with every new record
+    private static final double FORGETTING_FACTOR = 0.999;
+    // number of records before the fitted model is used
+    private static final int MIN_RECORDS_TO_FIT = 20;
+    // residuals bigger than OUTLIER_THRESHOLD * residuals standard deviation are outliers
+    private static final double OUTLIER_THRESHOLD = 4;
+    // residuals less than MIN_OUTLIER_NS (usual host scheduling jitter) are never outliers
+    private static final double MIN_OUTLIER_NS = 2.0E6;
+    // after so many outliers in a row the model is considered to be wrong and is restarted
+    private static final int MAX_OUTLIERS_IN_ROW = 100;
+    // a jump ahead whose residual is bigger than so many record durations (and the outlier threshold)
+    // is considered to be a corrupted counter
+    private static final double MAX_JUMP_RESIDUAL_RECORDS = 32;
+    // number of consecutive records of the rejected sequence after which it is accepted
+    private static final int RESYNC_RECORDS = 8;
+
+    private final double nominalRecordDurationNs;
+
+    /*******************************************************************
+     * model state. Changed only by the updating thread
+     *******************************************************************/
+    private int firstCounter = -1;
+    private long lastRecordNumber = -1;
+    private double weight;
+    private double meanX;
+    private double meanY;
+    private double covXY;
+    private double varX;
+    private double residualWeight;
+    private double residualVar;
+    private int fitRecords;
+    private int outliersInRow;
+    // candidate sequence of the rejected records
+    private long candidateNumber = -1;
+    private int candidateRecords;
+    /***************************************************************/
+
+    private volatile long firstRecordNanos;
+    private volatile long firstRecordMillis;
+    private volatile double slopeNs;
+    private volatile double interceptNs;
+    private volatile long recordsCount;
+    private volatile long outliersCount;
+    private volatile long rejectedCount;
+
+    /**
+     * @param nominalRecordDuration nominal duration of data record in seconds
+     */
+    public RecordClock(double nominalRecordDuration) {
+        nominalRecordDurationNs = nominalRecordDuration * 1.0E9;
+        slopeNs = nominalRecordDurationNs;
+    }
+
+    /**
+     * Registers the received record and restores its full number.
+     *
+     * @param recordCounter 16 bit record counter sent by Ads
+     * @param arrivalNanos  System.nanoTime() of the record receiving
+     * @return record number (from 0). If the number is not bigger than the previous one
+     * the record is a duplicate or came out of order.
+     * -1 if the record is rejected (its counter is probably corrupted)
+     */
+    public long onRecordReceived(int recordCounter, long arrivalNanos) {
+        if (firstCounter < 0) {
+            firstCounter = recordCounter;
+            firstRecordNanos = arrivalNanos;
+            firstRecordMillis = System.currentTimeMillis();
+            lastRecordNumber = 0;
+            interceptNs = 0;
+            addPoint(0, 0);
+            recordsCount = 1;
+            return 0;
+        }
+        double y = arrivalNanos - firstRecordNanos;
+        double predictedNumber = (y - interceptNs) / slopeNs;
+        double target = Math.max(predictedNumber, lastRecordNumber + 1);
+        int counterOffset = (recordCounter - firstCounter) & (COUNTER_MODULUS - 1);
+        long wraps = Math.round((target - counterOffset) / COUNTER_MODULUS);
+        long recordNumber = counterOffset + wraps * COUNTER_MODULUS;
+        if (recordNumber <= lastRecordNumber) {
+            return recordNumber;
+        }
+        double residual = y - (interceptNs + slopeNs * recordNumber);
+        double outlierThresholdNs = Math.max(OUTLIER_THRESHOLD * Math.sqrt(residualVar), MIN_OUTLIER_NS);
+        if (recordNumber > lastRecordNumber + 1
+                && Math.abs(residual) > Math.max(outlierThresholdNs, MAX_JUMP_RESIDUAL_RECORDS * slopeNs)) {
+            // the jump does not agree with the time: corrupted counter or a new sequence
+            if (recordNumber == candidateNumber + 1) {
+                candidateRecords++;
+            } else {
+                candidateRecords = 1;
+            }
+            candidateNumber = recordNumber;
+            if (candidateRecords < RESYNC_RECORDS) {
+                rejectedCount++;
+                return -1;
+            }
+            // the new sequence is consistent. Restart the model from it
+            weight = 0;
+            varX = 0;
+            covXY = 0;
+            fitRecords = 0;
+            residualWeight = 0;
+            residualVar = 0;
+            outliersInRow = 0;
+            candidateNumber = -1;
+            lastRecordNumber = recordNumber;
+            recordsCount = recordNumber + 1;
+            addPoint(recordNumber, y);
+            return recordNumber;
+        }
+        candidateNumber = -1;
+        lastRecordNumber = recordNumber;
+        recordsCount = recordNumber + 1;
+
+        if (fitRecords >= MIN_RECORDS_TO_FIT && Math.abs(residual) > outlierThresholdNs) {
+            outliersCount++;
+            outliersInRow++;
+            if (outliersInRow < MAX_OUTLIERS_IN_ROW) {
+                return recordNumber;
+            }
+            // the model does not describe the records any more (device restart or clock jump)
+            weight = 0;
+            varX = 0;
+            covXY = 0;
+            fitRecords = 0;
+            residualWeight = 0;
+            residualVar = 0;
+        }
+        outliersInRow = 0;
+        residualWeight = FORGETTING_FACTOR * residualWeight + 1;
+        residualVar += (residual * residual - residualVar) / residualWeight;
+        addPoint(recordNumber, y);
+        return recordNumber;
+    }
+
+    /**
+     * Exponentially weighted running regression (Welford-like update
+     * for numerical stability)
+     */
+    private void addPoint(double x, double y) {
+        weight = FORGETTING_FACTOR * weight + 1;
+        double dx = x - meanX;
+        double dy = y - meanY;
+        meanX += dx / weight;
+        meanY += dy / weight;
+        varX = FORGETTING_FACTOR * varX + dx * (x - meanX);
+        covXY = FORGETTING_FACTOR * covXY + dx * (y - meanY);
+        fitRecords++;
+        if (fitRecords >= MIN_RECORDS_TO_FIT && varX > 0) {
+            slopeNs = covXY / varX;
+            interceptNs = meanY - slopeNs * meanX;
+        } else {
+            slopeNs = nominalRecordDurationNs;
+            interceptNs = meanY - slopeNs * meanX;
+        }
+    }
+
+    /**
+     * @return estimated duration of data record in seconds
+     */
+    public double getRecordDuration() {
+        return slopeNs / 1.0E9;
+    }
+
+    /**
+     * @return estimated System.nanoTime() of the end (receiving) of the given record
+     */
+    public long getRecordNanoTime(long recordNumber) {
+        return firstRecordNanos + (long) (interceptNs + slopeNs * recordNumber);
+    }
+
+    /**
+     * Inverse of {@link #getRecordNanoTime(long)}. Permits to align
+     * the records of several devices on the common host time axis
+     *
+     * @return estimated (fractional) number of the record received at the given System.nanoTime()
+     */
+    public double getRecordNumber(long nanoTime) {
+        return (nanoTime - firstRecordNanos - interceptNs) / slopeNs;
+    }
+
+    /**
+     * @return estimated time (milliseconds since epoch) of the beginning of the given record
+     */
+    public long getRecordStartTimeMillis(long recordNumber) {
+        double nanos = interceptNs + slopeNs * (recordNumber - 1);
+        return firstRecordMillis + Math.round(nanos / 1.0E6);
+    }
+
+    /**
+     * @return number of records from the first one to the last received one
+     * (including the lost ones)
+     */
+    public long getRecordsCount() {
+        return recordsCount;
+    }
+
+    /**
+     * @return number of records which arrival time was too far from the model
+     * (delayed by the link)
+     */
+    public long getOutliersCount() {
+        return outliersCount;
+    }
+
+    /**
+     * @return number of rejected records (whose counter did not agree with the time)
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Unit Test. Usage Example.
+     * 20 ms records: one corrupted counter and a real 60 s communication break
+     */
+    public static void main(String[] args) {
+        double recordDuration = 0.02;
+        long recordNs = 20000000L;
+        RecordClock clock = new RecordClock(recordDuration);
+        long start = 1000000000L;
+        long lastNumber = -1;
+        long lostRecords = 0;
+        long droppedRecords = 0;
+        int corruptedRecord = 5000;
+        int gapStart = 10000;
+        int gapRecords = 3000;
+        int totalRecords = 21000;
+        for (int i = 0; i < totalRecords; i++) {
+            if (i >= gapStart && i < gapStart + gapRecords) {
+                continue;
+            }
+            int counter = i & 0xFFFF;
+            if (i == corruptedRecord) {
+                counter = (counter + 20000) & 0xFFFF;
+            }
+            // +- 1 ms jitter
+            long time = start + i * recordNs + (i * 7919 % 2000000) - 1000000;
+            long number = clock.onRecordReceived(counter, time);
+            if (number <= lastNumber) {
+                droppedRecords++;
+                continue;
+            }
+            if (lastNumber >= 0) {
+                lostRecords += number - lastNumber - 1;
+            }
+            lastNumber = number;
+        }
+        // the corrupted record is dropped and counted as lost
+        boolean isTestOk = droppedRecords == 1 && clock.getRejectedCount() == 1
+                && lostRecords == gapRecords + 1 && lastNumber == totalRecords - 1;
+        System.out.println("dropped: " + droppedRecords + ", lost: " + lostRecords + ", last number: " + lastNumber);
+
+        // counter jumps ahead for good: the new sequence is accepted on the RESYNC_RECORDS-th record
+        long jumpTime = start + totalRecords * recordNs;
+        int jump = 20000;
+        long resyncNumber = -1;
+        for (int i = 0; i < 100; i++) {
+            int counter = (totalRecords + jump + i) & 0xFFFF;
+            long number = clock.onRecordReceived(counter, jumpTime + i * recordNs);
+            if (number >= 0 && resyncNumber < 0) {
+                resyncNumber = number;
+            }
+        }
+        isTestOk = isTestOk && resyncNumber == totalRecords + jump + RESYNC_RECORDS - 1
+                && clock.getRejectedCount() == RESYNC_RECORDS
+                && clock.getRecordsCount() == totalRecords + jump + 100;
+        System.out.println("Is test ok: " + isTestOk);
+    }
+}
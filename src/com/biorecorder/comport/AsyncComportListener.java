@@ -0,0 +1,254 @@
+package com.biorecorder.comport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ComportListener that decouples the comport reading thread
+ * (jSSC event thread) from the byte handling (frame decoding, listeners notification...).
+ * <p>
+ * The comport thread only copies received bytes to the lock-free
+ * {@link ByteRingBuffer} and so never waits for the downstream.
+ * The received bytes are handled in batches (all available bytes at once)
+ * by the underlying listener in the separated «decoding» thread
+ * or in the given executor that may be shared by several comports.
+ * The executor thread is occupied only while there are bytes to handle.
+ * <p>
+ * AsyncComportListener permits to have only ONE underlying listener! So if a new listener set
+ * the old one are automatically removed.
+ * <p>
+ * When the listener is changed or removed (and when the listener is stopped)
+ * the bytes received before and not handled yet are CLEARED (discarded):
+ * they belong to the stream of the old listener and
+ * the new listener (new frame decoder) never gets such stale bytes.
+ * <p>
+ * Ring buffer overflow is logged once per overflow episode (when it starts and when it ends),
+ * lost bytes are counted by {@link #getOverflowCount()}.
+ */
+public class AsyncComportListener implements ComportListener {
+    private static final Log log = LogFactory.getLog(AsyncComportListener.class);
+    public static final int DEFAULT_BUFFER_CAPACITY = 1 << 20; // 1MB
+    private static final int MAX_BATCH_SIZE = 16 * 1024;
+    // after that number of batches the draining is rescheduled to let
+    // the other comports sharing the executor do their work
+    private static final int MAX_BATCHES_PER_DRAIN = 16;
+
+    private final ByteRingBuffer ringBuffer;
+    private final byte[] batch = new byte[MAX_BATCH_SIZE];
+    private final Executor executor;
+    // null if the executor is shared
+    private final ExecutorService ownExecutor;
+    private volatile boolean isStopped;
+    // written only by the draining task
+    private volatile long handledBytesCount;
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    // listener and its discard position are published together
+    private volatile ListenerState listenerState = new ListenerState(new NullComportListener(), 0);
+    // overflow episode state. Used only by the comport thread
+    private boolean isOverflowing;
+    private long overflowCountBefore;
+    // written only by the draining task
+    private volatile long discardedBytesCount;
+
+    public AsyncComportListener(String threadName) {
+        this(DEFAULT_BUFFER_CAPACITY, threadName);
+    }
+
+    /**
+     * @param bufferCapacity capacity of the ring buffer in bytes
+     * @param threadName     name of the «decoding» thread
+     */
+    public AsyncComportListener(int bufferCapacity, final String threadName) {
+        ringBuffer = new ByteRingBuffer(bufferCapacity);
+        ThreadFactory namedThreadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, threadName);
+            }
+        };
+        ownExecutor = Executors.newSingleThreadExecutor(namedThreadFactory);
+        executor = ownExecutor;
+    }
+
+    /**
+     * @param bufferCapacity capacity of the ring buffer in bytes
+     * @param executor       executor (may be shared) to handle the received bytes in.
+     *                       Bytes of this comport are never handled concurrently
+     */
+    public AsyncComportListener(int bufferCapacity, Executor executor) {
+        ringBuffer = new ByteRingBuffer(bufferCapacity);
+        this.executor = executor;
+        ownExecutor = null;
+    }
+
+    /**
+     * Sets the new listener. Bytes received before and not handled yet are discarded
+     */
+    public void setListener(ComportListener listener) {
+        if (listener != null) {
+            listenerState = new ListenerState(listener, ringBuffer.getWritePosition());
+        }
+    }
+
+    /**
+     * Removes the listener. Bytes received before and not handled yet are discarded
+     */
+    public void removeListener() {
+        listenerState = new ListenerState(new NullComportListener(), ringBuffer.getWritePosition());
+    }
+
+    /**
+     * Stops handling (and the own «decoding» thread).
+     * Bytes remaining in the buffer are discarded (not handled).
+     */
+    public void stop() {
+        listenerState = new ListenerState(new NullComportListener(), ringBuffer.getWritePosition());
+        isStopped = true;
+        if (ownExecutor != null) {
+            ownExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void onByteReceived(byte inByte) {
+        onWritten(ringBuffer.write(inByte) ? 0 : 1);
+        scheduleDrain();
+    }
+
+    @Override
+    public void onBytesReceived(byte[] buf, int off, int len) {
+        onWritten(len - ringBuffer.write(buf, off, len));
+        scheduleDrain();
+    }
+
+    /**
+     * Logs the start and the end of the overflow episode (not every lost chunk)
+     */
+    private void onWritten(int lostBytes) {
+        if (lostBytes > 0 && !isOverflowing) {
+            isOverflowing = true;
+            overflowCountBefore = ringBuffer.getOverflowCount() - lostBytes;
+            log.error("Comport ring buffer overflow. Received bytes are lost");
+        } else if (lostBytes == 0 && isOverflowing) {
+            isOverflowing = false;
+            log.error("Comport ring buffer overflow finished. Bytes lost: " + (ringBuffer.getOverflowCount() - overflowCountBefore));
+        }
+    }
+
+    private void scheduleDrain() {
+        if (!isStopped && isDrainScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainTask);
+            } catch (RejectedExecutionException ex) {
+                // listener was stopped. Do nothing
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            int n;
+            int batchesCount = 0;
+            while (!isStopped) {
+                // bytes of the old listener are discarded
+                ListenerState state = listenerState;
+                int discarded = ringBuffer.skipTo(state.discardPosition);
+                if (discarded > 0) {
+                    discardedBytesCount += discarded;
+                }
+                n = ringBuffer.read(batch, 0, batch.length);
+                if (n <= 0) {
+                    break;
+                }
+                state.listener.onBytesReceived(batch, 0, n);
+                handledBytesCount += n;
+                if (++batchesCount == MAX_BATCHES_PER_DRAIN && !ringBuffer.isEmpty()) {
+                    // the flag stays set so nobody else schedules the draining
+                    try {
+                        executor.execute(drainTask);
+                        return;
+                    } catch (RejectedExecutionException ex) {
+                        batchesCount = 0;
+                    }
+                }
+            }
+            isDrainScheduled.set(false);
+            // new bytes could come after the last read but before the flag was reset
+            if (isStopped || ringBuffer.isEmpty() || !isDrainScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return number of received bytes waiting to be handled
+     */
+    public int getBufferedBytes() {
+        return ringBuffer.size();
+    }
+
+    /**
+     * @return total number of bytes handled by the underlying listener
+     */
+    public long getHandledBytesCount() {
+        return handledBytesCount;
+    }
+
+    /**
+     * @return total number of received bytes discarded (not handled) because the listener was changed
+     */
+    public long getDiscardedBytesCount() {
+        return discardedBytesCount;
+    }
+
+    public int getBufferCapacity() {
+        return ringBuffer.capacity();
+    }
+
+    /**
+     * @return max number of bytes that were waiting to be handled at the same time
+     */
+    public int getHighWaterMark() {
+        return ringBuffer.getHighWaterMark();
+    }
+
+    /**
+     * @return total number of bytes lost because the ring buffer was full
+     */
+    public long getOverflowCount() {
+        return ringBuffer.getOverflowCount();
+    }
+
+    /**
+     * Bytes written to the ring buffer before the discard position belong to the old listener
+     */
+    static class ListenerState {
+        final ComportListener listener;
+        final long discardPosition;
+
+        ListenerState(ComportListener listener, long discardPosition) {
+            this.listener = listener;
+            this.discardPosition = discardPosition;
+        }
+    }
+
+    class NullComportListener implements ComportListener {
+        @Override
+        public void onByteReceived(byte inByte) {
+            // do nothing;
+        }
+
+        @Override
+        public void onBytesReceived(byte[] buf, int off, int len) {
+            // do nothing;
+        }
+    }
+}
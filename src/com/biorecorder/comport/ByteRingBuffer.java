@@ -0,0 +1,157 @@
+package com.biorecorder.comport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free bounded ring buffer of bytes for exactly ONE producer thread
+ * and ONE consumer thread (single-producer/single-consumer).
+ * <p>
+ * The producer never blocks: if there is not enough free space
+ * the bytes that do not fit are dropped and counted as overflow.
+ * <p>
+ * Capacity is rounded up to the nearest power of 2.
+ */
+public class ByteRingBuffer {
+    private final byte[] buffer;
+    private final int mask;
+    // position of the next byte to read. Changed only by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // position of the next byte to write. Changed only by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // statistic. Changed only by the producer
+    private volatile int highWaterMark;
+    private volatile long overflowCount;
+
+    /**
+     * @param capacity buffer capacity in bytes
+     * @throws IllegalArgumentException if capacity is less than 1 or bigger then 2^30
+     */
+    public ByteRingBuffer(int capacity) throws IllegalArgumentException {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            String errMsg = "Invalid ring buffer capacity: " + capacity;
+            throw new IllegalArgumentException(errMsg);
+        }
+        int powerOf2Capacity = Integer.highestOneBit(capacity);
+        if (powerOf2Capacity < capacity) {
+            powerOf2Capacity = powerOf2Capacity << 1;
+        }
+        buffer = new byte[powerOf2Capacity];
+        mask = powerOf2Capacity - 1;
+    }
+
+    /**
+     * Producer method. Copies len bytes from the src array to the buffer.
+     *
+     * @return number of actually written bytes. If less than len then
+     * the buffer is full and the rest bytes are dropped
+     */
+    public int write(byte[] src, int off, int len) {
+        long t = tail.get();
+        int free = buffer.length - (int) (t - head.get());
+        int n = Math.min(free, len);
+        if (n > 0) {
+            int index = (int) t & mask;
+            int firstPart = Math.min(n, buffer.length - index);
+            System.arraycopy(src, off, buffer, index, firstPart);
+            System.arraycopy(src, off + firstPart, buffer, 0, n - firstPart);
+            tail.lazySet(t + n);
+            updateHighWaterMark(t + n);
+        }
+        if (n < len) {
+            overflowCount += len - n;
+        }
+        return n;
+    }
+
+    /**
+     * Producer method. Writes one byte to the buffer.
+     *
+     * @return true if the byte was written and false if the buffer is full
+     */
+    public boolean write(byte b) {
+        long t = tail.get();
+        if (t - head.get() >= buffer.length) {
+            overflowCount++;
+            return false;
+        }
+        buffer[(int) t & mask] = b;
+        tail.lazySet(t + 1);
+        updateHighWaterMark(t + 1);
+        return true;
+    }
+
+    /**
+     * Consumer method. Reads up to len available bytes to the dst array.
+     *
+     * @return number of read bytes (0 if the buffer is empty)
+     */
+    public int read(byte[] dst, int off, int len) {
+        long h = head.get();
+        int available = (int) (tail.get() - h);
+        int n = Math.min(available, len);
+        if (n > 0) {
+            int index = (int) h & mask;
+            int firstPart = Math.min(n, buffer.length - index);
+            System.arraycopy(buffer, index, dst, off, firstPart);
+            System.arraycopy(buffer, 0, dst, off + firstPart, n - firstPart);
+            head.lazySet(h + n);
+        }
+        return n;
+    }
+
+    /**
+     * @return total number of bytes written to the buffer. May be called from any thread
+     */
+    public long getWritePosition() {
+        return tail.get();
+    }
+
+    /**
+     * Consumer method. Discards all bytes written before the given write position
+     * (see {@link #getWritePosition()}) that are not read yet.
+     *
+     * @return number of discarded bytes
+     */
+    public int skipTo(long writePosition) {
+        long h = head.get();
+        if (writePosition <= h) {
+            return 0;
+        }
+        head.lazySet(writePosition);
+        return (int) (writePosition - h);
+    }
+
+    private void updateHighWaterMark(long newTail) {
+        int size = (int) (newTail - head.get());
+        if (size > highWaterMark) {
+            highWaterMark = size;
+        }
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return max number of bytes that were simultaneously stored in the buffer
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return total number of bytes dropped because the buffer was full
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+}
@@ -0,0 +1,267 @@
+package com.biorecorder.comport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Comport decorator that writes all bytes received by the underlying comport
+ * (exactly as they come: chunk by chunk with the chunk receiving time)
+ * to the capture file. The file can be replayed later by {@link ReplayComport}.
+ * <p>
+ * Capture file structure:
+ * <br>header: CAPTURE_MAGIC (4 bytes)|version (4 bytes)|capture start time in ms since epoch (8 bytes)
+ * <br>chunks: time since capture start in ns (8 bytes)|number of bytes n (4 bytes)|n bytes
+ * <p>
+ * All numbers are BIG_ENDIAN ordered.
+ * <p>
+ * The comport thread only copies received chunks to the lock-free {@link ByteRingBuffer}
+ * (it never waits for the disk). Chunks are written to the file
+ * in the separated «capture writing» thread. If the writing can not keep up
+ * and the ring buffer overflows the capture is stopped (a capture with holes can not be replayed)
+ * but the data receiving goes on.
+ */
+public class CapturingComport implements Comport {
+    private static final Log log = LogFactory.getLog(CapturingComport.class);
+    static final int CAPTURE_MAGIC = 0x42524341; // "BRCA"
+    static final int CAPTURE_VERSION = 1;
+    static final int CHUNK_HEADER_SIZE = 12;
+    private static final int RING_BUFFER_CAPACITY = 4 * 1024 * 1024;
+    private static final int WRITE_BATCH_SIZE = 64 * 1024;
+    private static final int CLOSE_TIMEOUT_MS = 5000;
+
+    private final Comport comport;
+    private final File captureFile;
+    private final FileChannel fileChannel;
+    private final long startTime;
+    private final ByteRingBuffer ringBuffer = new ByteRingBuffer(RING_BUFFER_CAPACITY);
+    // used only by the comport thread
+    private final ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+    // used only by the writing thread (and by close() after the writing thread is stopped)
+    private final ByteBuffer writeBatch = ByteBuffer.allocate(WRITE_BATCH_SIZE);
+    private final ExecutorService writingExecutor;
+    private final AtomicBoolean isWriteScheduled = new AtomicBoolean(false);
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writeCaptured();
+        }
+    };
+    private volatile ComportListener comportListener = new NullComportListener();
+    private volatile boolean isCaptureOk = true;
+    private volatile long capturedBytes;
+
+    /**
+     * @param comport     comport which received bytes should be captured
+     * @param captureFile file to write captured bytes to
+     * @throws FileNotFoundException if the file can not be created
+     */
+    public CapturingComport(Comport comport, File captureFile) throws FileNotFoundException {
+        this.comport = comport;
+        this.captureFile = captureFile;
+        fileChannel = new RandomAccessFile(captureFile, "rw").getChannel();
+        startTime = System.nanoTime();
+        try {
+            fileChannel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putInt(CAPTURE_MAGIC);
+            header.putInt(CAPTURE_VERSION);
+            header.putLong(System.currentTimeMillis());
+            header.flip();
+            while (header.hasRemaining()) {
+                fileChannel.write(header);
+            }
+        } catch (IOException ex) {
+            isCaptureOk = false;
+            log.error("Failed to write capture file " + captureFile + ". Capture is stopped", ex);
+        }
+        final String threadName = "«Capture» writing thread " + comport.getComportName();
+        writingExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        comport.addListener(new ComportListener() {
+            @Override
+            public void onByteReceived(byte inByte) {
+                capture(new byte[]{inByte}, 0, 1);
+                comportListener.onByteReceived(inByte);
+            }
+
+            @Override
+            public void onBytesReceived(byte[] buf, int off, int len) {
+                capture(buf, off, len);
+                comportListener.onBytesReceived(buf, off, len);
+            }
+        });
+        log.info("Capturing comport " + comport.getComportName() + " to file " + captureFile);
+    }
+
+    /**
+     * Comport thread. Copies the chunk to the ring buffer (whole chunk or nothing)
+     */
+    private void capture(byte[] buf, int off, int len) {
+        if (!isCaptureOk) {
+            return;
+        }
+        long time = System.nanoTime() - startTime;
+        if (ringBuffer.capacity() - ringBuffer.size() < CHUNK_HEADER_SIZE + len) {
+            isCaptureOk = false;
+            log.error("Capture of " + captureFile + " can not keep up with the comport. Capture is stopped");
+            return;
+        }
+        chunkHeader.clear();
+        chunkHeader.putLong(time);
+        chunkHeader.putInt(len);
+        ringBuffer.write(chunkHeader.array(), 0, CHUNK_HEADER_SIZE);
+        ringBuffer.write(buf, off, len);
+        capturedBytes += len;
+        if (isWriteScheduled.compareAndSet(false, true)) {
+            try {
+                writingExecutor.execute(writeTask);
+            } catch (RejectedExecutionException ex) {
+                // comport is closed. Remaining bytes are written by close()
+            }
+        }
+    }
+
+    /**
+     * Writing thread. Writes all captured bytes to the file
+     */
+    private void writeCaptured() {
+        while (true) {
+            writeAvailable();
+            isWriteScheduled.set(false);
+            // new bytes could come after the last read but before the flag was reset
+            if (ringBuffer.isEmpty() || !isWriteScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void writeAvailable() {
+        int n;
+        while ((n = ringBuffer.read(writeBatch.array(), 0, WRITE_BATCH_SIZE)) > 0) {
+            writeBatch.clear();
+            writeBatch.limit(n);
+            try {
+                while (writeBatch.hasRemaining()) {
+                    fileChannel.write(writeBatch);
+                }
+            } catch (IOException ex) {
+                // capture problems must not stop the data receiving
+                if (isCaptureOk) {
+                    isCaptureOk = false;
+                    log.error("Failed to write capture file " + captureFile + ". Capture is stopped", ex);
+                }
+            }
+        }
+    }
+
+    public File getCaptureFile() {
+        return captureFile;
+    }
+
+    /**
+     * @return number of captured bytes (without headers)
+     */
+    public long getCapturedBytes() {
+        return capturedBytes;
+    }
+
+    @Override
+    public String getComportName() {
+        return comport.getComportName();
+    }
+
+    @Override
+    public boolean isOpened() {
+        return comport.isOpened();
+    }
+
+    /**
+     * Closes the underlying comport and the capture file
+     * (after all captured bytes are written)
+     */
+    @Override
+    public boolean close() {
+        boolean isCloseOk = comport.close();
+        writingExecutor.shutdown();
+        boolean isWriterStopped = false;
+        try {
+            isWriterStopped = writingExecutor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (!isWriterStopped) {
+            log.error("Capture writing thread did not stop in " + CLOSE_TIMEOUT_MS + " ms. Capture file may be incomplete");
+            writingExecutor.shutdownNow();
+        }
+        synchronized (fileChannel) {
+            if (fileChannel.isOpen()) {
+                if (isWriterStopped) {
+                    // the writing thread is stopped so here we are the only consumer
+                    writeAvailable();
+                }
+                try {
+                    fileChannel.close();
+                } catch (IOException ex) {
+                    log.error("Failed to close capture file " + captureFile, ex);
+                }
+            }
+        }
+        return isCloseOk;
+    }
+
+    @Override
+    public boolean writeBytes(byte[] bytes) throws IllegalStateException {
+        return comport.writeBytes(bytes);
+    }
+
+    @Override
+    public boolean writeByte(byte b) throws IllegalStateException {
+        return comport.writeByte(b);
+    }
+
+    /**
+     * CapturingComport permits to add only ONE listener! So if a new listener added
+     * the old one are automatically removed
+     */
+    @Override
+    public void addListener(ComportListener comportListener) {
+        if (comportListener != null) {
+            this.comportListener = comportListener;
+        }
+    }
+
+    @Override
+    public void removeListener() {
+        comportListener = new NullComportListener();
+    }
+
+    class NullComportListener implements ComportListener {
+        @Override
+        public void onByteReceived(byte inByte) {
+            // do nothing;
+        }
+
+        @Override
+        public void onBytesReceived(byte[] buf, int off, int len) {
+            // do nothing;
+        }
+    }
+}
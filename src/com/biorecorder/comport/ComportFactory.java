@@ -1,37 +1,137 @@
 package com.biorecorder.comport;
 
+import com.biorecorder.ads.AdsSimulator;
 import com.biorecorder.ads.ComportRuntimeException;
+import com.sun.istack.internal.Nullable;
 import jssc.SerialPortList;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Created by galafit on 21/6/18.
  */
 public class ComportFactory {
+    private static final Log log = LogFactory.getLog(ComportFactory.class);
+    private static volatile File captureDirectory;
+    // jssc ports may be opened simultaneously (every one by its own device)
+    // but never during the ports listing
+    private static final ReadWriteLock jsscLock = new ReentrantReadWriteLock();
+    // the same port can not be opened by two threads at once
+    private static final ConcurrentMap<String, Object> portLocks = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * If capture directory is set all bytes received by the comports
+     * created after that are captured to files in that directory
+     * (see {@link CapturingComport}) which can be replayed later with the pseudo port name
+     * «replay:file_path». Null (default) disables capture.
+     */
+    public static void setCaptureDirectory(@Nullable File directory) {
+        captureDirectory = directory;
+    }
+
     /**
-     * It is synchronized to avoid its simultaneous execution
-     * with the method getAvailableComports()!!!
+     * Opening of jssc ports is locked to avoid its simultaneous execution
+     * with the method getAvailableComports()!!! But different ports
+     * (of several devices) may be opened at the same time.
+     * Pseudo ports do not use any locks.
+     * <p>
+     * Pseudo port name «simulator» or «simulator:parameters» creates simulated Ads device
+     * (see {@link AdsSimulator#createFromPortName(String)}) and
+     * «replay:file_path» or «replay:speed=N:file_path» replays a captured byte stream
+     * (see {@link ReplayComport#createFromPortName(String)}).
+     * «nio:path» opens the (Linux) tty device without jSSC (see {@link ComportNio})
      * @param name comport name
      * @param speed comport baud rate
      * @return Comport implementation
      * @throws ComportRuntimeException if port can not be created
      */
-    public synchronized static Comport getComport(String name, int speed) throws ComportRuntimeException {
-       return new ComportJSCC(name, speed);
+    public static Comport getComport(String name, int speed) throws ComportRuntimeException {
+        Comport comport;
+        try {
+            if (name.startsWith(ReplayComport.PORT_NAME_PREFIX)) {
+                return ReplayComport.createFromPortName(name);
+            }
+            if (name.startsWith(AdsSimulator.PORT_NAME_PREFIX)) {
+                comport = AdsSimulator.createFromPortName(name);
+            } else if (name.startsWith(ComportNio.PORT_NAME_PREFIX)) {
+                comport = new ComportNio(name.substring(ComportNio.PORT_NAME_PREFIX.length()), speed);
+            } else {
+                jsscLock.readLock().lock();
+                try {
+                    synchronized (getPortLock(name)) {
+                        comport = new ComportJSCC(name, speed);
+                    }
+                } finally {
+                    jsscLock.readLock().unlock();
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            ComportRuntimeException comportEx = new ComportRuntimeException(name, ComportRuntimeException.TYPE_PARAMETER_IS_NOT_CORRECT);
+            comportEx.initCause(ex);
+            throw comportEx;
+        }
+
+        File directory = captureDirectory;
+        if (directory != null) {
+            String fileName = name.replaceAll("[^A-Za-z0-9_.-]", "_") + "_" +
+                    new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".cap";
+            try {
+                directory.mkdirs();
+                comport = new CapturingComport(comport, new File(directory, fileName));
+            } catch (FileNotFoundException ex) {
+                // capture problems must not prevent the work with the port
+                log.error("Failed to create capture file " + fileName, ex);
+            }
+        }
+        return comport;
     }
 
     /**
      * Attention! This method can be DENGAROUS!!!
      * Serial port lib (jssc) en Mac and Linux to create portNames list
      * actually OPENS and CLOSES every port.
-     * That is why this method is SYNCHRONIZED (on the Class object).
-     * Without synchronization it becomes possible
+     * That is why this method is executed exclusively (no port can be opened
+     * at the same time). Without that it becomes possible
      * to have multiple connections with the same port
      * and so loose incoming data. See {@link TestSerialPort} and
      * {@link TestSerialPortSynchronized}.
      *
      * @return array of names of all comports or empty array.
      */
-    public synchronized static String[] getAvailableComportNames() {
-        return SerialPortList.getPortNames();
+    /**
+     * Shared lock of jssc ports opening and closing. Ports listing takes the exclusive one
+     */
+    static Lock getJsscSharedLock() {
+        return jsscLock.readLock();
+    }
+
+    /**
+     * @return lock of the port with the given name (the same port is never opened or closed by two threads at once)
+     */
+    static Object getPortLock(String name) {
+        Object portLock = portLocks.putIfAbsent(name, new Object());
+        if (portLock == null) {
+            portLock = portLocks.get(name);
+        }
+        return portLock;
+    }
+
+    public static String[] getAvailableComportNames() {
+        jsscLock.writeLock().lock();
+        try {
+            return SerialPortList.getPortNames();
+        } finally {
+            jsscLock.writeLock().unlock();
+        }
     }
 }
@@ -5,6 +5,8 @@ import jssc.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.concurrent.locks.Lock;
+
 /**
  * Library jSSC is used.
  * jSSC (Java Simple Serial Connector) - library for working with serial ports from Java.
@@ -14,10 +16,8 @@ import org.apache.commons.logging.LogFactory;
  * http://www.quizful.net/post/java-serial-ports
  */
 /*
- * TODO По идее все должно и так нормально работать.
- * Но вообще нужно посмотреть аккуратно и подумать
- * возможно стоит методы writeByte, writeBytes и close сделать synchronized
- * для надежности
+ * Methods writeByte, writeBytes and close are synchronized
+ * so the port can not be closed in the middle of writing
  */
 public class ComportJSCC implements SerialPortEventListener, Comport {
     private static Log log = LogFactory.getLog(ComportJSCC.class);
@@ -56,21 +56,22 @@ public class ComportJSCC implements SerialPortEventListener, Comport {
     }
 
     @Override
-    public boolean close() {
+    public synchronized boolean close() {
         // if port already closed we do nothing
         if(!serialPort.isOpened()) {
             return true;
         }
         boolean isCloseOk = false;
         try {
-             /*
-             * This block is synchronized on the Class object
-             *  to avoid its simultaneous execution with the static method
-             *  getAvailableComports()!!!
-             */
-            ;
-            synchronized (ComportJSCC.class) {
-                isCloseOk = serialPort.closePort();
+            // closing never runs during the ports listing (as opening)
+            Lock jsscLock = ComportFactory.getJsscSharedLock();
+            jsscLock.lock();
+            try {
+                synchronized (ComportFactory.getPortLock(comportName)) {
+                    isCloseOk = serialPort.closePort();
+                }
+            } finally {
+                jsscLock.unlock();
             }
             if(isCloseOk) {
                 removeListener();
@@ -87,7 +88,7 @@ public class ComportJSCC implements SerialPortEventListener, Comport {
      * @throws IllegalStateException if the port was close
      */
     @Override
-    public boolean writeBytes(byte[] bytes) throws IllegalStateException {
+    public synchronized boolean writeBytes(byte[] bytes) throws IllegalStateException {
         try {
           /* System.out.println("\nwrite " + bytes.length + " bytes:");
             for (byte aByte : bytes) {
@@ -107,7 +108,7 @@ public class ComportJSCC implements SerialPortEventListener, Comport {
      * @throws IllegalStateException if the port was close
      */
     @Override
-    public boolean writeByte(byte b) throws IllegalStateException {
+    public synchronized boolean writeByte(byte b) throws IllegalStateException {
         try {
           //  System.out.println("\nwrite 1 byte: "+b);
             return serialPort.writeByte(b);
@@ -145,9 +146,8 @@ public class ComportJSCC implements SerialPortEventListener, Comport {
             try {
                 byte[] buffer = serialPort.readBytes();
                // System.out.println("\nbuffer length "+buffer.length);
-                for (int i = 0; i < buffer.length; i++) {
-                    comportListener.onByteReceived((buffer[i]));
-                    //System.out.println(buffer[i]);
+                if (buffer != null) {
+                    comportListener.onBytesReceived(buffer, 0, buffer.length);
                 }
             } catch (SerialPortException ex) {
                 String errMsg = "Error during receiving serial port data: " + ex.getMessage();
@@ -163,5 +163,10 @@ public class ComportJSCC implements SerialPortEventListener, Comport {
         public void onByteReceived(byte inByte) {
             // do nothing;
         }
+
+        @Override
+        public void onBytesReceived(byte[] buf, int off, int len) {
+            // do nothing;
+        }
     }
 }
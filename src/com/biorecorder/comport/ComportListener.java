@@ -2,4 +2,12 @@ package com.biorecorder.comport;
 
 public interface ComportListener {
     public void onByteReceived(byte inByte);
+
+    /**
+     * Receives the whole chunk of bytes read from the port at once.
+     * Bytes are buf[off], buf[off + 1], ... buf[off + len - 1].
+     * The array is owned by the comport and may be reused
+     * after the method returns, so implementations must not keep a reference to it.
+     */
+    public void onBytesReceived(byte[] buf, int off, int len);
 }
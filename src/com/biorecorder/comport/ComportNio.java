@@ -0,0 +1,234 @@
+package com.biorecorder.comport;
+
+import com.biorecorder.ads.ComportRuntimeException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Linux comport implementation without jSSC. The tty device
+ * (or any other file, for example a named pipe for testing) is read
+ * through NIO FileChannel in the dedicated «reading» thread
+ * by large blocking reads into one reusable direct buffer,
+ * so nothing is allocated per read.
+ * <p>
+ * Port parameters of /dev devices (speed, 8N1, raw mode) are set by the «stty» utility.
+ * Bytes written to a port which is not a /dev device are discarded
+ * (so a named pipe feeding the port is not mixed with our commands).
+ * <p>
+ * ComportNio may be created by {@link ComportFactory}
+ * with the pseudo port name: «nio:/dev/ttyXXX»
+ */
+public class ComportNio implements Comport {
+    private static final Log log = LogFactory.getLog(ComportNio.class);
+    public static final String PORT_NAME_PREFIX = "nio:";
+    private static final String DEVICE_DIR = "/dev/";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String comportName;
+    private final boolean isDevice;
+    // separated channels for reading and writing so that
+    // the blocked read does not block writes
+    private final FileChannel readChannel;
+    private final FileChannel writeChannel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final byte[] readBytes = new byte[READ_BUFFER_SIZE];
+    private final ExecutorService executor;
+    private volatile ComportListener comportListener = new NullComportListener();
+    private volatile boolean isOpened;
+
+    /**
+     * @param path  path of the tty device or any readable file
+     * @param speed comport baud rate
+     * @throws ComportRuntimeException if the port can not be opened
+     */
+    public ComportNio(String path, int speed) throws ComportRuntimeException {
+        comportName = path;
+        isDevice = path.startsWith(DEVICE_DIR);
+        File file = new File(path);
+        if (!file.exists()) {
+            throw new ComportRuntimeException(path, ComportRuntimeException.TYPE_PORT_NOT_FOUND);
+        }
+        if (isDevice) {
+            configureTty(path, speed);
+        }
+        try {
+            // "rw" mode: opening a named pipe does not block waiting for the writer
+            readChannel = new RandomAccessFile(file, "rw").getChannel();
+            writeChannel = isDevice ? new RandomAccessFile(file, "rw").getChannel() : null;
+        } catch (IOException ex) {
+            ComportRuntimeException comportEx = new ComportRuntimeException(path, ComportRuntimeException.TYPE_PERMISSION_DENIED);
+            comportEx.initCause(ex);
+            throw comportEx;
+        }
+        isOpened = true;
+        ThreadFactory namedThreadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "«Comport nio» reading thread");
+            }
+        };
+        executor = Executors.newSingleThreadExecutor(namedThreadFactory);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        });
+        log.info(Thread.currentThread() + " opened nio comport: " + comportName);
+    }
+
+    /**
+     * Best effort: if stty fails the port is used with its current parameters
+     */
+    private static void configureTty(String path, int speed) {
+        ProcessBuilder processBuilder = new ProcessBuilder("stty", "-F", path, Integer.toString(speed),
+                "raw", "-echo", "cs8", "-cstopb", "-parenb", "-crtscts", "min", "1", "time", "0");
+        processBuilder.redirectErrorStream(true);
+        try {
+            Process process = processBuilder.start();
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroy();
+                log.warn("stty timeout. Port " + path + " parameters may be wrong");
+            } else if (process.exitValue() != 0) {
+                log.warn("stty failed. Port " + path + " parameters may be wrong");
+            }
+        } catch (IOException ex) {
+            log.warn("stty is not available. Port " + path + " parameters may be wrong", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void read() {
+        try {
+            while (isOpened) {
+                int n = readChannel.read(readBuffer);
+                if (n < 0) {
+                    // end of file. For a named pipe: no writers at the moment
+                    Thread.sleep(10);
+                    continue;
+                }
+                if (n > 0) {
+                    readBuffer.flip();
+                    readBuffer.get(readBytes, 0, n);
+                    readBuffer.clear();
+                    comportListener.onBytesReceived(readBytes, 0, n);
+                }
+            }
+        } catch (AsynchronousCloseException ex) {
+            // port was closed. Do nothing
+        } catch (InterruptedException ex) {
+            // port was closed. Do nothing
+        } catch (IOException ex) {
+            String errMsg = "Error during receiving serial port data: " + ex.getMessage();
+            log.error(errMsg, ex);
+        }
+    }
+
+    @Override
+    public String getComportName() {
+        return comportName;
+    }
+
+    @Override
+    public boolean isOpened() {
+        return isOpened;
+    }
+
+    @Override
+    public synchronized boolean close() {
+        // if port already closed we do nothing
+        if (!isOpened) {
+            return true;
+        }
+        isOpened = false;
+        boolean isCloseOk = true;
+        try {
+            readChannel.close();
+            if (writeChannel != null) {
+                writeChannel.close();
+            }
+        } catch (IOException ex) {
+            log.error("Failed to close comport " + comportName, ex);
+            isCloseOk = false;
+        }
+        executor.shutdownNow();
+        removeListener();
+        return isCloseOk;
+    }
+
+    /**
+     * Write array of bytes to the port.
+     * @param bytes array of bytes to write to the port
+     * @return true if writing was successfull and false otherwise
+     * @throws IllegalStateException if the port was close
+     */
+    @Override
+    public synchronized boolean writeBytes(byte[] bytes) throws IllegalStateException {
+        if (!isOpened) {
+            throw new IllegalStateException("Serial Port " + getComportName() + " was finalised and closed");
+        }
+        if (writeChannel == null) {
+            return true;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                writeChannel.write(buffer);
+            }
+            return true;
+        } catch (IOException ex) {
+            log.error("Failed to write to comport " + comportName, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Write one byte to the port.
+     * @param b byte to write to the port
+     * @return true if writing was successfull and false otherwise
+     * @throws IllegalStateException if the port was close
+     */
+    @Override
+    public boolean writeByte(byte b) throws IllegalStateException {
+        return writeBytes(new byte[]{b});
+    }
+
+    /**
+     * ComportNio permits to add only ONE listener! So if a new listener added
+     * the old one are automatically removed
+     */
+    @Override
+    public void addListener(ComportListener comportListener) {
+        if (comportListener != null) {
+            this.comportListener = comportListener;
+        }
+    }
+
+    @Override
+    public void removeListener() {
+        comportListener = new NullComportListener();
+    }
+
+    class NullComportListener implements ComportListener {
+        @Override
+        public void onByteReceived(byte inByte) {
+            // do nothing;
+        }
+
+        @Override
+        public void onBytesReceived(byte[] buf, int off, int len) {
+            // do nothing;
+        }
+    }
+}
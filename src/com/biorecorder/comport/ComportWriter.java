@@ -0,0 +1,295 @@
+package com.biorecorder.comport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes commands to the comport in the separated «writing» thread
+ * (or in the given executor that may be shared by several comports)
+ * so that slow comport writes never block the callers.
+ * <p>
+ * Commands are put to the bounded queue. If the queue is full
+ * the command is rejected (its future is completed with false) instead of waiting.
+ * <p>
+ * Redundant commands are coalesced: if the given «coalesced» single byte command
+ * (like PING or HELLO request) is already waiting in the queue
+ * the new one is not queued and gets the future of the waiting one.
+ * <p>
+ * All the commands waiting in the queue are written to the comport
+ * together by one write (batch).
+ * <p>
+ * The result of every command is reported by CompletableFuture:
+ * true if the command was successfully written and false otherwise.
+ * If the comport was closed the future is completed exceptionally (IllegalStateException).
+ */
+public class ComportWriter {
+    private static final Log log = LogFactory.getLog(ComportWriter.class);
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private final Comport comport;
+    private final BlockingQueue<WriteCommand> commandQueue;
+    private final boolean[] isCoalesced = new boolean[256];
+    // coalesced single byte commands waiting in the queue
+    private final WriteCommand[] waitingCommands = new WriteCommand[256];
+    private final Executor executor;
+    // null if the executor is shared
+    private final ExecutorService ownExecutor;
+    private final AtomicBoolean isWriteScheduled = new AtomicBoolean(false);
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writeCommands();
+        }
+    };
+    private volatile boolean isStopped;
+    private final List<WriteCommand> batch = new ArrayList<WriteCommand>();
+
+    // statistic
+    private volatile long writesCount;
+    private volatile long commandsCount;
+    private volatile long coalescedCount;
+    private volatile long rejectedCount;
+    private volatile long maxLatencyNanos;
+    private volatile long totalLatencyNanos;
+
+    /**
+     * @param comport          comport to write to
+     * @param queueCapacity    max number of commands waiting to be written
+     * @param threadName       name of the «writing» thread
+     * @param coalescedCommands single byte commands that should be coalesced
+     */
+    public ComportWriter(Comport comport, int queueCapacity, final String threadName, byte... coalescedCommands) {
+        this(comport, queueCapacity, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, threadName);
+            }
+        }), true, coalescedCommands);
+    }
+
+    /**
+     * @param comport           comport to write to
+     * @param queueCapacity     max number of commands waiting to be written
+     * @param executor          executor (may be shared) to write commands in.
+     *                          Commands of this writer are never written concurrently
+     * @param coalescedCommands single byte commands that should be coalesced
+     */
+    public ComportWriter(Comport comport, int queueCapacity, Executor executor, byte... coalescedCommands) {
+        this(comport, queueCapacity, executor, false, coalescedCommands);
+    }
+
+    private ComportWriter(Comport comport, int queueCapacity, Executor executor, boolean isExecutorOwner, byte... coalescedCommands) {
+        this.comport = comport;
+        commandQueue = new ArrayBlockingQueue<WriteCommand>(queueCapacity);
+        for (byte command : coalescedCommands) {
+            isCoalesced[command & 0xFF] = true;
+        }
+        this.executor = executor;
+        ownExecutor = isExecutorOwner ? (ExecutorService) executor : null;
+    }
+
+    public CompletableFuture<Boolean> writeByte(byte b) {
+        int index = b & 0xFF;
+        if (isCoalesced[index]) {
+            synchronized (waitingCommands) {
+                WriteCommand waitingCommand = waitingCommands[index];
+                if (waitingCommand != null) {
+                    coalescedCount++;
+                    return waitingCommand.future;
+                }
+                WriteCommand command = new WriteCommand(new byte[]{b});
+                if (offer(command)) {
+                    waitingCommands[index] = command;
+                }
+                return command.future;
+            }
+        }
+        WriteCommand command = new WriteCommand(new byte[]{b});
+        offer(command);
+        return command.future;
+    }
+
+    public CompletableFuture<Boolean> writeBytes(byte[] bytes) {
+        WriteCommand command = new WriteCommand(bytes.clone());
+        offer(command);
+        return command.future;
+    }
+
+    private boolean offer(WriteCommand command) {
+        if (isStopped) {
+            command.future.completeExceptionally(new IllegalStateException("Comport writer was stopped"));
+            return false;
+        }
+        if (!commandQueue.offer(command)) {
+            rejectedCount++;
+            log.error("Comport " + comport.getComportName() + " write queue is full. Command is rejected");
+            command.future.complete(false);
+            return false;
+        }
+        scheduleWrite();
+        return true;
+    }
+
+    private void scheduleWrite() {
+        if (isWriteScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(writeTask);
+            } catch (RejectedExecutionException ex) {
+                // executor was shut down
+                isWriteScheduled.set(false);
+                completeWaitingCommands();
+            }
+        }
+    }
+
+    /**
+     * Writes all the commands waiting in the queue and finishes
+     * so the thread is not occupied while there is nothing to write
+     */
+    private void writeCommands() {
+        while (true) {
+            while (!isStopped && commandQueue.drainTo(batch) > 0) {
+                synchronized (waitingCommands) {
+                    for (WriteCommand command : batch) {
+                        if (command.bytes.length == 1 && waitingCommands[command.bytes[0] & 0xFF] == command) {
+                            waitingCommands[command.bytes[0] & 0xFF] = null;
+                        }
+                    }
+                }
+                writeBatch();
+                batch.clear();
+            }
+            isWriteScheduled.set(false);
+            // new commands could come after the last drain but before the flag was reset
+            if (isStopped || commandQueue.isEmpty() || !isWriteScheduled.compareAndSet(false, true)) {
+                break;
+            }
+        }
+        if (isStopped) {
+            completeWaitingCommands();
+        }
+    }
+
+    /**
+     * Completes the commands that will be never written
+     */
+    private void completeWaitingCommands() {
+        List<WriteCommand> commands = new ArrayList<WriteCommand>();
+        commandQueue.drainTo(commands);
+        for (WriteCommand command : commands) {
+            command.future.complete(false);
+        }
+    }
+
+    private void writeBatch() {
+        int length = 0;
+        for (WriteCommand command : batch) {
+            length += command.bytes.length;
+        }
+        byte[] bytes;
+        if (batch.size() == 1) {
+            bytes = batch.get(0).bytes;
+        } else {
+            bytes = new byte[length];
+            int pos = 0;
+            for (WriteCommand command : batch) {
+                System.arraycopy(command.bytes, 0, bytes, pos, command.bytes.length);
+                pos += command.bytes.length;
+            }
+        }
+        try {
+            boolean isWriteOk;
+            if (bytes.length == 1) {
+                isWriteOk = comport.writeByte(bytes[0]);
+            } else {
+                isWriteOk = comport.writeBytes(bytes);
+            }
+            long time = System.nanoTime();
+            writesCount++;
+            for (WriteCommand command : batch) {
+                long latency = time - command.creationTime;
+                totalLatencyNanos += latency;
+                if (latency > maxLatencyNanos) {
+                    maxLatencyNanos = latency;
+                }
+                commandsCount++;
+                command.future.complete(isWriteOk);
+            }
+        } catch (Exception ex) {
+            for (WriteCommand command : batch) {
+                command.future.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * Stops writing (and the own «writing» thread). Commands waiting in the queue are not written
+     */
+    public void stop() {
+        isStopped = true;
+        if (ownExecutor != null) {
+            ownExecutor.shutdownNow();
+        }
+        completeWaitingCommands();
+    }
+
+    /**
+     * @return number of comport writes (every write may contain several commands)
+     */
+    public long getWritesCount() {
+        return writesCount;
+    }
+
+    /**
+     * @return number of written commands
+     */
+    public long getCommandsCount() {
+        return commandsCount;
+    }
+
+    /**
+     * @return number of commands that were not queued because the same command was waiting
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return number of commands rejected because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @return max time (ms) from the command submitting to the end of its writing
+     */
+    public double getMaxWriteLatencyMs() {
+        return maxLatencyNanos / 1.0E6;
+    }
+
+    /**
+     * @return average time (ms) from the command submitting to the end of its writing
+     */
+    public double getAverageWriteLatencyMs() {
+        long count = commandsCount;
+        if (count == 0) {
+            return 0;
+        }
+        return totalLatencyNanos / 1.0E6 / count;
+    }
+
+    static class WriteCommand {
+        private final byte[] bytes;
+        private final long creationTime = System.nanoTime();
+        private final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+
+        WriteCommand(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.biorecorder.comport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Comport that replays the byte stream captured by {@link CapturingComport}:
+ * chunk by chunk exactly as they were received, in real time,
+ * N times faster or as fast as possible.
+ * <p>
+ * Replay starts on the first write to the comport (like the device answering
+ * the first request) or by calling {@link #start()}. Written bytes are ignored.
+ * <p>
+ * ReplayComport may be created by {@link ComportFactory}
+ * with the pseudo port name: «replay:file_path» or «replay:speed=N:file_path».
+ */
+public class ReplayComport implements Comport {
+    private static final Log log = LogFactory.getLog(ReplayComport.class);
+    public static final String PORT_NAME_PREFIX = "replay:";
+    private static final String SPEED_PREFIX = "speed=";
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final String portName;
+    private final File captureFile;
+    private final double speed;
+    private final ExecutorService executor;
+    private volatile ComportListener comportListener = new NullComportListener();
+    private volatile boolean isOpened = true;
+    private volatile boolean isStarted;
+    private volatile boolean isFinished;
+    private volatile long replayedBytes;
+
+    /**
+     * @param captureFile file written by CapturingComport
+     * @param speed       1 - real time, N - N times faster, 0 - as fast as possible
+     * @throws IllegalArgumentException if the file does not exist or speed is negative
+     */
+    public ReplayComport(File captureFile, double speed) throws IllegalArgumentException {
+        this(PORT_NAME_PREFIX + captureFile, captureFile, speed);
+    }
+
+    private ReplayComport(String portName, File captureFile, double speed) throws IllegalArgumentException {
+        if (!captureFile.isFile()) {
+            String errMsg = "Capture file does not exist: " + captureFile;
+            throw new IllegalArgumentException(errMsg);
+        }
+        if (speed < 0) {
+            String errMsg = "Speed must be >= 0: " + speed;
+            throw new IllegalArgumentException(errMsg);
+        }
+        this.portName = portName;
+        this.captureFile = captureFile;
+        this.speed = speed;
+        ThreadFactory namedThreadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "«Comport replay» thread");
+            }
+        };
+        executor = Executors.newSingleThreadExecutor(namedThreadFactory);
+    }
+
+    /**
+     * Creates ReplayComport from the pseudo port name:
+     * «replay:file_path» (real time replay) or «replay:speed=N:file_path»
+     * (N - speed multiplier, 0 - as fast as possible)
+     *
+     * @throws IllegalArgumentException if the name is not valid or the file does not exist
+     */
+    public static ReplayComport createFromPortName(String portName) throws IllegalArgumentException {
+        if (!portName.startsWith(PORT_NAME_PREFIX)) {
+            String errMsg = "Invalid replay name: " + portName;
+            throw new IllegalArgumentException(errMsg);
+        }
+        String path = portName.substring(PORT_NAME_PREFIX.length());
+        double speed = 1;
+        if (path.startsWith(SPEED_PREFIX)) {
+            int separatorIndex = path.indexOf(':');
+            if (separatorIndex < 0) {
+                String errMsg = "Invalid replay name: " + portName;
+                throw new IllegalArgumentException(errMsg);
+            }
+            try {
+                speed = Double.parseDouble(path.substring(SPEED_PREFIX.length(), separatorIndex));
+            } catch (NumberFormatException ex) {
+                String errMsg = "Invalid replay speed: " + portName;
+                throw new IllegalArgumentException(errMsg, ex);
+            }
+            path = path.substring(separatorIndex + 1);
+        }
+        return new ReplayComport(portName, new File(path), speed);
+    }
+
+    /**
+     * Starts replay if it was not started yet
+     */
+    public synchronized void start() {
+        if (isStarted || !isOpened) {
+            return;
+        }
+        isStarted = true;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    replay();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // comport was closed. Do nothing
+        }
+    }
+
+    private void replay() {
+        byte[] chunk = new byte[BUFFER_SIZE];
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(captureFile), BUFFER_SIZE));
+            if (inputStream.readInt() != CapturingComport.CAPTURE_MAGIC) {
+                throw new IOException("Not a capture file: " + captureFile);
+            }
+            int version = inputStream.readInt();
+            if (version != CapturingComport.CAPTURE_VERSION) {
+                throw new IOException("Unsupported capture file version: " + version);
+            }
+            long captureStartTime = inputStream.readLong();
+            log.info("Replay comport capture made at " + new java.util.Date(captureStartTime) + ", speed: " + speed);
+            long replayStartTime = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                long chunkTime;
+                try {
+                    chunkTime = inputStream.readLong();
+                } catch (EOFException ex) {
+                    break;
+                }
+                int length = inputStream.readInt();
+                if (length > chunk.length) {
+                    chunk = new byte[length];
+                }
+                inputStream.readFully(chunk, 0, length);
+                if (speed > 0) {
+                    long delayNs = replayStartTime + (long) (chunkTime / speed) - System.nanoTime();
+                    if (delayNs > 0) {
+                        Thread.sleep(delayNs / 1000000, (int) (delayNs % 1000000));
+                    }
+                }
+                comportListener.onBytesReceived(chunk, 0, length);
+                replayedBytes += length;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            log.error("Comport replay failed", ex);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ex) {
+                    // do nothing
+                }
+            }
+            isFinished = true;
+            log.info("Comport replay finished. Replayed bytes: " + replayedBytes);
+        }
+    }
+
+    /**
+     * @return true if all captured bytes were replayed (or replay failed)
+     */
+    public boolean isFinished() {
+        return isFinished;
+    }
+
+    public long getReplayedBytes() {
+        return replayedBytes;
+    }
+
+    @Override
+    public String getComportName() {
+        return portName;
+    }
+
+    @Override
+    public boolean isOpened() {
+        return isOpened;
+    }
+
+    @Override
+    public synchronized boolean close() {
+        isOpened = false;
+        executor.shutdownNow();
+        removeListener();
+        return true;
+    }
+
+    @Override
+    public boolean writeBytes(byte[] bytes) throws IllegalStateException {
+        checkOpened();
+        start();
+        return true;
+    }
+
+    @Override
+    public boolean writeByte(byte b) throws IllegalStateException {
+        checkOpened();
+        start();
+        return true;
+    }
+
+    private void checkOpened() throws IllegalStateException {
+        if (!isOpened) {
+            throw new IllegalStateException("Serial Port " + portName + " was finalised and closed");
+        }
+    }
+
+    /**
+     * ReplayComport permits to add only ONE listener! So if a new listener added
+     * the old one are automatically removed
+     */
+    @Override
+    public void addListener(ComportListener comportListener) {
+        if (comportListener != null) {
+            this.comportListener = comportListener;
+        }
+    }
+
+    @Override
+    public void removeListener() {
+        comportListener = new NullComportListener();
+    }
+
+    class NullComportListener implements ComportListener {
+        @Override
+        public void onByteReceived(byte inByte) {
+            // do nothing;
+        }
+
+        @Override
+        public void onBytesReceived(byte[] buf, int off, int len) {
+            // do nothing;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.biorecorder.digitalfilter;
+
+/**
+ * IIR filter realized as a cascade of second order sections (biquads).
+ * Every section is computed in the Direct Form II transposed:
+ * <pre>
+ * y = b0 * x + z1
+ * z1 = b1 * x - a1 * y + z2
+ * z2 = b2 * x - a2 * y
+ * </pre>
+ * (coefficients are normalized so that a0 = 1). First order sections
+ * are the biquads with b2 = a2 = 0.
+ * <p>
+ * In block mode the whole block passes through one section after another
+ * with the section coefficients and state in local variables.
+ * Filtering does not allocate any memory.
+ * <p>
+ * Filters are usually created by {@link IirFilterDesigner}.
+ */
+public class BiquadFilter implements DigitalFilter {
+    private final double[] b0;
+    private final double[] b1;
+    private final double[] b2;
+    private final double[] a1;
+    private final double[] a2;
+    // sections state
+    private final double[] z1;
+    private final double[] z2;
+
+    /**
+     * @param sections coefficients of the sections in the order of applying.
+     *                 Every section: {b0, b1, b2, a1, a2} (a0 = 1)
+     * @throws IllegalArgumentException if there are no sections or
+     *                                  some section has not 5 coefficients
+     */
+    public BiquadFilter(double[][] sections) throws IllegalArgumentException {
+        if (sections.length == 0) {
+            throw new IllegalArgumentException("Filter must have at least one section");
+        }
+        int n = sections.length;
+        b0 = new double[n];
+        b1 = new double[n];
+        b2 = new double[n];
+        a1 = new double[n];
+        a2 = new double[n];
+        z1 = new double[n];
+        z2 = new double[n];
+        for (int i = 0; i < n; i++) {
+            double[] section = sections[i];
+            if (section.length != 5) {
+                String errMsg = "Section must have 5 coefficients {b0, b1, b2, a1, a2}. Section " + i + " has " + section.length;
+                throw new IllegalArgumentException(errMsg);
+            }
+            b0[i] = section[0];
+            b1[i] = section[1];
+            b2[i] = section[2];
+            a1[i] = section[3];
+            a2[i] = section[4];
+        }
+    }
+
+    /**
+     * Joins the sections of the given filters into one cascade (with the initial state)
+     */
+    public static BiquadFilter cascade(BiquadFilter... filters) {
+        int n = 0;
+        for (BiquadFilter filter : filters) {
+            n += filter.getNumberOfSections();
+        }
+        double[][] sections = new double[n][];
+        int section = 0;
+        for (BiquadFilter filter : filters) {
+            for (int i = 0; i < filter.getNumberOfSections(); i++) {
+                sections[section++] = filter.getSection(i);
+            }
+        }
+        return new BiquadFilter(sections);
+    }
+
+    public int getNumberOfSections() {
+        return b0.length;
+    }
+
+    /**
+     * @return coefficients of the section: {b0, b1, b2, a1, a2}
+     */
+    public double[] getSection(int sectionNumber) {
+        return new double[]{b0[sectionNumber], b1[sectionNumber], b2[sectionNumber], a1[sectionNumber], a2[sectionNumber]};
+    }
+
+    /**
+     * Clears the filter state (as if no values were filtered)
+     */
+    public void reset() {
+        for (int i = 0; i < z1.length; i++) {
+            z1[i] = 0;
+            z2[i] = 0;
+        }
+    }
+
+    /**
+     * @return magnitude of the filter frequency response at the given frequency
+     */
+    public double getMagnitude(double frequency, double sampleRate) {
+        double w = 2 * Math.PI * frequency / sampleRate;
+        double cos1 = Math.cos(w);
+        double sin1 = Math.sin(w);
+        double cos2 = Math.cos(2 * w);
+        double sin2 = Math.sin(2 * w);
+        double magnitude = 1;
+        for (int i = 0; i < b0.length; i++) {
+            // H(e^jw) = (b0 + b1 e^-jw + b2 e^-2jw) / (1 + a1 e^-jw + a2 e^-2jw)
+            double numRe = b0[i] + b1[i] * cos1 + b2[i] * cos2;
+            double numIm = -b1[i] * sin1 - b2[i] * sin2;
+            double denRe = 1 + a1[i] * cos1 + a2[i] * cos2;
+            double denIm = -a1[i] * sin1 - a2[i] * sin2;
+            magnitude *= Math.sqrt((numRe * numRe + numIm * numIm) / (denRe * denRe + denIm * denIm));
+        }
+        return magnitude;
+    }
+
+    @Override
+    public double filteredValue(double inputValue) {
+        double value = inputValue;
+        for (int i = 0; i < b0.length; i++) {
+            double y = b0[i] * value + z1[i];
+            z1[i] = b1[i] * value - a1[i] * y + z2[i];
+            z2[i] = b2[i] * value - a2[i] * y;
+            value = y;
+        }
+        return value;
+    }
+
+    @Override
+    public void filter(double[] in, double[] out, int off, int len) {
+        int end = off + len;
+        double[] src = in;
+        for (int i = 0; i < b0.length; i++) {
+            double b0 = this.b0[i];
+            double b1 = this.b1[i];
+            double b2 = this.b2[i];
+            double a1 = this.a1[i];
+            double a2 = this.a2[i];
+            double z1 = this.z1[i];
+            double z2 = this.z2[i];
+            for (int j = off; j < end; j++) {
+                double x = src[j];
+                double y = b0 * x + z1;
+                z1 = b1 * x - a1 * y + z2;
+                z2 = b2 * x - a2 * y;
+                out[j] = y;
+            }
+            this.z1[i] = z1;
+            this.z2[i] = z2;
+            // next sections work in place
+            src = out;
+        }
+    }
+
+    /**
+     * Unit Test. Usage Example.
+     */
+    public static void main(String[] args) {
+        double sampleRate = 500;
+        boolean isTestOk = true;
+
+        // notch removes 50Hz and keeps 10Hz
+        BiquadFilter notch = IirFilterDesigner.notch(sampleRate, 50, IirFilterDesigner.DEFAULT_NOTCH_Q);
+        double[] signal = new double[2000];
+        for (int i = 0; i < signal.length; i++) {
+            signal[i] = Math.sin(2 * Math.PI * 10 * i / sampleRate) + Math.sin(2 * Math.PI * 50 * i / sampleRate);
+        }
+        double[] filtered = new double[signal.length];
+        notch.filter(signal, filtered, 0, signal.length);
+        // after the transient the rest must be the 10Hz sine
+        double maxError = 0;
+        for (int i = 1000; i < signal.length; i++) {
+            maxError = Math.max(maxError, Math.abs(filtered[i] - Math.sin(2 * Math.PI * 10 * i / sampleRate)));
+        }
+        if (maxError > 0.02) {
+            System.out.println("Notch error: " + maxError);
+            isTestOk = false;
+        }
+
+        // block filtering (by parts and in place) must give the same values as filtering value by value
+        BiquadFilter bandPass = IirFilterDesigner.butterworthBandPass(sampleRate, 0.5, 70, 4);
+        BiquadFilter bandPassScalar = IirFilterDesigner.butterworthBandPass(sampleRate, 0.5, 70, 4);
+        double[] block = signal.clone();
+        bandPass.filter(block, block, 0, 333);
+        bandPass.filter(block, block, 333, block.length - 333);
+        for (int i = 0; i < signal.length; i++) {
+            double expected = bandPassScalar.filteredValue(signal[i]);
+            if (block[i] != expected) {
+                System.out.println(i + " Block error! filtered value: " + block[i] + " Expected value " + expected);
+                isTestOk = false;
+                break;
+            }
+        }
+
+        // Butterworth response: -3dB at the cutoff
+        BiquadFilter lowPass = IirFilterDesigner.butterworthLowPass(sampleRate, 40, 5);
+        BiquadFilter highPass = IirFilterDesigner.butterworthHighPass(sampleRate, 1, 2);
+        double halfPower = Math.sqrt(0.5);
+        if (Math.abs(lowPass.getMagnitude(40, sampleRate) - halfPower) > 1.0E-6
+                || Math.abs(highPass.getMagnitude(1, sampleRate) - halfPower) > 1.0E-6
+                || Math.abs(lowPass.getMagnitude(0, sampleRate) - 1) > 1.0E-9
+                || lowPass.getMagnitude(100, sampleRate) > 0.01) {
+            System.out.println("Butterworth response error");
+            isTestOk = false;
+        }
+
+        // dc block removes constant
+        BiquadFilter dcBlock = IirFilterDesigner.dcBlock(sampleRate, 0.5);
+        double value = 0;
+        for (int i = 0; i < 5000; i++) {
+            value = dcBlock.filteredValue(1000);
+        }
+        if (Math.abs(value) > 1.0E-6) {
+            System.out.println("Dc block error: " + value);
+            isTestOk = false;
+        }
+        System.out.println("Is test ok: " + isTestOk);
+    }
+}
@@ -0,0 +1,161 @@
+package com.biorecorder.digitalfilter;
+
+import java.util.Random;
+
+/**
+ * Collects the values of short blocks (live data records) into FFT segments
+ * so that a long {@link FirFilter} is computed by FFT overlap-save
+ * whatever the block sizes are.
+ * <p>
+ * The values are filtered only when the whole segment ({@link FirFilter#getSegmentLength()} values)
+ * is collected, so the output is delayed by {@link #getLatency()} samples:
+ * output[n] = firOutput[n - latency] (the first latency outputs are 0).
+ * This delay is added to the own delay of the filter
+ * ((taps - 1) / 2 samples for linear phase filters).
+ * For example low pass filter with 301 taps has segment of 1748 samples
+ * what gives 3.5 sec latency at 500 Hz.
+ * <p>
+ * If the kernel is shorter than {@link FirFilter#FFT_KERNEL_THRESHOLD}
+ * the values are just filtered directly without any latency.
+ * <p>
+ * Usage: {@code bioRecorder.addChannelFilter(channel, new BufferedFirFilter(FirFilterDesigner.lowPass(500, 40, 301)), name)}
+ */
+public class BufferedFirFilter implements DigitalFilter {
+    private final FirFilter filter;
+    private final int segmentLength;
+    // [0, count) - collected input values, [count, segmentLength) - outputs not given yet
+    private final double[] segment;
+    private int count;
+
+    /**
+     * @param filter FIR filter. It should not be used apart from this BufferedFirFilter
+     */
+    public BufferedFirFilter(FirFilter filter) {
+        this.filter = filter;
+        segmentLength = filter.getSegmentLength();
+        segment = new double[segmentLength];
+    }
+
+    /**
+     * @return number of samples by which the output is delayed comparing with the FirFilter output
+     */
+    public int getLatency() {
+        return segmentLength;
+    }
+
+    /**
+     * Clears the filter history and the collected values
+     */
+    public void reset() {
+        filter.reset();
+        for (int i = 0; i < segmentLength; i++) {
+            segment[i] = 0;
+        }
+        count = 0;
+    }
+
+    @Override
+    public double filteredValue(double inputValue) {
+        if (segmentLength == 0) {
+            return filter.filteredValue(inputValue);
+        }
+        double outputValue = segment[count];
+        segment[count] = inputValue;
+        if (++count == segmentLength) {
+            filter.filter(segment, segment, 0, segmentLength);
+            count = 0;
+        }
+        return outputValue;
+    }
+
+    @Override
+    public void filter(double[] in, double[] out, int off, int len) {
+        if (segmentLength == 0) {
+            filter.filter(in, out, off, len);
+            return;
+        }
+        while (len > 0) {
+            int n = Math.min(len, segmentLength - count);
+            for (int i = 0; i < n; i++) {
+                double inputValue = in[off + i];
+                out[off + i] = segment[count + i];
+                segment[count + i] = inputValue;
+            }
+            count += n;
+            if (count == segmentLength) {
+                filter.filter(segment, segment, 0, segmentLength);
+                count = 0;
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Unit Test. Usage Example.
+     */
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        boolean isTestOk = true;
+        // live records: 10 samples per channel
+        int recordLength = 10;
+        int records = 1000;
+        int[] kernelLengths = {5, FirFilter.FFT_KERNEL_THRESHOLD, 301};
+        for (int taps : kernelLengths) {
+            double[] kernel = new double[taps];
+            for (int i = 0; i < taps; i++) {
+                kernel[i] = random.nextGaussian();
+            }
+            FirFilter scalarFilter = new FirFilter(kernel);
+            BufferedFirFilter bufferedFilter = new BufferedFirFilter(new FirFilter(kernel));
+            int latency = bufferedFilter.getLatency();
+            double[] expected = new double[records * recordLength];
+            double[] record = new double[recordLength];
+            for (int r = 0; r < records && isTestOk; r++) {
+                for (int i = 0; i < recordLength; i++) {
+                    record[i] = random.nextGaussian() * 1000;
+                    expected[r * recordLength + i] = scalarFilter.filteredValue(record[i]);
+                }
+                // in place
+                bufferedFilter.filter(record, record, 0, recordLength);
+                for (int i = 0; i < recordLength; i++) {
+                    int n = r * recordLength + i - latency;
+                    double expectedValue = n < 0 ? 0 : expected[n];
+                    if (Math.abs(record[i] - expectedValue) > 1.0E-7 * (1 + Math.abs(expectedValue))) {
+                        System.out.println("taps " + taps + ", record " + r + ", sample " + i
+                                + " Error! filtered value: " + record[i] + " Expected value " + expectedValue);
+                        isTestOk = false;
+                        break;
+                    }
+                }
+            }
+            System.out.println("taps " + taps + ", latency " + latency + " samples");
+        }
+
+        // cost of 10-sample records: direct FirFilter against BufferedFirFilter
+        double[] kernel = FirFilterDesigner.lowPass(500, 40, 301).getKernel();
+        FirFilter directFilter = new FirFilter(kernel);
+        BufferedFirFilter bufferedFilter = new BufferedFirFilter(new FirFilter(kernel));
+        double[] record = new double[recordLength];
+        for (int pass = 0; pass < 2; pass++) {
+            long directTime = 0;
+            long bufferedTime = 0;
+            for (int r = 0; r < 100000; r++) {
+                for (int i = 0; i < recordLength; i++) {
+                    record[i] = random.nextGaussian();
+                }
+                long time = System.nanoTime();
+                directFilter.filter(record, record, 0, recordLength);
+                directTime += System.nanoTime() - time;
+                time = System.nanoTime();
+                bufferedFilter.filter(record, record, 0, recordLength);
+                bufferedTime += System.nanoTime() - time;
+            }
+            if (pass == 1) {
+                System.out.println("301 taps, 10-sample records, 1M samples: direct " + directTime / 1000000
+                        + " ms, buffered FFT " + bufferedTime / 1000000 + " ms");
+            }
+        }
+        System.out.println("Is test ok: " + isTestOk);
+    }
+}
@@ -5,4 +5,20 @@ package com.biorecorder.digitalfilter;
  */
 public interface DigitalFilter {
     double filteredValue(double inputValue);
+
+    /**
+     * Filters the block of values: out[i] = filteredValue(in[i])
+     * for i from off to off + len - 1.
+     * The same array may be given as in and out (filtering in place).
+     * <p>
+     * Default implementation just calls filteredValue() for every value.
+     * Filters should override it to process the whole block in one loop
+     * (with the filter state in local variables).
+     */
+    default void filter(double[] in, double[] out, int off, int len) {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            out[i] = filteredValue(in[i]);
+        }
+    }
 }
@@ -0,0 +1,98 @@
+package com.biorecorder.digitalfilter;
+
+/**
+ * In place radix-2 complex FFT of the fixed size.
+ * Twiddle factors and the bit reversal permutation are calculated once
+ * in the constructor so the transform does not allocate any memory.
+ */
+public class Fft {
+    private final int size;
+    private final double[] cos;
+    private final double[] sin;
+    private final int[] bitReversed;
+
+    /**
+     * @param size transform size. Must be a power of 2
+     * @throws IllegalArgumentException if size is not a power of 2
+     */
+    public Fft(int size) throws IllegalArgumentException {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of 2. Size = " + size);
+        }
+        this.size = size;
+        cos = new double[size / 2];
+        sin = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / size);
+            sin[i] = Math.sin(2 * Math.PI * i / size);
+        }
+        bitReversed = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            bitReversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    /**
+     * @return the smallest power of 2 not less than n
+     */
+    public static int nextPowerOf2(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Forward transform: X[k] = sum x[n] * exp(-2*pi*i*k*n/size)
+     */
+    public void transform(double[] re, double[] im) {
+        transform(re, im, false);
+    }
+
+    /**
+     * Inverse transform (scaled by 1/size so that it restores the forward transformed data)
+     */
+    public void inverseTransform(double[] re, double[] im) {
+        transform(re, im, true);
+        double scale = 1.0 / size;
+        for (int i = 0; i < size; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    private void transform(double[] re, double[] im, boolean isInverse) {
+        for (int i = 0; i < size; i++) {
+            int j = bitReversed[i];
+            if (j > i) {
+                double tmp = re[i];
+                re[i] = re[j];
+                re[j] = tmp;
+                tmp = im[i];
+                im[i] = im[j];
+                im[j] = tmp;
+            }
+        }
+        double sign = isInverse ? 1 : -1;
+        for (int length = 2; length <= size; length <<= 1) {
+            int halfLength = length >> 1;
+            int twiddleStep = size / length;
+            for (int start = 0; start < size; start += length) {
+                for (int k = 0; k < halfLength; k++) {
+                    double wRe = cos[k * twiddleStep];
+                    double wIm = sign * sin[k * twiddleStep];
+                    int even = start + k;
+                    int odd = even + halfLength;
+                    double oddRe = re[odd] * wRe - im[odd] * wIm;
+                    double oddIm = re[odd] * wIm + im[odd] * wRe;
+                    re[odd] = re[even] - oddRe;
+                    im[odd] = im[even] - oddIm;
+                    re[even] += oddRe;
+                    im[even] += oddIm;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.biorecorder.digitalfilter;
+
+/**
+ * Reduces the sample rate by the integer divider:
+ * filters the values by the anti-aliasing FIR filter and keeps every divider-th output
+ * (the last value of every group of divider input values, as when averaging the groups).
+ * <p>
+ * Only the kept outputs are computed (as in the polyphase decomposition of the filter)
+ * so the cost is taps / divider multiplications per input value.
+ * Decimator keeps the last input values and its phase, so the blocks may be of any length
+ * (not a multiple of the divider) and the output does not depend on the block sizes.
+ * <p>
+ * Linear phase kernel delays the values by (taps - 1) / 2 input values
+ * (the default kernel: TAPS_PER_PHASE * divider / 2 input values = TAPS_PER_PHASE / 2 outputs).
+ */
+public class FirDecimator {
+    /**
+     * Default anti-aliasing kernel has TAPS_PER_PHASE * divider + 1 taps
+     */
+    public static final int TAPS_PER_PHASE = 16;
+
+    private final int divider;
+    private final double[] reversedKernel;
+    private final int taps;
+    // the last (taps - 1) input values from the oldest to the newest
+    private final double[] history;
+    // filter history followed by the block values
+    private double[] extendedBlock = new double[0];
+    // index (in the next block) of the input value whose output will be kept
+    private int nextOutput;
+
+    /**
+     * Decimator with the default anti-aliasing filter
+     * (linear phase low pass with the cutoff at 0.8 of the new Nyquist frequency)
+     */
+    public FirDecimator(int divider) throws IllegalArgumentException {
+        this(divider, defaultKernel(divider));
+    }
+
+    /**
+     * @param kernel anti-aliasing filter coefficients (impulse response)
+     * @throws IllegalArgumentException if divider &lt; 1 or the kernel is empty
+     */
+    public FirDecimator(int divider, double[] kernel) throws IllegalArgumentException {
+        if (divider < 1) {
+            throw new IllegalArgumentException("Divider must be greater than 0. Divider = " + divider);
+        }
+        if (kernel.length == 0) {
+            throw new IllegalArgumentException("Filter kernel is empty");
+        }
+        this.divider = divider;
+        taps = kernel.length;
+        reversedKernel = new double[taps];
+        for (int k = 0; k < taps; k++) {
+            reversedKernel[k] = kernel[taps - 1 - k];
+        }
+        history = new double[taps - 1];
+        nextOutput = divider - 1;
+    }
+
+    private static double[] defaultKernel(int divider) throws IllegalArgumentException {
+        if (divider < 1) {
+            throw new IllegalArgumentException("Divider must be greater than 0. Divider = " + divider);
+        }
+        if (divider == 1) {
+            return new double[]{1};
+        }
+        return FirFilterDesigner.lowPassKernel(1, 0.4 / divider, TAPS_PER_PHASE * divider + 1);
+    }
+
+    public int getDivider() {
+        return divider;
+    }
+
+    /**
+     * Clears the filter history and phase (as if no values were given)
+     */
+    public void reset() {
+        for (int i = 0; i < history.length; i++) {
+            history[i] = 0;
+        }
+        nextOutput = divider - 1;
+    }
+
+    /**
+     * @return max number of outputs that the block of the given length can give
+     */
+    public int getMaxOutputs(int len) {
+        return (len + divider - 1) / divider;
+    }
+
+    /**
+     * Decimates the block of values. Output array may be the same as the input one
+     * (all input values are read before writing outputs)
+     *
+     * @return number of the outputs written to out starting from outOff
+     */
+    public int decimate(double[] in, int off, int len, double[] out, int outOff) {
+        if (len <= 0) {
+            return 0;
+        }
+        int historyLength = taps - 1;
+        if (extendedBlock.length < historyLength + len) {
+            extendedBlock = new double[historyLength + len];
+        }
+        double[] extended = extendedBlock;
+        System.arraycopy(history, 0, extended, 0, historyLength);
+        System.arraycopy(in, off, extended, historyLength, len);
+
+        double[] reversedKernel = this.reversedKernel;
+        int taps = this.taps;
+        int outputs = 0;
+        int i = nextOutput;
+        for (; i < len; i += divider) {
+            // values from (i - taps + 1) to i
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                sum += reversedKernel[k] * extended[i + k];
+            }
+            out[outOff + outputs++] = sum;
+        }
+        nextOutput = i - len;
+        System.arraycopy(extended, len, history, 0, historyLength);
+        return outputs;
+    }
+}
@@ -0,0 +1,272 @@
+package com.biorecorder.digitalfilter;
+
+import java.util.Random;
+
+/**
+ * Streaming FIR filter: y[n] = sum h[k] * x[n - k].
+ * <p>
+ * Filter keeps the last input values so the blocks (data records) may be given one by one
+ * and the output does not depend on the block sizes. Every channel needs its own filter instance.
+ * <p>
+ * Short kernels are always computed directly (O(taps) per sample).
+ * For kernels not shorter than {@link #FFT_KERNEL_THRESHOLD} the block is computed
+ * by FFT overlap-save (O(log(taps)) per sample) if the block is long enough for that
+ * to be cheaper (about {@link #getSegmentLength()} values or more).
+ * The FFT segments are taken from the given block and the filter history only,
+ * so FFT filtering adds no latency. The results of both methods coincide up to rounding errors.
+ * <p>
+ * Usage:
+ * <ul>
+ * <li>live - add the filter to the channel: {@code bioRecorder.addChannelFilter(channel, filter, name)}.
+ * Every data record slice of the channel is filtered in one call. Live records are short
+ * (at most 10 samples per channel) so they are always computed directly.
+ * To use FFT for live data wrap a long filter in {@link BufferedFirFilter}
+ * that collects the records into FFT segments at the cost of one segment latency</li>
+ * <li>offline - give to the filter the samples read by EdfReader:
+ * {@code n = edfReader.readPhysicalSamples(signal, n, buffer); filter.filter(buffer, buffer, 0, n);}
+ * or write the data records read by {@code edfReader.readDataRecords()} to a SignalFilter</li>
+ * </ul>
+ */
+public class FirFilter implements DigitalFilter {
+    /**
+     * Kernels shorter than this threshold are always computed directly
+     */
+    public static final int FFT_KERNEL_THRESHOLD = 64;
+
+    private final double[] kernel;
+    // reversed kernel: reversedKernel[k] multiplies the k-th oldest of the last taps values
+    private final double[] reversedKernel;
+    private final int taps;
+    // circular buffer of the last taps input values. position - index of the oldest one
+    private final double[] delayLine;
+    private int position;
+    // filter history followed by the block values
+    private double[] extendedBlock = new double[0];
+
+    // overlap-save (null for short kernels)
+    private final Fft fft;
+    private final int segmentOutputs;
+    private double[] kernelRe;
+    private double[] kernelIm;
+    private double[] re;
+    private double[] im;
+
+    /**
+     * @param kernel filter coefficients (impulse response)
+     * @throws IllegalArgumentException if the kernel is empty
+     */
+    public FirFilter(double[] kernel) throws IllegalArgumentException {
+        if (kernel.length == 0) {
+            throw new IllegalArgumentException("Filter kernel is empty");
+        }
+        this.kernel = kernel.clone();
+        taps = kernel.length;
+        reversedKernel = new double[taps];
+        for (int k = 0; k < taps; k++) {
+            reversedKernel[k] = kernel[taps - 1 - k];
+        }
+        delayLine = new double[taps];
+        if (taps >= FFT_KERNEL_THRESHOLD) {
+            // FFT size about 4 * taps gives the least cost per output sample
+            fft = new Fft(Fft.nextPowerOf2(4 * taps));
+            int fftSize = fft.getSize();
+            segmentOutputs = fftSize - taps + 1;
+            kernelRe = new double[fftSize];
+            kernelIm = new double[fftSize];
+            System.arraycopy(kernel, 0, kernelRe, 0, taps);
+            fft.transform(kernelRe, kernelIm);
+            re = new double[fftSize];
+            im = new double[fftSize];
+        } else {
+            fft = null;
+            segmentOutputs = 0;
+        }
+    }
+
+    public double[] getKernel() {
+        return kernel.clone();
+    }
+
+    /**
+     * @return number of output values computed by one FFT segment
+     * or 0 if the kernel is shorter than {@link #FFT_KERNEL_THRESHOLD} and FFT is never used
+     */
+    public int getSegmentLength() {
+        return segmentOutputs;
+    }
+
+    /**
+     * Clears the filter history (as if no values were filtered)
+     */
+    public void reset() {
+        for (int i = 0; i < taps; i++) {
+            delayLine[i] = 0;
+        }
+        position = 0;
+    }
+
+    @Override
+    public double filteredValue(double inputValue) {
+        delayLine[position] = inputValue;
+        double sum = 0;
+        int k = 0;
+        // from the oldest value to the newest
+        for (int i = position + 1; i < taps; i++) {
+            sum += reversedKernel[k++] * delayLine[i];
+        }
+        for (int i = 0; i <= position; i++) {
+            sum += reversedKernel[k++] * delayLine[i];
+        }
+        if (++position == taps) {
+            position = 0;
+        }
+        return sum;
+    }
+
+    @Override
+    public void filter(double[] in, double[] out, int off, int len) {
+        if (len <= 0) {
+            return;
+        }
+        int historyLength = taps - 1;
+        if (extendedBlock.length < historyLength + len) {
+            extendedBlock = new double[historyLength + len];
+        }
+        double[] extended = extendedBlock;
+        // the last (taps - 1) values from the oldest to the newest
+        int n = taps - 1 - position;
+        System.arraycopy(delayLine, position + 1, extended, 0, n);
+        System.arraycopy(delayLine, 0, extended, n, position);
+        System.arraycopy(in, off, extended, historyLength, len);
+
+        if (isFftCheaper(len)) {
+            filterFft(extended, out, off, len);
+        } else {
+            filterDirect(extended, out, off, len);
+        }
+
+        // save the history. The oldest value goes to index 1 (index 0 is the next to overwrite)
+        System.arraycopy(extended, len, delayLine, 1, historyLength);
+        position = 0;
+    }
+
+    private boolean isFftCheaper(int len) {
+        if (fft == null) {
+            return false;
+        }
+        int fftSize = fft.getSize();
+        // two segments are computed by one complex FFT (as real and imaginary parts)
+        long pairs = ((len + segmentOutputs - 1) / segmentOutputs + 1) / 2;
+        // forward and inverse transforms + spectrum multiplication (floating point operations)
+        long fftCost = pairs * (10L * fftSize * Integer.numberOfTrailingZeros(fftSize) + 8L * fftSize);
+        long directCost = 2L * len * taps;
+        return fftCost < directCost;
+    }
+
+    private void filterDirect(double[] extended, double[] out, int off, int len) {
+        double[] reversedKernel = this.reversedKernel;
+        int taps = this.taps;
+        for (int j = 0; j < len; j++) {
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                sum += reversedKernel[k] * extended[j + k];
+            }
+            out[off + j] = sum;
+        }
+    }
+
+    /**
+     * Overlap-save: every segment of (segmentOutputs + taps - 1) values gives
+     * segmentOutputs outputs of the circular convolution that coincide with the linear one.
+     * Two real segments are transformed at once: the first as real part, the second as imaginary part
+     * (the kernel is real so the results are separated the same way)
+     */
+    private void filterFft(double[] extended, double[] out, int off, int len) {
+        int fftSize = fft.getSize();
+        int historyLength = taps - 1;
+        double[] re = this.re;
+        double[] im = this.im;
+        for (int start = 0; start < len; start += 2 * segmentOutputs) {
+            int outputs1 = Math.min(segmentOutputs, len - start);
+            int outputs2 = Math.max(0, Math.min(segmentOutputs, len - start - outputs1));
+            int values1 = outputs1 + historyLength;
+            int values2 = outputs2 == 0 ? 0 : outputs2 + historyLength;
+            System.arraycopy(extended, start, re, 0, values1);
+            for (int i = values1; i < fftSize; i++) {
+                re[i] = 0;
+            }
+            if (values2 > 0) {
+                System.arraycopy(extended, start + outputs1, im, 0, values2);
+            }
+            for (int i = values2; i < fftSize; i++) {
+                im[i] = 0;
+            }
+            fft.transform(re, im);
+            for (int i = 0; i < fftSize; i++) {
+                double r = re[i] * kernelRe[i] - im[i] * kernelIm[i];
+                im[i] = re[i] * kernelIm[i] + im[i] * kernelRe[i];
+                re[i] = r;
+            }
+            fft.inverseTransform(re, im);
+            System.arraycopy(re, historyLength, out, off + start, outputs1);
+            if (outputs2 > 0) {
+                System.arraycopy(im, historyLength, out, off + start + outputs1, outputs2);
+            }
+        }
+    }
+
+    /**
+     * Unit Test. Usage Example.
+     */
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        boolean isTestOk = true;
+        int[] kernelLengths = {1, 5, FFT_KERNEL_THRESHOLD, 301};
+        int[] blockLengths = {1, 7, 500, 4000, 33};
+        for (int taps : kernelLengths) {
+            double[] kernel = new double[taps];
+            for (int i = 0; i < taps; i++) {
+                kernel[i] = random.nextGaussian();
+            }
+            FirFilter blockFilter = new FirFilter(kernel);
+            FirFilter scalarFilter = new FirFilter(kernel);
+            for (int blockLength : blockLengths) {
+                double[] block = new double[blockLength];
+                double[] expected = new double[blockLength];
+                for (int i = 0; i < blockLength; i++) {
+                    block[i] = random.nextGaussian() * 1000;
+                    expected[i] = scalarFilter.filteredValue(block[i]);
+                }
+                // in place
+                blockFilter.filter(block, block, 0, blockLength);
+                for (int i = 0; i < blockLength; i++) {
+                    if (Math.abs(block[i] - expected[i]) > 1.0E-7 * (1 + Math.abs(expected[i]))) {
+                        System.out.println("taps " + taps + ", block " + blockLength + ", sample " + i
+                                + " Error! filtered value: " + block[i] + " Expected value " + expected[i]);
+                        isTestOk = false;
+                        break;
+                    }
+                }
+            }
+        }
+
+        // low pass keeps 10Hz and removes 100Hz
+        double sampleRate = 1000;
+        FirFilter lowPass = FirFilterDesigner.lowPass(sampleRate, 40, 301);
+        int delay = (301 - 1) / 2;
+        double[] signal = new double[4000];
+        for (int i = 0; i < signal.length; i++) {
+            signal[i] = Math.sin(2 * Math.PI * 10 * i / sampleRate) + Math.sin(2 * Math.PI * 100 * i / sampleRate);
+        }
+        lowPass.filter(signal, signal, 0, signal.length);
+        double maxError = 0;
+        for (int i = 1000; i < signal.length; i++) {
+            maxError = Math.max(maxError, Math.abs(signal[i] - Math.sin(2 * Math.PI * 10 * (i - delay) / sampleRate)));
+        }
+        if (maxError > 0.01) {
+            System.out.println("Low pass error: " + maxError);
+            isTestOk = false;
+        }
+        System.out.println("Is test ok: " + isTestOk);
+    }
+}
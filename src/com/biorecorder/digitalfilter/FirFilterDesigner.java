@@ -0,0 +1,86 @@
+package com.biorecorder.digitalfilter;
+
+/**
+ * Designs linear phase FIR filters ({@link FirFilter}) by the window method
+ * (ideal impulse response truncated by the Hamming window).
+ * <p>
+ * Filters delay the signal by (numberOfTaps - 1) / 2 samples.
+ * Transition band is about 3.3 * sampleRate / numberOfTaps wide.
+ * All frequencies are in Hz and must be between 0 and sampleRate / 2.
+ */
+public class FirFilterDesigner {
+
+    private FirFilterDesigner() {
+        // static methods only
+    }
+
+    public static FirFilter lowPass(double sampleRate, double cutoffFrequency, int numberOfTaps) throws IllegalArgumentException {
+        return new FirFilter(lowPassKernel(sampleRate, cutoffFrequency, numberOfTaps));
+    }
+
+    /**
+     * @param numberOfTaps must be odd
+     */
+    public static FirFilter highPass(double sampleRate, double cutoffFrequency, int numberOfTaps) throws IllegalArgumentException {
+        checkOdd(numberOfTaps);
+        // spectral inversion of the low pass
+        double[] kernel = lowPassKernel(sampleRate, cutoffFrequency, numberOfTaps);
+        for (int i = 0; i < numberOfTaps; i++) {
+            kernel[i] = -kernel[i];
+        }
+        kernel[(numberOfTaps - 1) / 2] += 1;
+        return new FirFilter(kernel);
+    }
+
+    /**
+     * @param numberOfTaps must be odd
+     */
+    public static FirFilter bandPass(double sampleRate, double lowCutoffFrequency, double highCutoffFrequency, int numberOfTaps) throws IllegalArgumentException {
+        checkOdd(numberOfTaps);
+        if (lowCutoffFrequency >= highCutoffFrequency) {
+            String errMsg = "Low cutoff frequency: " + lowCutoffFrequency + " must be less than high cutoff frequency: " + highCutoffFrequency;
+            throw new IllegalArgumentException(errMsg);
+        }
+        // difference of two low passes
+        double[] kernel = lowPassKernel(sampleRate, highCutoffFrequency, numberOfTaps);
+        double[] lowKernel = lowPassKernel(sampleRate, lowCutoffFrequency, numberOfTaps);
+        for (int i = 0; i < numberOfTaps; i++) {
+            kernel[i] -= lowKernel[i];
+        }
+        return new FirFilter(kernel);
+    }
+
+    /**
+     * Windowed sinc normalized to the unit gain at 0Hz
+     */
+    public static double[] lowPassKernel(double sampleRate, double cutoffFrequency, int numberOfTaps) throws IllegalArgumentException {
+        if (cutoffFrequency <= 0 || cutoffFrequency >= sampleRate / 2) {
+            String errMsg = "Frequency must be between 0 and sampleRate/2. Frequency = " + cutoffFrequency + " Sample rate = " + sampleRate;
+            throw new IllegalArgumentException(errMsg);
+        }
+        if (numberOfTaps < 1) {
+            throw new IllegalArgumentException("Number of taps must be greater than 0. Number of taps = " + numberOfTaps);
+        }
+        double fc = cutoffFrequency / sampleRate;
+        double middle = (numberOfTaps - 1) / 2.0;
+        double[] kernel = new double[numberOfTaps];
+        double sum = 0;
+        for (int i = 0; i < numberOfTaps; i++) {
+            double x = i - middle;
+            double sinc = x == 0 ? 2 * fc : Math.sin(2 * Math.PI * fc * x) / (Math.PI * x);
+            double window = numberOfTaps == 1 ? 1 : 0.54 - 0.46 * Math.cos(2 * Math.PI * i / (numberOfTaps - 1));
+            kernel[i] = sinc * window;
+            sum += kernel[i];
+        }
+        for (int i = 0; i < numberOfTaps; i++) {
+            kernel[i] /= sum;
+        }
+        return kernel;
+    }
+
+    private static void checkOdd(int numberOfTaps) throws IllegalArgumentException {
+        if (numberOfTaps % 2 == 0) {
+            throw new IllegalArgumentException("Number of taps must be odd. Number of taps = " + numberOfTaps);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.biorecorder.digitalfilter;
+
+/**
+ * Designs the IIR filters as cascades of biquad sections ({@link BiquadFilter}).
+ * Analog prototypes are converted to digital filters by the bilinear transform
+ * with frequency prewarping (formulas of the "Audio EQ Cookbook" by R. Bristow-Johnson).
+ * <p>
+ * All frequencies are in Hz and must be between 0 and sampleRate / 2.
+ */
+public class IirFilterDesigner {
+    /**
+     * Quality factor of the notch. At 50Hz the notch band (-3dB) is about 1.7Hz wide
+     */
+    public static final double DEFAULT_NOTCH_Q = 30;
+
+    private IirFilterDesigner() {
+        // static methods only
+    }
+
+    /**
+     * Notch (band stop) filter removing the given frequency (power line noise)
+     *
+     * @param q quality factor = frequency / width of the notch band
+     */
+    public static BiquadFilter notch(double sampleRate, double frequency, double q) throws IllegalArgumentException {
+        return new BiquadFilter(new double[][]{notchSection(sampleRate, frequency, q)});
+    }
+
+    /**
+     * Cascade of notches removing the given frequency and its harmonics.
+     * Harmonics not lower than sampleRate / 2 are skipped.
+     *
+     * @param numberOfHarmonics number of the frequencies to remove:
+     *                          1 - only the given frequency, 2 - frequency and 2*frequency and so on
+     */
+    public static BiquadFilter notch(double sampleRate, double frequency, double q, int numberOfHarmonics) throws IllegalArgumentException {
+        checkFrequency(sampleRate, frequency);
+        int n = 1;
+        while (n < numberOfHarmonics && (n + 1) * frequency < sampleRate / 2) {
+            n++;
+        }
+        double[][] sections = new double[n][];
+        for (int i = 0; i < n; i++) {
+            sections[i] = notchSection(sampleRate, frequency * (i + 1), q);
+        }
+        return new BiquadFilter(sections);
+    }
+
+    /**
+     * Butterworth low pass filter
+     *
+     * @param cutoffFrequency frequency of -3dB attenuation
+     * @param order           filter order (number of poles)
+     */
+    public static BiquadFilter butterworthLowPass(double sampleRate, double cutoffFrequency, int order) throws IllegalArgumentException {
+        return butterworth(sampleRate, cutoffFrequency, order, false);
+    }
+
+    /**
+     * Butterworth high pass filter
+     *
+     * @param cutoffFrequency frequency of -3dB attenuation
+     * @param order           filter order (number of poles)
+     */
+    public static BiquadFilter butterworthHighPass(double sampleRate, double cutoffFrequency, int order) throws IllegalArgumentException {
+        return butterworth(sampleRate, cutoffFrequency, order, true);
+    }
+
+    /**
+     * Band pass filter realized as Butterworth high pass
+     * followed by Butterworth low pass of the same order
+     * (suitable for the wide bands usual for biosignals, like 0.5 - 70Hz)
+     */
+    public static BiquadFilter butterworthBandPass(double sampleRate, double lowCutoffFrequency, double highCutoffFrequency, int order) throws IllegalArgumentException {
+        if (lowCutoffFrequency >= highCutoffFrequency) {
+            String errMsg = "Low cutoff frequency: " + lowCutoffFrequency + " must be less than high cutoff frequency: " + highCutoffFrequency;
+            throw new IllegalArgumentException(errMsg);
+        }
+        return BiquadFilter.cascade(butterworthHighPass(sampleRate, lowCutoffFrequency, order),
+                butterworthLowPass(sampleRate, highCutoffFrequency, order));
+    }
+
+    /**
+     * DC blocking filter: y[n] = g * (x[n] - x[n-1]) + r * y[n-1].
+     * Much cheaper than high pass (one first order section).
+     *
+     * @param cutoffFrequency approximate frequency of -3dB attenuation (usually 0.05 - 1Hz)
+     */
+    public static BiquadFilter dcBlock(double sampleRate, double cutoffFrequency) throws IllegalArgumentException {
+        checkFrequency(sampleRate, cutoffFrequency);
+        double r = Math.exp(-2 * Math.PI * cutoffFrequency / sampleRate);
+        // unity gain at the Nyquist frequency
+        double g = (1 + r) / 2;
+        return new BiquadFilter(new double[][]{{g, -g, 0, -r, 0}});
+    }
+
+    private static BiquadFilter butterworth(double sampleRate, double cutoffFrequency, int order, boolean isHighPass) throws IllegalArgumentException {
+        checkFrequency(sampleRate, cutoffFrequency);
+        if (order < 1) {
+            throw new IllegalArgumentException("Filter order must be greater than 0. Order = " + order);
+        }
+        double[][] sections = new double[(order + 1) / 2][];
+        // every pair of complex conjugate poles of the analog prototype gives one biquad
+        for (int k = 0; k < order / 2; k++) {
+            double q = 1 / (2 * Math.sin(Math.PI * (2 * k + 1) / (2 * order)));
+            sections[k] = isHighPass ? highPassSection(sampleRate, cutoffFrequency, q) : lowPassSection(sampleRate, cutoffFrequency, q);
+        }
+        if (order % 2 != 0) {
+            // the real pole gives the first order section
+            double k = Math.tan(Math.PI * cutoffFrequency / sampleRate);
+            double a1 = (k - 1) / (k + 1);
+            if (isHighPass) {
+                double b0 = 1 / (1 + k);
+                sections[sections.length - 1] = new double[]{b0, -b0, 0, a1, 0};
+            } else {
+                double b0 = k / (1 + k);
+                sections[sections.length - 1] = new double[]{b0, b0, 0, a1, 0};
+            }
+        }
+        return new BiquadFilter(sections);
+    }
+
+    private static double[] lowPassSection(double sampleRate, double frequency, double q) {
+        double w0 = 2 * Math.PI * frequency / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        double a0 = 1 + alpha;
+        double b1 = (1 - cos) / a0;
+        return new double[]{b1 / 2, b1, b1 / 2, -2 * cos / a0, (1 - alpha) / a0};
+    }
+
+    private static double[] highPassSection(double sampleRate, double frequency, double q) {
+        double w0 = 2 * Math.PI * frequency / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        double a0 = 1 + alpha;
+        double b1 = -(1 + cos) / a0;
+        return new double[]{-b1 / 2, b1, -b1 / 2, -2 * cos / a0, (1 - alpha) / a0};
+    }
+
+    private static double[] notchSection(double sampleRate, double frequency, double q) throws IllegalArgumentException {
+        checkFrequency(sampleRate, frequency);
+        if (q <= 0) {
+            throw new IllegalArgumentException("Quality factor must be positive. Q = " + q);
+        }
+        double w0 = 2 * Math.PI * frequency / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * q);
+        double a0 = 1 + alpha;
+        return new double[]{1 / a0, -2 * cos / a0, 1 / a0, -2 * cos / a0, (1 - alpha) / a0};
+    }
+
+    private static void checkFrequency(double sampleRate, double frequency) throws IllegalArgumentException {
+        if (frequency <= 0 || frequency >= sampleRate / 2) {
+            String errMsg = "Frequency must be between 0 and sampleRate/2. Frequency = " + frequency + " Sample rate = " + sampleRate;
+            throw new IllegalArgumentException(errMsg);
+        }
+    }
+}
@@ -1,30 +1,67 @@
 package com.biorecorder.digitalfilter;
 
-import com.biorecorder.CircularFifoBuffer;
-
 /**
  * Created by galafit on 30/3/18.
  */
 public class MovingAverageFilter implements DigitalFilter {
-    private final CircularFifoBuffer fifoBuffer;
+    // circular buffer of the last values
+    private final double[] buffer;
     private final int bufferSize;
+    private int position;
+    private int count;
     private double sum;
 
     public MovingAverageFilter(int numberOfAveragingPoints) {
-        fifoBuffer = new CircularFifoBuffer(numberOfAveragingPoints);
+        if (numberOfAveragingPoints <= 0) {
+            throw new IllegalArgumentException("Number of averaging points must be greater than 0");
+        }
+        buffer = new double[numberOfAveragingPoints];
         bufferSize = numberOfAveragingPoints;
     }
 
     public double filteredValue(double value) {
-        fifoBuffer.add(value);
+        buffer[position] = value;
+        if (++position == bufferSize) {
+            position = 0;
+        }
+        if (count < bufferSize) {
+            count++;
+        }
         sum += value;
-        double avg = sum / fifoBuffer.size();
-        if(fifoBuffer.size() == bufferSize) {
-            sum -= fifoBuffer.get();
+        double avg = sum / count;
+        if (count == bufferSize) {
+            // the oldest value
+            sum -= buffer[position];
         }
         return avg;
     }
 
+    @Override
+    public void filter(double[] in, double[] out, int off, int len) {
+        int end = off + len;
+        int i = off;
+        // while the buffer is not full yet
+        for (; i < end && count < bufferSize; i++) {
+            out[i] = filteredValue(in[i]);
+        }
+        double[] buffer = this.buffer;
+        int bufferSize = this.bufferSize;
+        int position = this.position;
+        double sum = this.sum;
+        for (; i < end; i++) {
+            double value = in[i];
+            buffer[position] = value;
+            if (++position == bufferSize) {
+                position = 0;
+            }
+            sum += value;
+            out[i] = sum / bufferSize;
+            sum -= buffer[position];
+        }
+        this.position = position;
+        this.sum = sum;
+    }
+
     /**
      * Unit Test. Usage Example.
      */
@@ -48,6 +85,23 @@ public class MovingAverageFilter implements DigitalFilter {
                 break;
             }
         }
+        // block filtering must give the same values
+        MovingAverageFilter blockFilter = new MovingAverageFilter(numberOfAveragingPoints);
+        MovingAverageFilter scalarFilter = new MovingAverageFilter(numberOfAveragingPoints);
+        double[] block = new double[arr.length];
+        for (int i = 0; i < arr.length; i++) {
+            block[i] = arr[i];
+        }
+        blockFilter.filter(block, block, 0, 2);
+        blockFilter.filter(block, block, 2, arr.length - 2);
+        for (int i = 0; i < arr.length; i++) {
+            double expectedValue = scalarFilter.filteredValue(arr[i]);
+            if(block[i] != expectedValue) {
+                System.out.println(i + " Block error! filtered value: " + block[i] + " Expected value " + expectedValue);
+                isTestOk = false;
+                break;
+            }
+        }
         System.out.println("Is test ok: "+isTestOk);
     }
 }
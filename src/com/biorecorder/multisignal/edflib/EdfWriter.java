@@ -46,11 +46,14 @@ public class EdfWriter implements DataRecordStream {
     private final File file;
 
     private volatile boolean isClosed = false;
-    private volatile boolean isWriting = false;
+    // close() waits on this lock for the end of the current writing
+    private final Object writingLock = new Object();
     private volatile long sampleCount;
 
     private final FileOutputStream fileOutputStream;
     private int recordSize; // helper field to avoid unnecessary calculations
+    // samples are clamped here to not change the caller arrays
+    private int[] clampedSamples = new int[0];
     private int currentSignal;
 
     public EdfWriter(File file) throws FileNotFoundException {
@@ -128,15 +131,11 @@ public class EdfWriter implements DataRecordStream {
         int sn = header.getNumberOfSamplesInEachDataRecord(currentSignal);
         int digMin = header.getDigitalMin(currentSignal);
         int digMax = header.getDigitalMax(currentSignal);
+        int[] samples = getClampedSamplesArray(sn);
         for (int i = 0; i < sn; i++) {
-            if(digitalSamples[i] < digMin) {
-                digitalSamples[i] = digMin;
-            }
-            if(digitalSamples[i] > digMax) {
-                digitalSamples[i] = digMax;
-            }
+            samples[i] = clamp(digitalSamples[i], digMin, digMax);
         }
-        writeDataToFile(digitalSamples, sn);
+        writeDataToFile(samples, sn);
         currentSignal++;
         if(currentSignal == header.numberOfSignals()) {
             currentSignal = 0;
@@ -164,22 +163,35 @@ public class EdfWriter implements DataRecordStream {
         if(currentSignal != 0) {
             throw new IllegalStateException(RECORD_INCOMPLETE);
         }
+        int[] samples = getClampedSamplesArray(recordSize);
         int counter = 0;
         for (int signal = 0; signal < header.numberOfSignals(); signal++) {
             int sn = header.getNumberOfSamplesInEachDataRecord(signal);
             int digMin = header.getDigitalMin(signal);
             int digMax = header.getDigitalMax(signal);
             for (int i = 0; i < sn; i++) {
-                if(digitalDataRecord[counter] < digMin) {
-                    digitalDataRecord[counter] = digMin;
-                }
-                if(digitalDataRecord[counter] > digMax) {
-                    digitalDataRecord[counter] = digMax;
-                }
+                samples[counter] = clamp(digitalDataRecord[counter], digMin, digMax);
                 counter++;
             }
         }
-        writeDataToFile(digitalDataRecord, recordSize);
+        writeDataToFile(samples, recordSize);
+    }
+
+    private int[] getClampedSamplesArray(int length) {
+        if(clampedSamples.length < length) {
+            clampedSamples = new int[length];
+        }
+        return clampedSamples;
+    }
+
+    private static int clamp(int value, int digMin, int digMax) {
+        if(value < digMin) {
+            return digMin;
+        }
+        if(value > digMax) {
+            return digMax;
+        }
+        return value;
     }
 
 
@@ -251,20 +263,15 @@ public class EdfWriter implements DataRecordStream {
             return;
         }
         isClosed = true;
-        while(isWriting) {
+        synchronized (writingLock) {
             try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-        try {
-            writeHeaderToFile();
-        } finally {
-            try {
-                fileOutputStream.close();
-            } catch (IOException e) {
-                throw new IORuntimeException(e);
+                writeHeaderToFile();
+            } finally {
+                try {
+                    fileOutputStream.close();
+                } catch (IOException e) {
+                    throw new IORuntimeException(e);
+                }
             }
         }
     }
@@ -287,12 +294,10 @@ public class EdfWriter implements DataRecordStream {
 
 
     private void writeDataToFile(int[] samples, int length) throws IllegalStateException, IORuntimeException {
-        isWriting = true;
-        if(isClosed) {
-            isWriting = false;
-            throw new IllegalStateException(CLOSED_MSG);
-        }
-        try{
+        synchronized (writingLock) {
+            if(isClosed) {
+                throw new IllegalStateException(CLOSED_MSG);
+            }
             if(sampleCount == 0) {
                 long firstRecordTime = System.currentTimeMillis();
                 if(header.getRecordingStartTimeMs() <= 0) {
@@ -309,8 +314,6 @@ public class EdfWriter implements DataRecordStream {
             } catch (IOException e) {
                 throw new IORuntimeException(e);
             }
-        } finally {
-            isWriting = false;
         }
     }
 
@@ -0,0 +1,366 @@
+package com.biorecorder.multisignal.recordfilter;
+
+import com.biorecorder.digitalfilter.DigitalFilter;
+import com.biorecorder.digitalfilter.FirDecimator;
+import com.biorecorder.digitalfilter.MovingAverageFilter;
+import com.biorecorder.multisignal.recordformat.DataHeader;
+import com.biorecorder.multisignal.recordformat.DataRecordStream;
+import com.biorecorder.multisignal.recordformat.FormatVersion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces the chain of {@link SignalRemover}, {@link SignalFilter},
+ * {@link SignalFrequencyReducer} and {@link RecordsJoiner} (in any order and number)
+ * by one stage that produces the same data records in a single pass:
+ * <ul>
+ * <li>every resultant signal knows its source offset in the input record,
+ * its offset in the resultant record and the list of operations (filters and dividers)
+ * to apply to its samples (filters, dividers and polyphase decimators),
+ * so no per sample lookups in the collections</li>
+ * <li>removed signals are not read at all</li>
+ * <li>resultant samples are written directly to their place in the (joined)
+ * resultant record. That record is reused (not allocated for every record)</li>
+ * </ul>
+ * The plan is compiled on setHeader(). Filters of the chain are used by this stage
+ * so the original chain must not be used after compiling.
+ * <p>
+ * Dividers (not polyphase) must be applied to signals whose number of samples in data record
+ * is a multiple of the divider.
+ */
+public class FusedRecordFilter extends FilterRecordStream {
+    // stages in the order the records pass through them
+    private final List<FilterRecordStream> stages;
+    private DataHeader outConfig;
+    private SignalPlan[] signalPlans;
+    private int numberOfRecordsToJoin = 1;
+    private int joinedRecordsCounter;
+    private int[] outRecord;
+
+    private FusedRecordFilter(List<FilterRecordStream> stages, DataRecordStream outStream) {
+        super(outStream);
+        this.stages = stages;
+    }
+
+    /**
+     * Compiles the chain of the filter streams into one stage.
+     * The chain is followed while its streams are SignalRemover, SignalFilter,
+     * SignalFrequencyReducer, RecordsJoiner or simple FilterRecordStream.
+     * The first stream of other type becomes the output stream of the resultant stage.
+     *
+     * @param chain the first stream of the chain (to which records are written)
+     * @return stage equivalent to the fused part of the chain or the given chain
+     * if it has nothing to fuse
+     */
+    public static DataRecordStream compile(DataRecordStream chain) {
+        List<FilterRecordStream> stages = new ArrayList<FilterRecordStream>();
+        DataRecordStream stream = chain;
+        while (isFusible(stream)) {
+            FilterRecordStream stage = (FilterRecordStream) stream;
+            stages.add(stage);
+            stream = stage.outStream;
+        }
+        if (stages.isEmpty()) {
+            return chain;
+        }
+        return new FusedRecordFilter(stages, stream);
+    }
+
+    private static boolean isFusible(DataRecordStream stream) {
+        // subclasses may change the behaviour so exact classes are checked
+        Class<?> streamClass = stream.getClass();
+        return streamClass == FilterRecordStream.class || streamClass == SignalRemover.class ||
+                streamClass == SignalFilter.class || streamClass == SignalFrequencyReducer.class ||
+                streamClass == RecordsJoiner.class;
+    }
+
+    @Override
+    public void setHeader(DataHeader header) {
+        inConfig = header;
+        compile(header);
+        outStream.setHeader(outConfig);
+    }
+
+    @Override
+    protected DataHeader getOutConfig() {
+        return outConfig;
+    }
+
+    /**
+     * Follows the signals through the stages and collects the operations
+     * applied to every signal
+     */
+    private void compile(DataHeader header) throws IllegalArgumentException {
+        int[] inOffsets = new int[header.numberOfSignals()];
+        int inRecordSize = 0;
+        for (int i = 0; i < header.numberOfSignals(); i++) {
+            inOffsets[i] = inRecordSize;
+            inRecordSize += header.getNumberOfSamplesInEachDataRecord(i);
+        }
+        this.inRecordSize = inRecordSize;
+
+        List<SignalPlan> plans = new ArrayList<SignalPlan>(header.numberOfSignals());
+        for (int i = 0; i < header.numberOfSignals(); i++) {
+            plans.add(new SignalPlan(inOffsets[i], header.getNumberOfSamplesInEachDataRecord(i)));
+        }
+        numberOfRecordsToJoin = 1;
+        DataHeader stageHeader = header;
+        for (FilterRecordStream stage : stages) {
+            if (stage instanceof SignalRemover) {
+                List<Integer> signalsToRemove = ((SignalRemover) stage).getSignalsToRemove();
+                for (int i = plans.size() - 1; i >= 0; i--) {
+                    if (signalsToRemove.contains(i)) {
+                        plans.remove(i);
+                    }
+                }
+            } else if (stage instanceof SignalFilter) {
+                for (int i = 0; i < plans.size(); i++) {
+                    List<? extends DigitalFilter> filters = ((SignalFilter) stage).getSignalFilters(i);
+                    if (filters != null && !filters.isEmpty()) {
+                        plans.get(i).addFilters(filters.toArray(new DigitalFilter[filters.size()]), stageHeader.offset(i));
+                    }
+                }
+            } else if (stage instanceof SignalFrequencyReducer) {
+                SignalFrequencyReducer reducer = (SignalFrequencyReducer) stage;
+                for (int i = 0; i < plans.size(); i++) {
+                    FirDecimator decimator = reducer.getDecimator(i);
+                    if (decimator != null) {
+                        plans.get(i).addDecimator(decimator, stageHeader.offset(i));
+                        continue;
+                    }
+                    Integer divider = reducer.getDivider(i);
+                    if (divider != null && divider > 1) {
+                        int numberOfSamples = stageHeader.getNumberOfSamplesInEachDataRecord(i);
+                        if (numberOfSamples % divider != 0) {
+                            String errMsg = "Number of samples in DataRecord must be a multiple of divider. Number of samples = "
+                                    + numberOfSamples + " Divider = " + divider;
+                            throw new IllegalArgumentException(errMsg);
+                        }
+                        plans.get(i).addDivider(divider);
+                    }
+                }
+                numberOfRecordsToJoin *= reducer.getNumberOfRecordsToJoin(stageHeader);
+            } else if (stage instanceof RecordsJoiner) {
+                numberOfRecordsToJoin *= ((RecordsJoiner) stage).getNumberOfRecordsToJoin();
+            }
+            stageHeader = getStageOutConfig(stage, stageHeader);
+        }
+
+        outConfig = stageHeader;
+        int outRecordSize = 0;
+        for (int i = 0; i < plans.size(); i++) {
+            plans.get(i).setOutOffset(outRecordSize);
+            outRecordSize += outConfig.getNumberOfSamplesInEachDataRecord(i);
+        }
+        signalPlans = plans.toArray(new SignalPlan[plans.size()]);
+        outRecord = new int[outRecordSize];
+        joinedRecordsCounter = 0;
+    }
+
+    /**
+     * Calculates the out config of the stage without passing it down the chain
+     */
+    private static DataHeader getStageOutConfig(FilterRecordStream stage, DataHeader stageInConfig) {
+        stage.inConfig = stageInConfig;
+        DataHeader stageOutConfig = stage.getOutConfig();
+        return stageOutConfig == null ? stageInConfig : stageOutConfig;
+    }
+
+    @Override
+    public void writeDataRecord(int[] inputRecord) {
+        int[] outRecord = this.outRecord;
+        for (SignalPlan plan : signalPlans) {
+            plan.writeSamples(inputRecord, outRecord);
+        }
+        joinedRecordsCounter++;
+        if (joinedRecordsCounter == numberOfRecordsToJoin) {
+            outStream.writeDataRecord(outRecord);
+            for (SignalPlan plan : signalPlans) {
+                plan.resetOutPosition();
+            }
+            joinedRecordsCounter = 0;
+        }
+    }
+
+    /**
+     * Operations applied to the samples of one resultant signal.
+     * Operation i is polyphase decimation if decimators[i] != null,
+     * filtering if dividers[i] == 0 and frequency reducing (averaging) otherwise
+     */
+    static class SignalPlan {
+        private final int inOffset;
+        private final int inSamples;
+        private int outOffset;
+        private int outPosition;
+        private int opsCount;
+        private DigitalFilter[][] filters = new DigitalFilter[0][];
+        private double[] filterOffsets = new double[0];
+        private int[] dividers = new int[0];
+        private FirDecimator[] decimators = new FirDecimator[0];
+        // frequency reducing state
+        private long[] sums = new long[0];
+        private int[] counts = new int[0];
+        // samples of the signal between the operations
+        private final int[] values;
+        private final double[] buffer;
+
+        SignalPlan(int inOffset, int inSamples) {
+            this.inOffset = inOffset;
+            this.inSamples = inSamples;
+            values = new int[inSamples];
+            buffer = new double[inSamples];
+        }
+
+        /**
+         * @param offset offset to convert digital value to the value proportional
+         *               to the physical one (filters work with such values)
+         */
+        void addFilters(DigitalFilter[] signalFilters, double offset) {
+            grow();
+            filters[opsCount] = signalFilters;
+            filterOffsets[opsCount] = offset;
+            opsCount++;
+        }
+
+        void addDivider(int divider) {
+            grow();
+            dividers[opsCount] = divider;
+            opsCount++;
+        }
+
+        /**
+         * @param offset offset to convert digital value to the value proportional
+         *               to the physical one (decimator filters work with such values)
+         */
+        void addDecimator(FirDecimator decimator, double offset) {
+            grow();
+            decimator.reset();
+            decimators[opsCount] = decimator;
+            filterOffsets[opsCount] = offset;
+            opsCount++;
+        }
+
+        private void grow() {
+            int n = opsCount + 1;
+            DigitalFilter[][] filters1 = new DigitalFilter[n][];
+            System.arraycopy(filters, 0, filters1, 0, opsCount);
+            filters = filters1;
+            double[] filterOffsets1 = new double[n];
+            System.arraycopy(filterOffsets, 0, filterOffsets1, 0, opsCount);
+            filterOffsets = filterOffsets1;
+            int[] dividers1 = new int[n];
+            System.arraycopy(dividers, 0, dividers1, 0, opsCount);
+            dividers = dividers1;
+            FirDecimator[] decimators1 = new FirDecimator[n];
+            System.arraycopy(decimators, 0, decimators1, 0, opsCount);
+            decimators = decimators1;
+            sums = new long[n];
+            counts = new int[n];
+        }
+
+        void setOutOffset(int outOffset) {
+            this.outOffset = outOffset;
+            outPosition = outOffset;
+        }
+
+        void resetOutPosition() {
+            outPosition = outOffset;
+        }
+
+        /**
+         * Every operation is applied to the whole signal slice at once
+         * (filters get the slice in one call)
+         */
+        void writeSamples(int[] inputRecord, int[] outRecord) {
+            if (opsCount == 0) {
+                System.arraycopy(inputRecord, inOffset, outRecord, outPosition, inSamples);
+                outPosition += inSamples;
+                return;
+            }
+            double[] buffer = this.buffer;
+            if (opsCount == 1 && dividers[0] == 0 && decimators[0] == null) {
+                // the most usual case: only filters
+                double offset = filterOffsets[0];
+                SignalFilter.toFilterValues(inputRecord, inOffset, buffer, inSamples, offset);
+                for (DigitalFilter filter : filters[0]) {
+                    filter.filter(buffer, buffer, 0, inSamples);
+                }
+                SignalFilter.fromFilterValues(buffer, outRecord, outPosition, inSamples, offset);
+                outPosition += inSamples;
+                return;
+            }
+            int[] values = this.values;
+            System.arraycopy(inputRecord, inOffset, values, 0, inSamples);
+            int n = inSamples;
+            for (int op = 0; op < opsCount; op++) {
+                int divider = dividers[op];
+                if (decimators[op] != null) {
+                    // only the kept samples are computed (their number depends on the decimator phase)
+                    double offset = filterOffsets[op];
+                    SignalFilter.toFilterValues(values, 0, buffer, n, offset);
+                    n = decimators[op].decimate(buffer, 0, n, buffer, 0);
+                    SignalFilter.fromFilterValues(buffer, values, 0, n, offset);
+                } else if (divider == 0) {
+                    double offset = filterOffsets[op];
+                    SignalFilter.toFilterValues(values, 0, buffer, n, offset);
+                    for (DigitalFilter filter : filters[op]) {
+                        filter.filter(buffer, buffer, 0, n);
+                    }
+                    SignalFilter.fromFilterValues(buffer, values, 0, n, offset);
+                } else {
+                    // reduced values are written in place (never ahead of the read position)
+                    long sum = sums[op];
+                    int count = counts[op];
+                    int reducedN = 0;
+                    for (int i = 0; i < n; i++) {
+                        sum += values[i];
+                        if (++count == divider) {
+                            values[reducedN++] = (int) (sum / divider);
+                            sum = 0;
+                            count = 0;
+                        }
+                    }
+                    sums[op] = sum;
+                    counts[op] = count;
+                    n = reducedN;
+                }
+            }
+            System.arraycopy(values, 0, outRecord, outPosition, n);
+            outPosition += n;
+        }
+    }
+
+    /**
+     * Unit Test. Usage Example.
+     */
+    public static void main(String[] args) {
+        // 0 channel 4 samples, 1 channel 2 samples, 2 channel 6 samples
+        int[] dataRecord = {1,3,8,4,  2,4,  5,7,6,8,6,0};
+
+        DataHeader dataConfig = new DataHeader(FormatVersion.BDF_24BIT, 3);
+        dataConfig.setNumberOfSamplesInEachDataRecord(0, 4);
+        dataConfig.setNumberOfSamplesInEachDataRecord(1, 2);
+        dataConfig.setNumberOfSamplesInEachDataRecord(2, 6);
+
+        // remove signal 1, filter signal 2 (moving average 2), reduce frequencies by 4 and 2, join 2 records
+        // 2 channel filtered: {5,6,6,7,7,3} then {2,6,6,7,7,3}. Reduced: {5,6,5} and {4,6,5}
+        int[] expectedDataRecord = {4,4,  5,6,5,4,6,5};
+
+        RecordsJoiner joiner = new RecordsJoiner(new TestStream(expectedDataRecord), 2);
+        SignalFrequencyReducer reducer = new SignalFrequencyReducer(joiner);
+        reducer.addDivider(0, 4);
+        reducer.addDivider(1, 2);
+        SignalRemover remover = new SignalRemover(reducer);
+        remover.removeSignal(1);
+        SignalFilter signalFilter = new SignalFilter(remover);
+        signalFilter.addSignalFilter(2, new MovingAverageFilter(2), "movAvg:2");
+
+        DataRecordStream recordFilter = compile(signalFilter);
+        recordFilter.setHeader(dataConfig);
+
+        // send 2 records and get 1 resultant record
+        recordFilter.writeDataRecord(dataRecord);
+        recordFilter.writeDataRecord(dataRecord);
+    }
+}
@@ -46,6 +46,10 @@ public class RecordsJoiner extends FilterRecordStream {
     }
 
 
+    int getNumberOfRecordsToJoin() {
+        return numberOfRecordsToJoin;
+    }
+
     /**
      * Accumulate and join the specified number of incoming samples into one out
      * DataRecord and when it is ready send it to the dataListener
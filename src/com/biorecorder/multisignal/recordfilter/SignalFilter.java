@@ -18,6 +18,7 @@ import java.util.Map;
 public class SignalFilter extends FilterRecordStream {
     private Map<Integer, List<NamedFilter>> filters = new HashMap<Integer, List<NamedFilter>>();
     private double[] offsets; // gain and offsets to convert dig value to phys one
+    private double[] buffer = new double[0]; // samples of the signal being filtered
 
     public SignalFilter(DataRecordStream outStream) {
         super(outStream);
@@ -29,6 +30,9 @@ public class SignalFilter extends FilterRecordStream {
         offsets = new double[header.numberOfSignals()];
         for (int i = 0; i < offsets.length; i++) {
             offsets[i] = header.offset(i);
+            if (buffer.length < header.getNumberOfSamplesInEachDataRecord(i)) {
+                buffer = new double[header.getNumberOfSamplesInEachDataRecord(i)];
+            }
         }
     }
 
@@ -78,34 +82,60 @@ public class SignalFilter extends FilterRecordStream {
         return outConfig;
     }
 
+    /**
+     * @return filters of the signal (in the order of applying) or null
+     */
+    List<? extends DigitalFilter> getSignalFilters(int signalNumber) {
+        return filters.get(signalNumber);
+    }
+
     @Override
     public void writeDataRecord(int[] inputRecord)  {
         int[] outRecord = new int[inputRecord.length];
-        int signalNumber = 0;
+        double[] buffer = this.buffer;
         int signalStartSampleNumber = 0;
-        for (int i = 0; i < inRecordSize; i++) {
-
-            if(i >= signalStartSampleNumber + inConfig.getNumberOfSamplesInEachDataRecord(signalNumber)) {
-                signalStartSampleNumber += inConfig.getNumberOfSamplesInEachDataRecord(signalNumber);
-                signalNumber++;
-            }
-
+        for (int signalNumber = 0; signalNumber < inConfig.numberOfSignals(); signalNumber++) {
+            int numberOfSamples = inConfig.getNumberOfSamplesInEachDataRecord(signalNumber);
             List<NamedFilter> signalFilters = filters.get(signalNumber);
             if(signalFilters != null) {
-                // for filtering we use (digValue + offset) that is proportional physValue !!!
-                double digValue = inputRecord[i] + offsets[signalNumber];
+                // the whole signal slice is given to every filter in one call
+                toFilterValues(inputRecord, signalStartSampleNumber, buffer, numberOfSamples, offsets[signalNumber]);
                 for (DigitalFilter filter : signalFilters) {
-                    digValue = filter.filteredValue(digValue);
+                    filter.filter(buffer, buffer, 0, numberOfSamples);
                 }
-                outRecord[i] = (int)(digValue - offsets[signalNumber]);
+                fromFilterValues(buffer, outRecord, signalStartSampleNumber, numberOfSamples, offsets[signalNumber]);
             } else {
-                outRecord[i] = inputRecord[i];
+                System.arraycopy(inputRecord, signalStartSampleNumber, outRecord, signalStartSampleNumber, numberOfSamples);
             }
-
+            signalStartSampleNumber += numberOfSamples;
         }
         outStream.writeDataRecord(outRecord);
     }
 
+    /**
+     * For filtering we use (digValue + offset) that is proportional physValue !!!
+     *
+     * @param samples    digital samples
+     * @param from       index of the first sample to convert
+     * @param values     array to write the values for filtering (from index 0)
+     * @param n          number of samples to convert
+     * @param offset     offset of the signal
+     */
+    static void toFilterValues(int[] samples, int from, double[] values, int n, double offset) {
+        for (int i = 0; i < n; i++) {
+            values[i] = samples[from + i] + offset;
+        }
+    }
+
+    /**
+     * Converts filtered values (from index 0) back to the digital samples
+     */
+    static void fromFilterValues(double[] values, int[] samples, int from, int n, double offset) {
+        for (int i = 0; i < n; i++) {
+            samples[from + i] = (int) (values[i] - offset);
+        }
+    }
+
     class NamedFilter implements DigitalFilter {
         private DigitalFilter filter;
         private String filterName;
@@ -120,6 +150,11 @@ public class SignalFilter extends FilterRecordStream {
             return filter.filteredValue(inputValue);
         }
 
+        @Override
+        public void filter(double[] in, double[] out, int off, int len) {
+            filter.filter(in, out, off, len);
+        }
+
         public String getFilterName() {
             return filterName;
         }
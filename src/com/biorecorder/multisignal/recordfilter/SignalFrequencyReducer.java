@@ -1,5 +1,6 @@
 package com.biorecorder.multisignal.recordfilter;
 
+import com.biorecorder.digitalfilter.FirDecimator;
 import com.biorecorder.multisignal.recordformat.DataHeader;
 import com.biorecorder.multisignal.recordformat.DataRecordStream;
 import com.biorecorder.multisignal.recordformat.FormatVersion;
@@ -8,11 +9,33 @@ import java.util.HashMap;
 import java.util.Map;
 
 /**
- * Created by galafit on 25/7/18.
+ * Reduces the sample rate of the signals by the integer dividers.
+ * <p>
+ * Divider added by {@link #addDivider(int, int)} averages every group of divider samples
+ * (simple and cheap but poor anti-aliasing). Number of samples in DataRecord must be a multiple of such divider.
+ * <p>
+ * Divider added by {@link #addPolyphaseDivider(int, int)} filters the signal
+ * by the anti-aliasing FIR filter and computes only the kept samples (see {@link FirDecimator}).
+ * The filter state is kept across the records so the divider may be any integer.
+ * If the number of samples in DataRecord is not a multiple of the divider the resultant samples are buffered
+ * and the resultant DataRecord is formed from the minimal number of incoming records
+ * that gives the integer number of samples for all signals (as by {@link RecordsJoiner}).
+ * The anti-aliasing filter delays the signal: with the default filter the decimated signal
+ * is shifted by {@link FirDecimator#TAPS_PER_PHASE} / 2 resultant samples
+ * relative to the not divided signals (500Hz / 10: 8 samples = 160 ms).
+ * The delay is not compensated.
  */
 public class SignalFrequencyReducer extends FilterRecordStream {
     private Map<Integer, Integer> dividers = new HashMap<>();
+    private Map<Integer, FirDecimator> decimators = new HashMap<>();
     private int outRecordSize;
+    private int numberOfRecordsToJoin = 1;
+    // polyphase decimation state
+    private int[] outRecord;
+    private int[] outPositions;
+    private int joinedRecordsCounter;
+    private double[] offsets;
+    private double[] buffer;
 
     public SignalFrequencyReducer(DataRecordStream outStream) {
         super(outStream);
@@ -20,8 +43,11 @@ public class SignalFrequencyReducer extends FilterRecordStream {
 
     @Override
     public void setHeader(DataHeader header) {
-        super.setHeader(header);
+        inConfig = header;
+        numberOfRecordsToJoin = calculateNumberOfRecordsToJoin(header);
         outRecordSize = calculateOutRecordSize();
+        prepareDecimation();
+        super.setHeader(header);
     }
 
     /**
@@ -36,42 +62,159 @@ public class SignalFrequencyReducer extends FilterRecordStream {
                    + " Divider = " + divider;
            throw new IllegalArgumentException(errMsg);
         }
+        decimators.remove(signalNumber);
         dividers.put(signalNumber, divider);
+        onDividersChanged();
+    }
+
+    /**
+     * Reduces the signal sample rate by the divider with the default anti-aliasing filter.
+     * The filter is linear phase low pass, that delays the signal by
+     * {@link FirDecimator#TAPS_PER_PHASE} * divider / 2 input samples
+     * ({@link FirDecimator#TAPS_PER_PHASE} / 2 resultant samples).
+     * So the signal is shifted relative to the other signals of the record by this time
+     * (for 500Hz and divider 10: 80 input samples = 160 ms). The delay is not compensated.
+     *
+     * @param divider any integer greater than 0
+     * @throws IllegalArgumentException if divider &lt; 1
+     */
+    public void addPolyphaseDivider(int signalNumber, int divider) throws IllegalArgumentException {
+        addPolyphaseDivider(signalNumber, new FirDecimator(divider));
+    }
+
+    /**
+     * Reduces the signal sample rate by the given decimator (with its own anti-aliasing filter).
+     * The signal is delayed by the filter group delay: (taps - 1) / 2 input samples for linear phase kernels
+     */
+    public void addPolyphaseDivider(int signalNumber, FirDecimator decimator) {
+        dividers.remove(signalNumber);
+        decimators.put(signalNumber, decimator);
+        onDividersChanged();
+    }
+
+    private void onDividersChanged() {
         if(inConfig != null) {
+            numberOfRecordsToJoin = calculateNumberOfRecordsToJoin(inConfig);
             outRecordSize = calculateOutRecordSize();
+            prepareDecimation();
             outStream.setHeader(getOutConfig());
         }
     }
 
+    /**
+     * @return minimal number of incoming records that gives the integer number
+     * of the decimated samples for every signal
+     */
+    private int calculateNumberOfRecordsToJoin(DataHeader header) {
+        int numberOfRecordsToJoin = 1;
+        for (Integer signal : decimators.keySet()) {
+            if(signal < header.numberOfSignals()) {
+                int divider = decimators.get(signal).getDivider();
+                int records = divider / gcd(header.getNumberOfSamplesInEachDataRecord(signal), divider);
+                numberOfRecordsToJoin = numberOfRecordsToJoin / gcd(numberOfRecordsToJoin, records) * records;
+            }
+        }
+        return numberOfRecordsToJoin;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int tmp = a % b;
+            a = b;
+            b = tmp;
+        }
+        return a;
+    }
+
+    private int getOutNumberOfSamples(int signalNumber, int numberOfRecordsToJoin) {
+        int numberOfSamples = inConfig.getNumberOfSamplesInEachDataRecord(signalNumber) * numberOfRecordsToJoin;
+        Integer divider = dividers.get(signalNumber);
+        if(divider != null) {
+            return numberOfSamples / divider;
+        }
+        FirDecimator decimator = decimators.get(signalNumber);
+        if(decimator != null) {
+            return numberOfSamples / decimator.getDivider();
+        }
+        return numberOfSamples;
+    }
+
     private int calculateOutRecordSize() {
         int outRecordSize = 0;
-
         for (int i = 0; i < inConfig.numberOfSignals(); i++) {
-            Integer divider = dividers.get(i);
-            if(divider != null) {
-                outRecordSize += inConfig.getNumberOfSamplesInEachDataRecord(i) / divider;
-            } else {
-                outRecordSize += inConfig.getNumberOfSamplesInEachDataRecord(i);
-            }
+            outRecordSize += getOutNumberOfSamples(i, numberOfRecordsToJoin);
         }
         return outRecordSize;
     }
 
+    private void prepareDecimation() {
+        if(decimators.isEmpty()) {
+            return;
+        }
+        int maxNumberOfSamples = 0;
+        offsets = new double[inConfig.numberOfSignals()];
+        for (int i = 0; i < inConfig.numberOfSignals(); i++) {
+            offsets[i] = inConfig.offset(i);
+            maxNumberOfSamples = Math.max(maxNumberOfSamples, inConfig.getNumberOfSamplesInEachDataRecord(i));
+        }
+        buffer = new double[maxNumberOfSamples];
+        outPositions = new int[inConfig.numberOfSignals()];
+        outRecord = new int[outRecordSize];
+        resetOutPositions();
+        joinedRecordsCounter = 0;
+        for (FirDecimator decimator : decimators.values()) {
+            decimator.reset();
+        }
+    }
+
+    private void resetOutPositions() {
+        int position = 0;
+        for (int i = 0; i < outPositions.length; i++) {
+            outPositions[i] = position;
+            position += getOutNumberOfSamples(i, numberOfRecordsToJoin);
+        }
+    }
+
     @Override
     public DataHeader getOutConfig() {
         DataHeader outConfig = new DataHeader(inConfig);
+        int numberOfRecordsToJoin = calculateNumberOfRecordsToJoin(inConfig);
+        if(numberOfRecordsToJoin > 1) {
+            outConfig.setDurationOfDataRecord(inConfig.getDurationOfDataRecord() * numberOfRecordsToJoin);
+        }
         for (int i = 0; i < outConfig.numberOfSignals(); i++) {
-            Integer divider = dividers.get(i);
-            if(divider != null) {
-                int numberOfSamples = outConfig.getNumberOfSamplesInEachDataRecord(i) / divider;
-                outConfig.setNumberOfSamplesInEachDataRecord(i, numberOfSamples);
-            }
+            outConfig.setNumberOfSamplesInEachDataRecord(i, getOutNumberOfSamples(i, numberOfRecordsToJoin));
         }
         return outConfig;
     }
 
+    /**
+     * @return divider of the signal or null
+     */
+    Integer getDivider(int signalNumber) {
+        return dividers.get(signalNumber);
+    }
+
+    /**
+     * @return polyphase decimator of the signal or null
+     */
+    FirDecimator getDecimator(int signalNumber) {
+        return decimators.get(signalNumber);
+    }
+
+    /**
+     * @return number of the incoming records with the given header joined into one resultant record
+     */
+    int getNumberOfRecordsToJoin(DataHeader header) {
+        return calculateNumberOfRecordsToJoin(header);
+    }
+
     @Override
     public void writeDataRecord(int[] inputRecord) {
+        if(!decimators.isEmpty()) {
+            decimateDataRecord(inputRecord);
+            return;
+        }
         int[] outRecord = new int[outRecordSize];
 
         int signalCount = 0;
@@ -111,6 +254,46 @@ public class SignalFrequencyReducer extends FilterRecordStream {
         outStream.writeDataRecord(outRecord);
     }
 
+    private void decimateDataRecord(int[] inputRecord) {
+        int[] outRecord = this.outRecord;
+        double[] buffer = this.buffer;
+        int signalStart = 0;
+        for (int signal = 0; signal < inConfig.numberOfSignals(); signal++) {
+            int numberOfSamples = inConfig.getNumberOfSamplesInEachDataRecord(signal);
+            int position = outPositions[signal];
+            FirDecimator decimator = decimators.get(signal);
+            Integer divider = dividers.get(signal);
+            if(decimator != null) {
+                // as SignalFilter we filter (digValue + offset) that is proportional physValue
+                SignalFilter.toFilterValues(inputRecord, signalStart, buffer, numberOfSamples, offsets[signal]);
+                int outputs = decimator.decimate(buffer, 0, numberOfSamples, buffer, 0);
+                SignalFilter.fromFilterValues(buffer, outRecord, position, outputs, offsets[signal]);
+                position += outputs;
+            } else if(divider != null && divider > 1) {
+                int end = signalStart + numberOfSamples;
+                for (int i = signalStart; i < end; i += divider) {
+                    long sum = 0;
+                    for (int j = i; j < i + divider; j++) {
+                        sum += inputRecord[j];
+                    }
+                    outRecord[position++] = (int)(sum / divider);
+                }
+            } else {
+                System.arraycopy(inputRecord, signalStart, outRecord, position, numberOfSamples);
+                position += numberOfSamples;
+            }
+            outPositions[signal] = position;
+            signalStart += numberOfSamples;
+        }
+        joinedRecordsCounter++;
+        if(joinedRecordsCounter == numberOfRecordsToJoin) {
+            outStream.writeDataRecord(outRecord);
+            this.outRecord = new int[outRecordSize];
+            resetOutPositions();
+            joinedRecordsCounter = 0;
+        }
+    }
+
     /**
      * Unit Test. Usage Example.
      */
@@ -138,5 +321,22 @@ public class SignalFrequencyReducer extends FilterRecordStream {
         recordFilter.setHeader(dataConfig);
 
         recordFilter.writeDataRecord(dataRecord);
+
+        // polyphase divider 4 of the signal with 6 samples: 2 records are joined to get 3 samples.
+        // Kernel {1} (no filtering) just keeps every 4-th sample
+        // and divider 2 of the signal with 4 samples averages pairs
+        DataHeader dataConfig2 = new DataHeader(FormatVersion.BDF_24BIT, 2);
+        dataConfig2.setNumberOfSamplesInEachDataRecord(0, 6);
+        dataConfig2.setNumberOfSamplesInEachDataRecord(1, 4);
+        int[] dataRecord1 = {1,2,3,4,5,6,  2,4,6,8};
+        int[] dataRecord2 = {7,8,9,10,11,12,  1,3,5,7};
+        int[] expectedDataRecord2 = {4,8,12,  3,7,2,6};
+
+        SignalFrequencyReducer recordFilter2 = new SignalFrequencyReducer(new TestStream(expectedDataRecord2));
+        recordFilter2.addPolyphaseDivider(0, new FirDecimator(4, new double[] {1}));
+        recordFilter2.addDivider(1, 2);
+        recordFilter2.setHeader(dataConfig2);
+        recordFilter2.writeDataRecord(dataRecord1);
+        recordFilter2.writeDataRecord(dataRecord2);
     }
 }
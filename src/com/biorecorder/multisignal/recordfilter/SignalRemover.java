@@ -61,6 +61,10 @@ public class SignalRemover extends FilterRecordStream {
     }
 
 
+    List<Integer> getSignalsToRemove() {
+        return signalsToRemove;
+    }
+
     /**
      * Omits data from the "deleted" channels and
      * create out array of samples
@@ -0,0 +1,306 @@
+package com.biorecorder.recorder;
+
+import com.biorecorder.multisignal.recordformat.DataHeader;
+import com.biorecorder.multisignal.recordformat.DataRecordStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sink stage in front of a (possibly slow) stream: file, lab streaming outlet and so on.
+ * <p>
+ * Records are copied to the own bounded {@link RecordRingBuffer} of the sink
+ * and written to the underlying stream in the separated «writing» thread
+ * (virtual thread if the JVM supports them) or in the given executor that
+ * may be shared by several sinks, so a slow sink never blocks
+ * the caller and the other sinks. The executor thread is occupied only
+ * while there are records to write. What happens when the sink can not keep up
+ * is defined by the {@link RecordRingBuffer.OverflowPolicy} of the sink.
+ * With {@link RecordRingBuffer.OverflowPolicy#SPILL} the records exceeding the capacity
+ * are spilled to the temporary file and written back in the same order when the stream
+ * catches up, so the used memory is bounded and no records are lost (file sinks).
+ * <p>
+ * If the underlying stream throws an exception, the writing is finished and
+ * the exception is rethrown to the caller by the next writeDataRecord().
+ * Records written after close are dropped.
+ */
+public class AsyncRecordStream implements DataRecordStream {
+    private static final Log log = LogFactory.getLog(AsyncRecordStream.class);
+    public static final int DEFAULT_CAPACITY = 1024;
+    // after that number of records the writing is rescheduled to let
+    // the other sinks sharing the executor do their work
+    private static final int MAX_RECORDS_PER_RUN = 64;
+    // on close we wait for writing of the remaining records while the stream writes something
+    private static final int MAX_STALL_TIME_MS = 10 * 1000;
+
+    private final DataRecordStream stream;
+    private final int capacity;
+    private final RecordRingBuffer.OverflowPolicy overflowPolicy;
+    private final Executor executor;
+    // null if the executor is shared
+    private final ExecutorService ownExecutor;
+    private final AtomicBoolean isWriteScheduled = new AtomicBoolean(false);
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writeRecords();
+        }
+    };
+    // notified by the writing task when closing
+    private final Object closeLock = new Object();
+    private int[] record;
+    // created with the first record
+    private volatile RecordRingBuffer buffer;
+    private volatile boolean isClosing;
+    // remaining records are dropped
+    private volatile boolean isClosed;
+    private volatile RuntimeException writingException;
+    private volatile long writtenRecordsCount;
+    private volatile double durationOfDataRecord;
+    // numbers of the buffered records
+    private final AtomicInteger recordsCount = new AtomicInteger();
+
+    /**
+     * @param stream         underlying stream
+     * @param capacity       max number of records kept in memory
+     * @param overflowPolicy what to do when the sink can not keep up
+     * @param name           name of the sink (used for the thread name)
+     */
+    public AsyncRecordStream(DataRecordStream stream, int capacity, RecordRingBuffer.OverflowPolicy overflowPolicy, String name) {
+        this.stream = stream;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        ownExecutor = Executors.newSingleThreadExecutor(createThreadFactory("«" + name + "» writing thread"));
+        executor = ownExecutor;
+    }
+
+    /**
+     * @param stream         underlying stream
+     * @param capacity       max number of records kept in memory
+     * @param overflowPolicy what to do when the sink can not keep up
+     *                       (BLOCK policy would block the caller, so do not use it
+     *                       if the caller runs in the same executor)
+     * @param executor       executor (may be shared) to write records in.
+     *                       Records of this sink are never written concurrently
+     */
+    public AsyncRecordStream(DataRecordStream stream, int capacity, RecordRingBuffer.OverflowPolicy overflowPolicy, Executor executor) {
+        this.stream = stream;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+        this.executor = executor;
+        ownExecutor = null;
+    }
+
+    /**
+     * Virtual threads (Java 21+) are used if available. They are found by reflection
+     * to stay compatible with the older JVMs
+     */
+    private static ThreadFactory createThreadFactory(final String threadName) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class).invoke(builder, threadName);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception ex) {
+            return new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, threadName);
+                }
+            };
+        }
+    }
+
+    @Override
+    public void setHeader(DataHeader header) {
+        durationOfDataRecord = header.getDurationOfDataRecord();
+        stream.setHeader(header);
+    }
+
+    @Override
+    public void writeDataRecord(int[] dataRecord) throws RuntimeException {
+        if (writingException != null) {
+            throw writingException;
+        }
+        RecordRingBuffer buffer1 = buffer;
+        if (buffer1 == null) {
+            buffer1 = start(dataRecord.length);
+            if (buffer1 == null) { // closed
+                return;
+            }
+        }
+        try {
+            buffer1.put(dataRecord, recordsCount.getAndIncrement());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduleWrite();
+    }
+
+    private synchronized RecordRingBuffer start(int recordSize) {
+        if (isClosing) {
+            return null;
+        }
+        record = new int[recordSize];
+        buffer = new RecordRingBuffer(capacity, recordSize, overflowPolicy);
+        return buffer;
+    }
+
+    private void scheduleWrite() {
+        if (!isClosed && isWriteScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(writeTask);
+            } catch (RejectedExecutionException ex) {
+                // executor was shut down
+                isWriteScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the records waiting in the buffer and finishes
+     * so the thread is not occupied while there is nothing to write
+     */
+    private void writeRecords() {
+        try {
+            while (true) {
+                int recordsCount = 0;
+                while (!isClosed && buffer.poll(record, 0) >= 0) {
+                    stream.writeDataRecord(record);
+                    writtenRecordsCount++;
+                    if (++recordsCount == MAX_RECORDS_PER_RUN && !buffer.isEmpty()) {
+                        // the flag stays set so nobody else schedules the writing
+                        try {
+                            executor.execute(writeTask);
+                            return;
+                        } catch (RejectedExecutionException ex) {
+                            recordsCount = 0;
+                        }
+                    }
+                }
+                isWriteScheduled.set(false);
+                // new records could come after the last poll but before the flag was reset
+                if (isClosed || buffer.isEmpty() || !isWriteScheduled.compareAndSet(false, true)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            // stream was closed. Do nothing
+            isWriteScheduled.set(false);
+        } catch (RuntimeException ex) {
+            log.error("Failed to write data record. Lost records: " + getBufferedRecordsCount(), ex);
+            writingException = ex;
+            isWriteScheduled.set(false);
+        }
+        if (isClosing) {
+            synchronized (closeLock) {
+                closeLock.notifyAll();
+            }
+        }
+    }
+
+    private boolean isWritingFinished() {
+        RecordRingBuffer buffer1 = buffer;
+        return buffer1 == null || writingException != null ||
+                (buffer1.isEmpty() && !isWriteScheduled.get());
+    }
+
+    /**
+     * Waits till all the records are written to the underlying stream
+     * and closes it. If the stream does not write anything during
+     * too long time the remaining records are dropped.
+     * Repeated calls do nothing.
+     */
+    @Override
+    public void close() throws RuntimeException {
+        synchronized (this) {
+            if (isClosing) {
+                return;
+            }
+            isClosing = true;
+        }
+        try {
+            synchronized (closeLock) {
+                while (!isWritingFinished()) {
+                    long written = writtenRecordsCount;
+                    closeLock.wait(MAX_STALL_TIME_MS);
+                    if (written == writtenRecordsCount && !isWritingFinished()) {
+                        log.error("Stream is not writing. Lost records: " + getBufferedRecordsCount());
+                        break;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        isClosed = true;
+        if (ownExecutor != null) {
+            ownExecutor.shutdownNow();
+        }
+        RecordRingBuffer buffer1 = buffer;
+        if (buffer1 != null) {
+            buffer1.close();
+        }
+        stream.close();
+    }
+
+    public DataRecordStream getStream() {
+        return stream;
+    }
+
+    public RecordRingBuffer.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return number of records written to the underlying stream
+     */
+    public long getWrittenRecordsCount() {
+        return writtenRecordsCount;
+    }
+
+    /**
+     * @return number of records waiting for writing (in memory and in the spill file)
+     */
+    public long getBufferedRecordsCount() {
+        RecordRingBuffer buffer1 = buffer;
+        if (buffer1 == null) {
+            return 0;
+        }
+        return buffer1.size() + buffer1.getSpillSize();
+    }
+
+    /**
+     * @return how far (in ms of data) the sink is behind the source
+     * or 0 if the header was not set
+     */
+    public long getLagMs() {
+        return Math.round(getBufferedRecordsCount() * durationOfDataRecord * 1000);
+    }
+
+    /**
+     * @return max number of records that were simultaneously waiting in memory
+     */
+    public int getHighWaterMark() {
+        RecordRingBuffer buffer1 = buffer;
+        return buffer1 == null ? 0 : buffer1.getHighWaterMark();
+    }
+
+    /**
+     * @return total number of records lost by the sink
+     */
+    public long getDroppedRecordsCount() {
+        RecordRingBuffer buffer1 = buffer;
+        return buffer1 == null ? 0 : buffer1.getDroppedCount();
+    }
+
+    /**
+     * @return total number of records that were spilled to disk
+     */
+    public long getSpilledRecordsCount() {
+        RecordRingBuffer buffer1 = buffer;
+        return buffer1 == null ? 0 : buffer1.getSpilledCount();
+    }
+}
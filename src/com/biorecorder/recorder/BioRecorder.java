@@ -1,16 +1,21 @@
 package com.biorecorder.recorder;
 
 import com.biorecorder.ads.*;
+import com.biorecorder.comport.AsyncComportListener;
 import com.biorecorder.digitalfilter.DigitalFilter;
 import com.biorecorder.multisignal.recordformat.DataHeader;
 import com.biorecorder.multisignal.recordformat.DataRecordStream;
 import com.biorecorder.multisignal.recordfilter.*;
+import com.sun.istack.internal.Nullable;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Wrapper class that does some transformations with Ads data-frames
@@ -19,49 +24,117 @@ import java.util.concurrent.*;
  * <li>convert numbered data records to simple data records ("restoring"/supplementing the lost frames)</li>
  * <li>extract lead off info and battery charge info and send it to the appropriate listeners</li>
  * <li>remove  helper technical info about lead-off status and battery charge</li>
- * <li>permits to add to ads channels some filters. At the moment - filter removing "50Hz noise" (Moving average filter)</li>
+ * <li>permits to add to ads channels some digital filters (removing "50Hz noise", drift and so on)</li>
  * </ul>
  * <p>
  * Thus resultant DataFrames (that BioRecorder sends to its listeners) have standard edf/bdf structure and could be
  * directly written to to bdf/edf file
  */
 public class BioRecorder {
+    private static final Log log = LogFactory.getLog(BioRecorder.class);
     private static final String ALL_CHANNELS_DISABLED_MSG = "All channels and accelerometer are disabled. Recording Impossible";
-    public static final int START_CHECKING_PERIOD_MS = 500;
+    public static final int DEFAULT_RECORD_BUFFER_CAPACITY = 1024;
+    // after that number of records the data handling is rescheduled to let
+    // the other recorders sharing the executor do their work
+    private static final int MAX_RECORDS_PER_RUN = 256;
+    // catch-up mode starts if more than CATCH_UP_START_TIME_MS of data is waiting for handling
+    // (usually all records lost during bluetooth disconnection come at once)
+    private static final int CATCH_UP_START_TIME_MS = 1000;
+    private static final int MIN_CATCH_UP_START_RECORDS = 16;
+    // max time to handle the records received before stop
+    private static final int MAX_DRAINING_TIME_MS = 2000;
 
     private final Ads ads;
     private volatile Map<Integer, List<NamedDigitalFilter>> filters = new HashMap();
 
     private volatile DataRecordListener dataListener = new NullRecordListener();
+    // every sink has its own buffer and writing thread so a slow sink does not stall the others
+    private final List<AsyncRecordStream> dataStreams = new CopyOnWriteArrayList<>();
     private volatile EventsListener eventsListener = new NullEventsListener();
     private volatile BatteryLevelListener batteryListener = new NullBatteryLevelListener();
     private volatile LeadOffListener leadOffListener = new NullLeadOffListener();
 
 
-    private final LinkedBlockingQueue<NumberedDataRecord> dataQueue = new LinkedBlockingQueue<>();
-    private final ExecutorService singleThreadExecutor;
-    private volatile Future executorFuture;
-    private volatile long firstRecordTime;
-    private volatile long lastRecordTime;
+    // received records waiting for handling. Created for every recording
+    private volatile RecordRingBuffer recordBuffer;
+    private volatile int recordBufferCapacity = DEFAULT_RECORD_BUFFER_CAPACITY;
+    private volatile RecordRingBuffer.OverflowPolicy overflowPolicy = RecordRingBuffer.OverflowPolicy.SPILL;
+    // data handling (filtering) executor
+    private final Executor executor;
+    // null if the executor is shared
+    private final ExecutorService ownExecutor;
+    // executor to write records to the sinks in. If null every sink has its own thread
+    private final Executor ioExecutor;
+    // starts data handling as soon as Ads starting is completed
+    private volatile CompletableFuture<Void> dataHandlingStartFuture;
+    private volatile DataHandlingTask dataHandlingTask;
+    private volatile long drainedRecordsCount;
+    private volatile GapFillStrategy gapFillStrategy = GapFillStrategy.REPEAT;
+    // statistic of the records lost by the communication during the current recording
+    private volatile long lostRecordsCount;
+    private volatile long gapsCount;
+    private volatile int longestGap;
+    private volatile boolean isCatchingUp;
+    private volatile long catchUpsCount;
     private volatile double durationOfDataRecord;
-    private volatile long recordsCount;
+    private volatile long handledRecordsCount;
 
     private volatile int batteryCurrentPct = 100; // 100%
 
 
     public BioRecorder(String comportName) throws ConnectionRuntimeException {
+        this(comportName, null, null, null);
+    }
+
+    /**
+     * Permits to run several recorders on the same (shared) executors
+     * (see {@link RecordingSession}), so the number of threads does not grow
+     * with the number of devices. If some executor is null BioRecorder (or Ads)
+     * creates its own thread instead. Shared executors are not shut down by disconnect().
+     *
+     * @param comportName        name of the comport
+     * @param processingExecutor executor to decode received frames and to handle (filter)
+     *                           data records in
+     * @param ioExecutor         executor to write commands to the comport and records to the sinks in
+     * @param controlExecutor    executor to run Ads starting, pinging and monitoring tasks in
+     */
+    public BioRecorder(String comportName, @Nullable Executor processingExecutor, @Nullable Executor ioExecutor,
+                       @Nullable ScheduledExecutorService controlExecutor) throws ConnectionRuntimeException {
+        this(comportName, processingExecutor, ioExecutor, ioExecutor, controlExecutor, null);
+    }
+
+    /**
+     * The same as above but comport commands and records to the sinks are written
+     * in the separate executors (blocking file writing never delays the commands)
+     * and Ads starting task (that waits for the device answers)
+     * is run in the separate executor, so it never delays pinging and monitoring
+     *
+     * @param commandExecutor  executor to write commands to the comport in
+     * @param sinkExecutor     executor to write records to the sinks in
+     * @param startingExecutor executor to run Ads starting task in. If null the control executor is used
+     */
+    public BioRecorder(String comportName, @Nullable Executor processingExecutor, @Nullable Executor commandExecutor,
+                       @Nullable Executor sinkExecutor, @Nullable ScheduledExecutorService controlExecutor,
+                       @Nullable ExecutorService startingExecutor) throws ConnectionRuntimeException {
         try {
-            ads = new Ads(comportName);
+            ads = new Ads(comportName, AsyncComportListener.DEFAULT_BUFFER_CAPACITY, processingExecutor, commandExecutor,
+                    controlExecutor, startingExecutor);
         } catch (ComportRuntimeException ex) {
             throw new ConnectionRuntimeException(ex);
         }
-        ThreadFactory namedThreadFactory = new ThreadFactory() {
-            public Thread newThread(Runnable r) {
-                return new Thread(r, "«Ads» data handling thread");
-            }
-        };
-        singleThreadExecutor = Executors.newSingleThreadExecutor(namedThreadFactory);
-
+        if (processingExecutor == null) {
+            ThreadFactory namedThreadFactory = new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "«Ads» data handling thread");
+                }
+            };
+            ownExecutor = Executors.newSingleThreadExecutor(namedThreadFactory);
+            executor = ownExecutor;
+        } else {
+            executor = processingExecutor;
+            ownExecutor = null;
+        }
+        this.ioExecutor = sinkExecutor;
     }
 
     public void addChannelFilter(int channelNumber, DigitalFilter filter, String filterName) {
@@ -81,15 +154,15 @@ public class BioRecorder {
      * Start BioRecorder measurements.
      *
      * @param recorderConfig1 object with ads config info
-     * @return Future: if starting was successful future.get() return null,
-     * otherwise throw RuntimeException. Usually starting fails due to device is not connected
+     * @return CompletableFuture: completed (with null) as soon as the first data record is received.
+     * Otherwise it is completed exceptionally with RuntimeException. Usually starting fails due to device is not connected
      * or wrong device type is specified in config (that does not coincide
      * with the really connected device type)
      * @throws IllegalStateException    if BioRecorder was disconnected and
      *                                  its work was finalised or if it is already recording and should be stopped first
      * @throws IllegalArgumentException if all channels and accelerometer are disabled
      */
-    public Future<Void> startRecording(RecorderConfig recorderConfig1) throws IllegalStateException, IllegalArgumentException {
+    public CompletableFuture<Void> startRecording(RecorderConfig recorderConfig1) throws IllegalStateException, IllegalArgumentException {
         // make copy to safely change in the case of "accelerometer only" mode
         RecorderConfig recorderConfig = new RecorderConfig(recorderConfig1);
 
@@ -113,50 +186,95 @@ public class BioRecorder {
             }
         }
 
-        FilterRecordStream dataFilter = createDataFilter(recorderConfig, isAccelerometerOnly);
+        // all filters are applied in one pass
+        DataRecordStream dataFilter = FusedRecordFilter.compile(createDataFilter(recorderConfig, isAccelerometerOnly));
         AdsConfig adsConfig = recorderConfig.getAdsConfig();
-        dataFilter.setHeader(ads.getDataHeader(adsConfig));
+        DataHeader adsDataHeader = ads.getDataHeader(adsConfig);
+        dataFilter.setHeader(adsDataHeader);
 
-        dataQueue.clear();
-        recordsCount = 0;
+        if (recordBuffer != null) {
+            recordBuffer.close();
+        }
+        RecordRingBuffer buffer = new RecordRingBuffer(recordBufferCapacity, adsDataHeader.getRecordSize(), overflowPolicy);
+        recordBuffer = buffer;
         durationOfDataRecord = recorderConfig.getDurationOfDataRecord();
-
-        ads.addDataListener(new AdsDataHandler(adsConfig));
-        Future startFuture = ads.startRecording(adsConfig);
-        executorFuture = singleThreadExecutor.submit(new StartFutureHandlingTask(startFuture, new DataHandlingTask(dataFilter)));
+        lostRecordsCount = 0;
+        gapsCount = 0;
+        longestGap = 0;
+        isCatchingUp = false;
+        catchUpsCount = 0;
+        handledRecordsCount = 0;
+
+        final DataHandlingTask dataHandlingTask = new DataHandlingTask(dataFilter, buffer, gapFillStrategy);
+        ads.addDataListener(new AdsDataHandler(adsConfig, dataHandlingTask, durationOfDataRecord));
+        CompletableFuture<Void> startFuture = ads.startRecording(adsConfig);
+        dataHandlingStartFuture = startFuture.thenRun(new Runnable() {
+            @Override
+            public void run() {
+                startDataHandling(dataHandlingTask);
+            }
+        });
         return startFuture;
     }
 
     class AdsDataHandler implements NumberedDataRecordListener {
         private final AdsConfig adsConfig;
-
-        public AdsDataHandler(AdsConfig adsConfig) {
+        private final boolean isLeadOffEnabled;
+        private final boolean isBatteryVoltageMeasureEnabled;
+        private final RecordRingBuffer buffer;
+        private final DataHandlingTask dataHandlingTask;
+        private final int catchUpStartRecords;
+        private int lastRecordNumber = -1;
+
+        public AdsDataHandler(AdsConfig adsConfig, DataHandlingTask dataHandlingTask, double durationOfDataRecord) {
             this.adsConfig = adsConfig;
+            this.dataHandlingTask = dataHandlingTask;
+            buffer = dataHandlingTask.buffer;
+            isLeadOffEnabled = adsConfig.isLeadOffEnabled();
+            isBatteryVoltageMeasureEnabled = adsConfig.isBatteryVoltageMeasureEnabled();
+            int records = (int) Math.ceil(CATCH_UP_START_TIME_MS / (durationOfDataRecord * 1000));
+            catchUpStartRecords = Math.min(Math.max(records, MIN_CATCH_UP_START_RECORDS), buffer.capacity());
         }
 
         @Override
         public void onDataRecordReceived(int[] dataRecord, int recordNumber) {
-            try {
-                if (recordNumber == 0) {
-                    firstRecordTime = System.currentTimeMillis();
-                    lastRecordTime = firstRecordTime;
-                } else {
-                    lastRecordTime = System.currentTimeMillis();
+            // gaps in the received records are lost by the communication.
+            // Records dropped by the buffer are counted by the buffer
+            int numberOfLostRecords = recordNumber - lastRecordNumber - 1;
+            if (numberOfLostRecords > 0 && lastRecordNumber >= 0) {
+                lostRecordsCount += numberOfLostRecords;
+                gapsCount++;
+                if (numberOfLostRecords > longestGap) {
+                    longestGap = numberOfLostRecords;
                 }
-                recordsCount = recordNumber + 1;
-
-                dataQueue.put(new NumberedDataRecord(dataRecord, recordNumber));
+            }
+            lastRecordNumber = recordNumber;
+            try {
+                // dataRecord belongs to the frame decoder so it is copied to the buffer
+                buffer.put(dataRecord, recordNumber);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
 
+            if (!isCatchingUp && (buffer.size() >= catchUpStartRecords || buffer.isSpilling())) {
+                isCatchingUp = true;
+                catchUpsCount++;
+                log.info("Catch-up mode. Records waiting for handling: " + buffer.size());
+            }
+            dataHandlingTask.schedule();
+            if (isCatchingUp) {
+                // records are old. Lead off and battery state will be notified
+                // by the fresh records after catching up
+                return;
+            }
+
             // notify lead off listener
-            if (adsConfig.isLeadOffEnabled()) {
+            if (isLeadOffEnabled) {
                 notifyLeadOffListeners(Ads.extractLeadOffBitMask(dataRecord, adsConfig));
             }
 
             // notify battery voltage listener
-            if (adsConfig.isBatteryVoltageMeasureEnabled()) {
+            if (isBatteryVoltageMeasureEnabled) {
                 int batteryPct = Ads.extractLithiumBatteryPercentage(dataRecord, adsConfig);
                 // Percentage level actually are estimated roughly.
                 // So we round its value to tens: 100, 90, 80, 70, 60, 50, 40, 30, 20, 10.
@@ -173,71 +291,401 @@ public class BioRecorder {
         }
     }
 
-    class StartFutureHandlingTask implements Callable<Void> {
-        private volatile Future startFuture;
-        private Callable dataHandlingTask;
+    private synchronized void startDataHandling(DataHandlingTask dataHandlingTask) {
+        CompletableFuture<Void> future = dataHandlingStartFuture;
+        // recording was stopped
+        if (future != null && future.isCancelled()) {
+            return;
+        }
+        this.dataHandlingTask = dataHandlingTask;
+        dataHandlingTask.start();
+    }
 
-        public StartFutureHandlingTask(Future startFuture, Callable dataHandlingTask) {
-            this.startFuture = startFuture;
-            this.dataHandlingTask = dataHandlingTask;
+
+    /**
+     * Handles the records waiting in the buffer and finishes, so the executor
+     * thread is occupied only while there are records to handle.
+     * It is scheduled again by every new record.
+     * Records of one recording are never handled concurrently.
+     */
+    class DataHandlingTask implements Runnable {
+        DataRecordStream dataStream;
+        private final RecordRingBuffer buffer;
+        private final int[] record;
+        private final GapFillStrategy gapFillStrategy;
+        // lost records are created from the records before and after the gap
+        private final int[] previousRecord;
+        private final int[] gapRecord;
+        private volatile int lastDataRecordNumber = -1;
+        private final AtomicBoolean isScheduled = new AtomicBoolean(false);
+        private final CountDownLatch stopLatch = new CountDownLatch(1);
+        private volatile boolean isStarted;
+        private volatile boolean isStopping;
+        private volatile boolean isCancelled;
+        private volatile Thread thread;
+        // catch-up statistic
+        private long catchUpStartTime;
+        private long catchUpHandledBefore;
+
+        public DataHandlingTask(DataRecordStream dataStream, RecordRingBuffer buffer, GapFillStrategy gapFillStrategy) {
+            this.dataStream = dataStream;
+            this.buffer = buffer;
+            this.gapFillStrategy = gapFillStrategy;
+            record = new int[buffer.getRecordSize()];
+            previousRecord = new int[buffer.getRecordSize()];
+            gapRecord = new int[buffer.getRecordSize()];
+        }
+
+        /**
+         * Starts handling of the records (received before and after)
+         */
+        void start() {
+            isStarted = true;
+            schedule();
+        }
+
+        /**
+         * Records will not be handled any more
+         */
+        void cancel() {
+            isCancelled = true;
+        }
+
+        void schedule() {
+            if (isStarted && !isCancelled && isScheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    // BioRecorder was disconnected. Do nothing
+                    isScheduled.set(false);
+                }
+            }
         }
 
         @Override
-        public Void call() throws Exception {
-            while(!startFuture.isDone()) {
-                Thread.sleep(START_CHECKING_PERIOD_MS);
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                while (true) {
+                    if (!handleRecords()) {
+                        // rescheduled. The flag stays set so nobody else schedules the handling
+                        return;
+                    }
+                    isScheduled.set(false);
+                    // new records could come after the last poll but before the flag was reset
+                    if (isCancelled || buffer.isEmpty() || !isScheduled.compareAndSet(false, true)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                isScheduled.set(false);
+            } finally {
+                thread = null;
+            }
+            // no more records come after stop so if the buffer is empty we finish
+            if (isCancelled || (isStopping && buffer.isEmpty())) {
+                stopLatch.countDown();
             }
-            startFuture.get();
-            executorFuture = singleThreadExecutor.submit(dataHandlingTask);
-            return null;
         }
-    }
 
+        /**
+         * @return true if all the records were handled and false
+         * if the task was rescheduled to handle the rest
+         */
+        private boolean handleRecords() throws InterruptedException {
+            int recordsCount = 0;
+            while (!isCancelled) {
+                if (isCatchingUp && catchUpStartTime == 0) {
+                    catchUpStartTime = System.currentTimeMillis();
+                    catchUpHandledBefore = handledRecordsCount;
+                }
+                int recordNumber = buffer.poll(record, 0);
+                if (recordNumber < 0) {
+                    if (isCatchingUp) {
+                        finishCatchUp();
+                    }
+                    return true;
+                }
+                handleRecord(record, recordNumber);
+                recordsCount++;
+                if (recordsCount >= MAX_RECORDS_PER_RUN && !buffer.isEmpty()) {
+                    try {
+                        executor.execute(this);
+                        return false;
+                    } catch (RejectedExecutionException ex) {
+                        recordsCount = 0;
+                    }
+                }
+            }
+            return true;
+        }
 
-    class DataHandlingTask implements Callable<Void> {
-        DataRecordStream dataStream;
-        private volatile int lastDataRecordNumber = -1;
+        /**
+         * Catch-up mode is finished when the buffer (and the spill file) is empty
+         */
+        private void finishCatchUp() {
+            isCatchingUp = false;
+            log.info("Catch-up mode finished. Handled records: " + (handledRecordsCount - catchUpHandledBefore) +
+                    " in " + (System.currentTimeMillis() - catchUpStartTime) + " ms");
+            catchUpStartTime = 0;
+        }
 
-        public DataHandlingTask(DataRecordStream dataStream) {
-            this.dataStream = dataStream;
+        private void handleRecord(int[] dataRecord, int recordNumber) {
+            int numberOfLostFrames = recordNumber - lastDataRecordNumber - 1;
+            if (numberOfLostFrames > 0 && lastDataRecordNumber >= 0) {
+                fillGap(dataRecord, numberOfLostFrames);
+            }
+            // listeners may change the record
+            System.arraycopy(dataRecord, 0, previousRecord, 0, dataRecord.length);
+            // send to listener
+            dataStream.writeDataRecord(dataRecord);
+            lastDataRecordNumber = recordNumber;
+            handledRecordsCount++;
+        }
+
+        /**
+         * Restores the records lost by the communication or dropped by the buffer,
+         * so the resultant records stay continuous
+         */
+        private void fillGap(int[] nextRecord, int numberOfLostFrames) {
+            for (int i = 1; i <= numberOfLostFrames; i++) {
+                // every lost record is created anew because listeners may change it
+                gapFillStrategy.fillGap(previousRecord, nextRecord, i, numberOfLostFrames, gapRecord);
+                dataStream.writeDataRecord(gapRecord);
+            }
         }
 
-        @Override
-        public Void call() throws Exception {
-            while (true) {
-                // block until a request arrives
-                NumberedDataRecord numberedDataRecord = dataQueue.take();
-                // send to listener
-                dataStream.writeDataRecord(numberedDataRecord.getRecord());
-                int numberOfLostFrames = numberedDataRecord.getRecordNumber() - lastDataRecordNumber - 1;
-                for (int i = 0; i < numberOfLostFrames; i++) {
-                    dataStream.writeDataRecord(numberedDataRecord.getRecord());
+        /**
+         * Handles all the records waiting in the buffer and finishes the task.
+         * Records that can not be handled during the given time are dropped.
+         *
+         * @return number of handled records
+         */
+        long drain(long maxDrainingTimeMs) {
+            if (Thread.currentThread() == thread) {
+                // stop was called by the data listener from this task
+                cancel();
+                return 0;
+            }
+            long handledBefore = handledRecordsCount;
+            isStopping = true;
+            if (buffer.isEmpty() && !isScheduled.get()) {
+                stopLatch.countDown();
+            } else {
+                schedule();
+            }
+            try {
+                if (!stopLatch.await(maxDrainingTimeMs, TimeUnit.MILLISECONDS)) {
+                    log.error("Draining time exceeds allowed limits: " + maxDrainingTimeMs +
+                            " ms. Dropped records: " + (buffer.size() + buffer.getSpillSize()));
                 }
-                lastDataRecordNumber = numberedDataRecord.getRecordNumber();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            cancel();
+            return handledRecordsCount - handledBefore;
         }
     }
 
+    /**
+     * Stops recording. First Ads is stopped (so no new records come),
+     * then all the records already received are handled by the filters
+     * and sent to the data listener (not longer than MAX_DRAINING_TIME_MS).
+     * So when this method returns all the data are delivered
+     * and the listener streams may be closed.
+     *
+     * @return info about the recording (start time and real duration of data record)
+     * or null if no data was received
+     * @throws IllegalStateException if BioRecorder was disconnected
+     */
     public RecordingInfo stop() throws IllegalStateException {
-        if(executorFuture != null) {
-            executorFuture.cancel(true);
+        DataHandlingTask task;
+        synchronized (this) {
+            if(dataHandlingStartFuture != null) {
+                dataHandlingStartFuture.cancel(false);
+            }
+            // data handling can not be started any more
+            task = dataHandlingTask;
+            dataHandlingTask = null;
         }
-        if(recordsCount > 1) {
-            durationOfDataRecord = (lastRecordTime - firstRecordTime) / ((recordsCount - 1) * 1000.0);
+        try {
+            // stop intake
+            ads.stop();
+        } finally {
+            drainedRecordsCount = 0;
+            if(task != null) {
+                drainedRecordsCount = task.drain(MAX_DRAINING_TIME_MS);
+                log.info("Records handled after stop: " + drainedRecordsCount);
+            }
+            if(recordBuffer != null) {
+                recordBuffer.close();
+            }
         }
-
+        // record clock estimates records duration and times online
+        // during the whole recording
         RecordingInfo recordingInfo = null;
-        if(recordsCount > 0) {
-            long startTime = firstRecordTime - (long) (durationOfDataRecord * 1000);
+        RecordClock recordClock = ads.getRecordClock();
+        if(recordClock != null && recordClock.getRecordsCount() > 0) {
+            if(recordClock.getRecordsCount() > 1) {
+                durationOfDataRecord = recordClock.getRecordDuration();
+            }
+            long startTime = recordClock.getRecordStartTimeMillis(0);
             recordingInfo = new RecordingInfo(startTime, durationOfDataRecord);
         }
-
-        ads.stop();
         return recordingInfo;
     }
 
+    /**
+     * Sets the overflow policy of the buffer of received records
+     * (used if the records can not be handled as fast as they come).
+     * It will be applied to the next recording. Default is SPILL
+     */
+    public void setRecordBufferOverflowPolicy(RecordRingBuffer.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public RecordRingBuffer.OverflowPolicy getRecordBufferOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * In catch-up mode (when a lot of received records are waiting for handling)
+     * lead off and battery listeners are not notified
+     * (the records are old) until all the waiting records are handled
+     *
+     * @return true if BioRecorder is in catch-up mode
+     */
+    public boolean isCatchingUp() {
+        return isCatchingUp;
+    }
+
+    /**
+     * @return how many times catch-up mode was started during the current recording
+     */
+    public long getCatchUpsCount() {
+        return catchUpsCount;
+    }
+
+    /**
+     * Sets how missing records (lost by the communication or dropped by the buffer) are replaced.
+     * It will be applied to the next recording. Default is REPEAT
+     */
+    public void setGapFillStrategy(GapFillStrategy gapFillStrategy) {
+        this.gapFillStrategy = gapFillStrategy;
+    }
+
+    public GapFillStrategy getGapFillStrategy() {
+        return gapFillStrategy;
+    }
+
+    /**
+     * @return number of records of the current recording lost by the communication
+     * (not received). Records dropped by the buffer are not included: see {@link #getDroppedRecordsCount()}
+     */
+    public long getLostRecordsCount() {
+        return lostRecordsCount;
+    }
+
+    /**
+     * @return number of communication gaps (series of lost records) in the current recording
+     */
+    public long getGapsCount() {
+        return gapsCount;
+    }
+
+    /**
+     * @return max number of records lost in a row in the current recording
+     */
+    public int getLongestGap() {
+        return longestGap;
+    }
+
+    /**
+     * Sets max number of received records kept in memory while waiting for handling.
+     * It will be applied to the next recording
+     */
+    public void setRecordBufferCapacity(int capacity) {
+        recordBufferCapacity = capacity;
+    }
+
+    /**
+     * @return number of received records waiting for handling (in memory and in the spill file)
+     */
+    public long getBufferedRecordsCount() {
+        RecordRingBuffer buffer = recordBuffer;
+        if (buffer == null) {
+            return 0;
+        }
+        return buffer.size() + buffer.getSpillSize();
+    }
+
+    /**
+     * @return max number of received records that were waiting in memory at the same time
+     */
+    public int getRecordBufferHighWaterMark() {
+        RecordRingBuffer buffer = recordBuffer;
+        return buffer == null ? 0 : buffer.getHighWaterMark();
+    }
+
+    /**
+     * @return number of received records lost because the buffer was full
+     * (with DROP_OLDEST policy). They are restored as the communication gaps but not counted as them
+     */
+    public long getDroppedRecordsCount() {
+        RecordRingBuffer buffer = recordBuffer;
+        return buffer == null ? 0 : buffer.getDroppedCount();
+    }
+
+    /**
+     * @return number of received records that were spilled to disk because the buffer was full
+     */
+    public long getSpilledRecordsCount() {
+        RecordRingBuffer buffer = recordBuffer;
+        return buffer == null ? 0 : buffer.getSpilledCount();
+    }
+
+    /**
+     * @return number of records that were received but waited for handling
+     * when the last recording was stopped
+     */
+    public long getDrainedRecordsCount() {
+        return drainedRecordsCount;
+    }
+
+    /**
+     * @return clock model of the data records of the current recording
+     * (estimates records duration and times) or null if there was no recording
+     */
+    public RecordClock getRecordClock() {
+        return ads.getRecordClock();
+    }
+
+    /**
+     * @return number of data records handled (filtered and sent to the listeners)
+     * during the current recording. Restored lost records are not counted
+     */
+    public long getHandledRecordsCount() {
+        return handledRecordsCount;
+    }
+
+    /**
+     * @return total number of received bytes passed to the frame decoding
+     */
+    public long getReceivedBytesCount() {
+        return ads.getReceivedBytesCount();
+    }
+
     public boolean disconnect() {
-        singleThreadExecutor.shutdownNow();
+        DataHandlingTask task = dataHandlingTask;
+        if (task != null) {
+            task.cancel();
+        }
+        if (ownExecutor != null) {
+            ownExecutor.shutdownNow();
+        }
+        if (recordBuffer != null) {
+            recordBuffer.close();
+        }
         if (ads.disconnect()) {
             ads.removeDataListener();
             ads.removeMessageListener();
@@ -245,6 +693,7 @@ public class BioRecorder {
             removeLeadOffListener();
             removeEventsListener();
             removeDataListener();
+            removeDataStreams();
             return true;
         }
         return false;
@@ -307,6 +756,41 @@ public class BioRecorder {
         dataListener = new NullRecordListener();
     }
 
+    /**
+     * Adds the sink to which all data records will be written
+     * (the sink header must be set by the caller). Every sink gets its own bounded buffer
+     * and writing thread (or writing task in the shared io executor),
+     * so sinks do not block each other and the data handling.
+     * If the sink fails it is removed and
+     * {@link EventsListener#handleDataStreamFailure(DataRecordStream, RuntimeException)} is called.
+     * Sinks are not closed by BioRecorder.
+     *
+     * @param stream         sink stream
+     * @param bufferCapacity max number of records waiting for writing in memory
+     * @param overflowPolicy what to do when the sink can not keep up
+     * @return async stream wrapping the sink. Use it to set the header, to get
+     * the sink statistic and to close the sink
+     */
+    public AsyncRecordStream addDataStream(DataRecordStream stream, int bufferCapacity, RecordRingBuffer.OverflowPolicy overflowPolicy) {
+        AsyncRecordStream asyncStream;
+        if (ioExecutor == null) {
+            String name = stream.getClass().getSimpleName() + " sink";
+            asyncStream = new AsyncRecordStream(stream, bufferCapacity, overflowPolicy, name);
+        } else {
+            asyncStream = new AsyncRecordStream(stream, bufferCapacity, overflowPolicy, ioExecutor);
+        }
+        dataStreams.add(asyncStream);
+        return asyncStream;
+    }
+
+    public void removeDataStream(AsyncRecordStream stream) {
+        dataStreams.remove(stream);
+    }
+
+    public void removeDataStreams() {
+        dataStreams.clear();
+    }
+
     /**
      * BioRecorder permits to add only ONE LeadOffListener! So if a new listener added
      * the old one are automatically removed
@@ -363,6 +847,14 @@ public class BioRecorder {
     }
 
     private void notifyDataListeners(int[] dataRecord) {
+        for (AsyncRecordStream stream : dataStreams) {
+            try {
+                stream.writeDataRecord(dataRecord);
+            } catch (RuntimeException ex) {
+                dataStreams.remove(stream);
+                eventsListener.handleDataStreamFailure(stream.getStream(), ex);
+            }
+        }
         dataListener.onDataRecordReceived(dataRecord);
     }
 
@@ -411,7 +903,7 @@ public class BioRecorder {
         DataRecordStream recordStream = new DataRecordStream() {
             @Override
             public void writeDataRecord(int[] dataRecord) {
-                dataListener.onDataRecordReceived(dataRecord);
+                notifyDataListeners(dataRecord);
             }
 
             @Override
@@ -500,26 +992,13 @@ public class BioRecorder {
             return filter.filteredValue(v);
         }
 
-        public String getName() {
-            return filterName;
-        }
-    }
-
-    class NumberedDataRecord {
-        int[] record;
-        int recordNumber;
-
-        public NumberedDataRecord(int[] record, int recordNumber) {
-            this.record = record;
-            this.recordNumber = recordNumber;
-        }
-
-        public int[] getRecord() {
-            return record;
+        @Override
+        public void filter(double[] in, double[] out, int off, int len) {
+            filter.filter(in, out, off, len);
         }
 
-        public int getRecordNumber() {
-            return recordNumber;
+        public String getName() {
+            return filterName;
         }
     }
 
@@ -5,6 +5,9 @@ package com.biorecorder.recorder;
  * The class that is interested in receiving and processing
  * data records must implement this interface and subscribe to
  * a "data sender"
+ * <p>
+ * The dataRecord array may be reused by the sender after the call returns,
+ * so listeners that need it afterwards must copy it.
  */
 public interface DataRecordListener {
     public void onDataRecordReceived(int[] dataRecord);
@@ -1,8 +1,22 @@
 package com.biorecorder.recorder;
 
+import com.biorecorder.multisignal.recordformat.DataRecordStream;
+import org.apache.commons.logging.LogFactory;
+
 /**
  * Created by galafit on 31/5/17.
  */
 public interface EventsListener {
     public void handleLowBattery();
+
+    /**
+     * Called (in the data handling thread) when the data stream added by
+     * BioRecorder.addDataStream() fails. The failed stream is already removed,
+     * the other streams continue to get the records.
+     * <p>
+     * Default implementation just logs the failure
+     */
+    default void handleDataStreamFailure(DataRecordStream stream, RuntimeException ex) {
+        LogFactory.getLog(EventsListener.class).error("Data stream failed and was removed: " + stream, ex);
+    }
 }
@@ -0,0 +1,51 @@
+package com.biorecorder.recorder;
+
+/**
+ * Defines how the data records lost by the communication
+ * (gaps in record numbers) are replaced in the resultant data stream.
+ * Lost records are always replaced, so the resultant records stay continuous
+ * and the n-th record corresponds to the n-th record of the device (time base of the edf file)
+ */
+public enum GapFillStrategy {
+    /**
+     * every lost record is replaced by the last record received before the gap
+     */
+    REPEAT,
+    /**
+     * lost records are linearly interpolated (sample by sample)
+     * between the records before and after the gap
+     */
+    LINEAR,
+    /**
+     * lost records are replaced by records with zero samples
+     */
+    ZERO;
+
+    /**
+     * Creates the record to replace the lost one
+     *
+     * @param previousRecord last record received before the gap
+     * @param nextRecord     first record received after the gap
+     * @param gapIndex       number of the lost record in the gap (from 1 to gapLength)
+     * @param gapLength      number of lost records
+     * @param resultRecord   array to write the created record to
+     */
+    public void fillGap(int[] previousRecord, int[] nextRecord, int gapIndex, int gapLength, int[] resultRecord) {
+        switch (this) {
+            case REPEAT:
+                System.arraycopy(previousRecord, 0, resultRecord, 0, resultRecord.length);
+                break;
+            case LINEAR:
+                double fraction = (double) gapIndex / (gapLength + 1);
+                for (int i = 0; i < resultRecord.length; i++) {
+                    resultRecord[i] = (int) Math.round(previousRecord[i] + (nextRecord[i] - (double) previousRecord[i]) * fraction);
+                }
+                break;
+            case ZERO:
+                for (int i = 0; i < resultRecord.length; i++) {
+                    resultRecord[i] = 0;
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package com.biorecorder.recorder;
+
+import com.biorecorder.ads.RecordClock;
+import com.biorecorder.multisignal.recordformat.DataHeader;
+import com.biorecorder.multisignal.recordformat.DataRecordStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming stage that merges data records of several devices
+ * into one stream (to write them to one edf/bdf file).
+ * <p>
+ * Every input gets the records of one BioRecorder (see {@link #addInput(BioRecorder)}).
+ * Resultant data record contains the signals of all inputs (in the order
+ * of the inputs adding). The first input is the reference: resultant records
+ * follow its records. Records of the other inputs are aligned by their
+ * time reconstructed by {@link RecordClock} of every device (on the common host time axis).
+ * <p>
+ * Device sample clocks drift against each other. When the accumulated drift of some input
+ * exceeds {@link #SLIP_THRESHOLD} of data record, one record of that input is skipped
+ * or repeated. So the skew between the inputs never exceeds
+ * SLIP_THRESHOLD * durationOfDataRecord.
+ * <p>
+ * Every input has its own bounded buffer where records wait for the records of
+ * the other inputs. If some buffer is full the waiting is finished and the records
+ * of the late inputs are replaced by their last records (counted as missing).
+ * <p>
+ * Inputs must have the same duration of data record.
+ * Records of every input must be continuous (lost records restored),
+ * so the n-th record of the input corresponds to the n-th record of the device clock.
+ * So the recorder must not drop the received records (not {@link RecordRingBuffer.OverflowPolicy#DROP_OLDEST}).
+ * {@link RecordingSession} checks it on start.
+ * Resultant records are written in the threads of the inputs,
+ * so a slow output stream should be wrapped by {@link AsyncRecordStream}
+ * ({@link RecordingSession} does it).
+ */
+public class RecordMerger {
+    private static final Log log = LogFactory.getLog(RecordMerger.class);
+    public static final int DEFAULT_INPUT_CAPACITY = 256;
+    // skew (in data records) after which a record of the input is skipped or repeated.
+    // Bigger than 0.5 to avoid skipping-repeating jitter
+    public static final double SLIP_THRESHOLD = 0.75;
+
+    private final DataRecordStream outStream;
+    private final int inputCapacity;
+    private final List<Input> inputs = new ArrayList<Input>();
+    private int[] outRecord;
+    private boolean isStarted;
+    // number of the next resultant record = number of the next reference record
+    private long outRecordsCount;
+    private long mergedRecordsCount;
+    private int closedInputsCount;
+
+    public RecordMerger(DataRecordStream outStream) {
+        this(outStream, DEFAULT_INPUT_CAPACITY);
+    }
+
+    /**
+     * @param outStream     stream to write resultant records to
+     * @param inputCapacity max number of records waiting in every input
+     */
+    public RecordMerger(DataRecordStream outStream, int inputCapacity) {
+        this.outStream = outStream;
+        this.inputCapacity = inputCapacity;
+    }
+
+    /**
+     * Creates the input for the records of the given recorder.
+     * All inputs must be added before their headers are set.
+     * The input header must be set before the records come.
+     * Resultant header is set to the output stream as soon as all inputs headers are set.
+     *
+     * @param recorder recorder which clock is used to align the input records
+     * @return input stream. Usually it is added to the recorder as a data stream
+     * (see {@link BioRecorder#addDataStream(DataRecordStream, int, RecordRingBuffer.OverflowPolicy)})
+     * @throws IllegalStateException if the headers of all the inputs were already set
+     */
+    public synchronized DataRecordStream addInput(BioRecorder recorder) throws IllegalStateException {
+        if (outRecord != null) {
+            throw new IllegalStateException("Inputs can not be added after the headers are set");
+        }
+        Input input = new Input(recorder, inputs.size());
+        inputs.add(input);
+        return input;
+    }
+
+    private synchronized void onHeader(Input input, DataHeader header) {
+        if (inputs.size() > 0 && inputs.get(0).header != null && input != inputs.get(0) &&
+                inputs.get(0).header.getDurationOfDataRecord() != header.getDurationOfDataRecord()) {
+            String errMsg = "Duration of data record of input " + input.number + ": " + header.getDurationOfDataRecord() +
+                    " != duration of data record of reference input: " + inputs.get(0).header.getDurationOfDataRecord();
+            throw new IllegalArgumentException(errMsg);
+        }
+        input.header = header;
+        input.buffer = new RecordRingBuffer(inputCapacity, header.getRecordSize(), RecordRingBuffer.OverflowPolicy.DROP_OLDEST);
+        input.record = new int[header.getRecordSize()];
+        input.lastRecord = new int[header.getRecordSize()];
+        for (Input input1 : inputs) {
+            if (input1.header == null) {
+                return;
+            }
+        }
+        DataHeader resultantHeader = createResultantHeader();
+        outRecord = new int[resultantHeader.getRecordSize()];
+        int offset = 0;
+        for (Input input1 : inputs) {
+            input1.outOffset = offset;
+            offset += input1.header.getRecordSize();
+        }
+        outStream.setHeader(resultantHeader);
+    }
+
+    private DataHeader createResultantHeader() {
+        DataHeader header = new DataHeader(inputs.get(0).header);
+        for (int i = 1; i < inputs.size(); i++) {
+            DataHeader inputHeader = inputs.get(i).header;
+            for (int signal = 0; signal < inputHeader.numberOfSignals(); signal++) {
+                header.addSignal();
+                int n = header.numberOfSignals() - 1;
+                header.setLabel(n, inputHeader.getLabel(signal));
+                header.setTransducer(n, inputHeader.getTransducer(signal));
+                header.setPrefiltering(n, inputHeader.getPrefiltering(signal));
+                header.setPhysicalDimension(n, inputHeader.getPhysicalDimension(signal));
+                header.setDigitalRange(n, inputHeader.getDigitalMin(signal), inputHeader.getDigitalMax(signal));
+                header.setPhysicalRange(n, inputHeader.getPhysicalMin(signal), inputHeader.getPhysicalMax(signal));
+                header.setNumberOfSamplesInEachDataRecord(n, inputHeader.getNumberOfSamplesInEachDataRecord(signal));
+            }
+        }
+        return header;
+    }
+
+    private synchronized void onRecord(Input input, int[] dataRecord) {
+        if (input.buffer == null) {
+            throw new IllegalStateException("Header of input " + input.number + " is not set");
+        }
+        // the late inputs are not waited any more
+        while (input.buffer.size() >= input.buffer.capacity() && mergeRecord(true)) {
+            // do nothing
+        }
+        if (input.buffer.size() >= input.buffer.capacity()) {
+            // merging is not started yet. The oldest record is dropped
+            input.pollRecord();
+            input.skippedRecordsCount++;
+        }
+        try {
+            input.buffer.put(dataRecord, 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        input.receivedRecordsCount++;
+        while (mergeRecord(false)) {
+            // do nothing
+        }
+    }
+
+    private synchronized void onClose(Input input) {
+        if (input.isClosed) {
+            return;
+        }
+        input.isClosed = true;
+        closedInputsCount++;
+        if (closedInputsCount == inputs.size()) {
+            // records which can not be aligned any more are dropped
+            log.info(getStatistic());
+            outStream.close();
+        }
+    }
+
+    /**
+     * Creates and writes the next resultant record
+     *
+     * @param isForced if true the late inputs are not waited
+     * @return true if the record was written and false if some inputs
+     * have not received the necessary records yet
+     */
+    private boolean mergeRecord(boolean isForced) {
+        if (outRecord == null) { // headers are not set
+            return false;
+        }
+        Input reference = inputs.get(0);
+        if (!isStarted) {
+            if (!start(isForced)) {
+                return false;
+            }
+        }
+        RecordClock referenceClock = reference.getClock();
+        long outNanoTime = referenceClock.getRecordNanoTime(outRecordsCount);
+        // the necessary records of all inputs should be received
+        for (int i = 0; i < inputs.size(); i++) {
+            Input input = inputs.get(i);
+            RecordClock clock = input.getClock();
+            if (i == 0 || clock == null) {
+                input.targetRecordNumber = outRecordsCount;
+            } else {
+                input.targetRecordNumber = clock.getRecordNumber(outNanoTime);
+            }
+            if (!isForced && !input.isClosed && !input.isRecordReceived()) {
+                return false;
+            }
+        }
+        for (Input input : inputs) {
+            input.takeRecord(isForced);
+            System.arraycopy(input.lastRecord, 0, outRecord, input.outOffset, input.lastRecord.length);
+        }
+        outStream.writeDataRecord(outRecord);
+        outRecordsCount++;
+        mergedRecordsCount++;
+        return true;
+    }
+
+    /**
+     * The resultant records start from the moment when all devices are recording
+     */
+    private boolean start(boolean isForced) {
+        long startNanoTime = Long.MIN_VALUE;
+        for (Input input : inputs) {
+            RecordClock clock = input.getClock();
+            if (clock == null || input.receivedRecordsCount == 0) {
+                if (isForced) {
+                    continue;
+                }
+                return false;
+            }
+            startNanoTime = Math.max(startNanoTime, clock.getRecordNanoTime(0));
+        }
+        RecordClock referenceClock = inputs.get(0).getClock();
+        if (referenceClock == null) {
+            return false;
+        }
+        outRecordsCount = Math.max(0, Math.round(referenceClock.getRecordNumber(startNanoTime)));
+        isStarted = true;
+        log.info("Merging started from the reference record: " + outRecordsCount);
+        return true;
+    }
+
+    /**
+     * @return number of written resultant records
+     */
+    public synchronized long getMergedRecordsCount() {
+        return mergedRecordsCount;
+    }
+
+    /**
+     * @param inputNumber number of the input (in the order of adding)
+     * @return current skew of the input records (ms) against the reference one
+     */
+    public synchronized double getSkewMs(int inputNumber) {
+        return inputs.get(inputNumber).skewMs;
+    }
+
+    /**
+     * @return max absolute skew of the input records (ms) against the reference one
+     */
+    public synchronized double getMaxSkewMs(int inputNumber) {
+        return inputs.get(inputNumber).maxSkewMs;
+    }
+
+    /**
+     * @return clock drift of the input device against the reference one (ppm)
+     */
+    public synchronized double getDriftPpm(int inputNumber) {
+        RecordClock clock = inputs.get(inputNumber).getClock();
+        RecordClock referenceClock = inputs.get(0).getClock();
+        if (clock == null || referenceClock == null) {
+            return 0;
+        }
+        return (clock.getRecordDuration() / referenceClock.getRecordDuration() - 1) * 1.0E6;
+    }
+
+    /**
+     * @return number of the input records skipped to compensate the drift or the late start
+     */
+    public synchronized long getSkippedRecordsCount(int inputNumber) {
+        return inputs.get(inputNumber).skippedRecordsCount;
+    }
+
+    /**
+     * @return number of the input records repeated to compensate the drift
+     */
+    public synchronized long getRepeatedRecordsCount(int inputNumber) {
+        return inputs.get(inputNumber).repeatedRecordsCount;
+    }
+
+    /**
+     * @return number of the input records replaced by the previous ones
+     * because the input was late (or closed)
+     */
+    public synchronized long getMissingRecordsCount(int inputNumber) {
+        return inputs.get(inputNumber).missingRecordsCount;
+    }
+
+    /**
+     * @return number of records waiting in the input buffer for the records of the other inputs
+     */
+    public synchronized int getBufferedRecordsCount(int inputNumber) {
+        RecordRingBuffer buffer = inputs.get(inputNumber).buffer;
+        return buffer == null ? 0 : buffer.size();
+    }
+
+    public synchronized String getStatistic() {
+        StringBuilder sb = new StringBuilder("Merged records: " + mergedRecordsCount);
+        for (Input input : inputs) {
+            sb.append("\n  input ").append(input.number)
+                    .append(": drift ").append(String.format("%.1f", getDriftPpm(input.number))).append(" ppm, max skew ")
+                    .append(String.format("%.1f", input.maxSkewMs)).append(" ms, skipped ")
+                    .append(input.skippedRecordsCount).append(", repeated ")
+                    .append(input.repeatedRecordsCount).append(", missing ")
+                    .append(input.missingRecordsCount);
+        }
+        return sb.toString();
+    }
+
+    class Input implements DataRecordStream {
+        private final BioRecorder recorder;
+        private final int number;
+        private DataHeader header;
+        private RecordRingBuffer buffer;
+        private int[] record;
+        // the last record written to the output
+        private int[] lastRecord;
+        private int outOffset;
+        private boolean isClosed;
+        private long receivedRecordsCount;
+        // number of the input record corresponding to the current resultant record
+        private double targetRecordNumber;
+        // number of the next record in the buffer
+        private long nextRecordNumber;
+
+        // statistic
+        private double skewMs;
+        private double maxSkewMs;
+        private long skippedRecordsCount;
+        private long repeatedRecordsCount;
+        private long missingRecordsCount;
+
+        Input(BioRecorder recorder, int number) {
+            this.recorder = recorder;
+            this.number = number;
+        }
+
+        /**
+         * Clock of the current recording. Created by the recorder on start
+         */
+        RecordClock getClock() {
+            return recorder.getRecordClock();
+        }
+
+        boolean isRepeatNeeded() {
+            return nextRecordNumber - targetRecordNumber > SLIP_THRESHOLD && nextRecordNumber > 0;
+        }
+
+        /**
+         * @return true if the record corresponding to the targetRecordNumber is received
+         */
+        boolean isRecordReceived() {
+            if (isRepeatNeeded()) {
+                return true;
+            }
+            long recordNumber = Math.max(nextRecordNumber, (long) Math.ceil(targetRecordNumber - SLIP_THRESHOLD));
+            return recordNumber < receivedRecordsCount;
+        }
+
+        /**
+         * Takes the record corresponding to the targetRecordNumber to the lastRecord.
+         * Skips the records that are too old and repeats the last record if the next one is too new
+         */
+        void takeRecord(boolean isForced) {
+            // skip the records that are too old
+            while (targetRecordNumber - nextRecordNumber > SLIP_THRESHOLD && !buffer.isEmpty()) {
+                pollRecord();
+                skippedRecordsCount++;
+            }
+            if (isRepeatNeeded()) {
+                // the input is ahead: repeat the last record
+                repeatedRecordsCount++;
+            } else if (!buffer.isEmpty()) {
+                pollRecord();
+                System.arraycopy(record, 0, lastRecord, 0, record.length);
+            } else {
+                // input is late (forced merging) or closed.
+                // When the late records come they will be skipped as too old
+                missingRecordsCount++;
+            }
+            if (number > 0) {
+                skewMs = (nextRecordNumber - 1 - targetRecordNumber) * header.getDurationOfDataRecord() * 1000;
+                maxSkewMs = Math.max(maxSkewMs, Math.abs(skewMs));
+            }
+        }
+
+        void pollRecord() {
+            try {
+                buffer.poll(record, 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            nextRecordNumber++;
+        }
+
+        @Override
+        public void setHeader(DataHeader header) {
+            onHeader(this, header);
+        }
+
+        @Override
+        public void writeDataRecord(int[] dataRecord) {
+            onRecord(this, dataRecord);
+        }
+
+        @Override
+        public void close() {
+            onClose(this);
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.biorecorder.recorder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded ring buffer of data records for exactly ONE producer thread
+ * and ONE consumer thread (single-producer/single-consumer).
+ * <p>
+ * All record slots are allocated once at creation and reused,
+ * so nothing is allocated per record. The producer copies
+ * the record to the slot and the consumer copies it from the slot
+ * to its own array. Locks are used only when a thread has to wait
+ * (the buffer is empty or full).
+ * <p>
+ * What happens when the buffer is full is defined by {@link OverflowPolicy}.
+ * <p>
+ * Capacity is rounded up to the nearest power of 2.
+ */
+public class RecordRingBuffer {
+    private static final Log log = LogFactory.getLog(RecordRingBuffer.class);
+
+    public enum OverflowPolicy {
+        /**
+         * producer waits till the consumer frees a slot
+         */
+        BLOCK,
+        /**
+         * the oldest record is dropped to free the slot
+         */
+        DROP_OLDEST,
+        /**
+         * records are written to the temporary file and read back
+         * (in the same order) when the consumer catches up
+         */
+        SPILL
+    }
+
+    private final int[][] slots;
+    private final int[] recordNumbers;
+    private final int mask;
+    private final int recordSize;
+    private final OverflowPolicy overflowPolicy;
+
+    // position of the next record to read. Changed by the consumer
+    // and by the producer when it drops the oldest record
+    private final AtomicLong head = new AtomicLong();
+    // position of the next record to write. Changed only by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private volatile boolean isConsumerWaiting;
+    private volatile boolean isProducerWaiting;
+    private volatile boolean isClosed;
+    // guarded by lock
+    private boolean isWakeUpRequested;
+
+    // while spilling all new records go to the spill file
+    private final Object spillLock = new Object();
+    private volatile boolean isSpilling;
+    private RecordSpillFile spillFile;
+
+    // statistic
+    private volatile int highWaterMark;
+    private volatile long droppedCount;
+    private volatile long spilledCount;
+
+    /**
+     * @param capacity       max number of records kept in memory
+     * @param recordSize     number of samples in every data record
+     * @param overflowPolicy what to do when the buffer is full
+     * @throws IllegalArgumentException if capacity is less than 1 or bigger then 2^20
+     */
+    public RecordRingBuffer(int capacity, int recordSize, OverflowPolicy overflowPolicy) throws IllegalArgumentException {
+        if (capacity <= 0 || capacity > (1 << 20)) {
+            String errMsg = "Invalid ring buffer capacity: " + capacity;
+            throw new IllegalArgumentException(errMsg);
+        }
+        int powerOf2Capacity = Integer.highestOneBit(capacity);
+        if (powerOf2Capacity < capacity) {
+            powerOf2Capacity = powerOf2Capacity << 1;
+        }
+        slots = new int[powerOf2Capacity][recordSize];
+        recordNumbers = new int[powerOf2Capacity];
+        mask = powerOf2Capacity - 1;
+        this.recordSize = recordSize;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Producer method. Copies the record to the buffer.
+     *
+     * @return true if the record was stored and false if it was lost
+     * (could not be written to the spill file or the buffer was closed)
+     * @throws InterruptedException if the producer was interrupted while waiting (BLOCK policy)
+     */
+    public boolean put(int[] record, int recordNumber) throws InterruptedException {
+        if (isClosed) {
+            droppedCount++;
+            return false;
+        }
+        if (overflowPolicy == OverflowPolicy.SPILL && (isSpilling || isFull())) {
+            synchronized (spillLock) {
+                if (isSpilling || isFull()) {
+                    return spill(record, recordNumber);
+                }
+            }
+        }
+        long t = tail.get();
+        while (t - head.get() >= slots.length) {
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                long h = head.get();
+                if (t - h >= slots.length && head.compareAndSet(h, h + 1)) {
+                    droppedCount++;
+                }
+            } else {
+                awaitNotFull();
+                if (isClosed) {
+                    droppedCount++;
+                    return false;
+                }
+            }
+        }
+        int index = (int) t & mask;
+        System.arraycopy(record, 0, slots[index], 0, recordSize);
+        recordNumbers[index] = recordNumber;
+        tail.set(t + 1);
+        int size = (int) (t + 1 - head.get());
+        if (size > highWaterMark) {
+            highWaterMark = size;
+        }
+        if (isConsumerWaiting) {
+            signal(notEmpty);
+        }
+        return true;
+    }
+
+    private boolean spill(int[] record, int recordNumber) {
+        try {
+            if (spillFile == null) {
+                spillFile = new RecordSpillFile(recordSize);
+                log.info("Data records are spilled to " + spillFile.getFile());
+            }
+            spillFile.write(record, recordNumber);
+            spilledCount++;
+            isSpilling = true;
+        } catch (IOException ex) {
+            droppedCount++;
+            log.error("Failed to spill data record " + recordNumber, ex);
+            return false;
+        }
+        if (isConsumerWaiting) {
+            signal(notEmpty);
+        }
+        return true;
+    }
+
+    /**
+     * Consumer method. Waits (not longer than the given time) for the oldest record
+     * and copies it to the given array.
+     *
+     * @return record number or -1 if no record came during the waiting time
+     * @throws InterruptedException if the consumer was interrupted while waiting
+     */
+    public int poll(int[] record, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (true) {
+            long h = head.get();
+            if (h < tail.get()) {
+                int index = (int) h & mask;
+                System.arraycopy(slots[index], 0, record, 0, recordSize);
+                int recordNumber = recordNumbers[index];
+                // fails only if the record was dropped (and overwritten) by the producer
+                if (head.compareAndSet(h, h + 1)) {
+                    if (isProducerWaiting) {
+                        signal(notFull);
+                    }
+                    return recordNumber;
+                }
+                continue;
+            }
+            // all the records in memory are older than the spilled ones
+            if (isSpilling) {
+                synchronized (spillLock) {
+                    if (spillFile != null && !spillFile.isEmpty()) {
+                        try {
+                            return spillFile.read(record);
+                        } catch (IOException ex) {
+                            log.error("Failed to read spilled data records. Lost records: " + spillFile.size(), ex);
+                            droppedCount += spillFile.size();
+                            spillFile.close();
+                            spillFile = null;
+                        }
+                    }
+                    isSpilling = false;
+                }
+                continue;
+            }
+            long waitingTime = deadline - System.nanoTime();
+            if (waitingTime <= 0 || !awaitNotEmpty(waitingTime)) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @return false if waiting was finished by wakeUpConsumer()
+     */
+    private boolean awaitNotEmpty(long waitingTimeNs) throws InterruptedException {
+        lock.lock();
+        try {
+            isConsumerWaiting = true;
+            if (head.get() >= tail.get() && !isSpilling && !isWakeUpRequested) {
+                notEmpty.awaitNanos(waitingTimeNs);
+            }
+            if (isWakeUpRequested) {
+                isWakeUpRequested = false;
+                return false;
+            }
+            return true;
+        } finally {
+            isConsumerWaiting = false;
+            lock.unlock();
+        }
+    }
+
+    private void awaitNotFull() throws InterruptedException {
+        lock.lock();
+        try {
+            isProducerWaiting = true;
+            if (isFull() && !isClosed) {
+                notFull.await();
+            }
+        } finally {
+            isProducerWaiting = false;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the waiting consumer (or the next one if nobody is waiting now)
+     * return from poll() without waiting for records
+     */
+    public void wakeUpConsumer() {
+        lock.lock();
+        try {
+            isWakeUpRequested = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signal(Condition condition) {
+        lock.lock();
+        try {
+            condition.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isFull() {
+        return tail.get() - head.get() >= slots.length;
+    }
+
+    /**
+     * @return true if there is no records neither in memory nor in the spill file
+     */
+    public boolean isEmpty() {
+        return tail.get() <= head.get() && !isSpilling;
+    }
+
+    /**
+     * @return number of records waiting in memory
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @return true if new records are written to the spill file
+     */
+    public boolean isSpilling() {
+        return isSpilling;
+    }
+
+    /**
+     * @return number of records waiting in the spill file
+     */
+    public long getSpillSize() {
+        synchronized (spillLock) {
+            return spillFile == null ? 0 : spillFile.size();
+        }
+    }
+
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return max number of records that were simultaneously stored in memory
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return total number of lost records
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return total number of records that were written to the spill file
+     */
+    public long getSpilledCount() {
+        return spilledCount;
+    }
+
+    /**
+     * Releases the waiting producer and deletes the spill file.
+     * Records remaining in the spill file are lost and new records are not accepted
+     */
+    public void close() {
+        isClosed = true;
+        signal(notFull);
+        synchronized (spillLock) {
+            if (spillFile != null) {
+                spillFile.close();
+                spillFile = null;
+            }
+            isSpilling = false;
+        }
+    }
+}
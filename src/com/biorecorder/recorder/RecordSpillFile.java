@@ -0,0 +1,136 @@
+package com.biorecorder.recorder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only temporary file (FIFO) for the data records that do not fit
+ * in memory. Records are read back in the same order they were written.
+ * <p>
+ * The file is memory-mapped by segments (SEGMENT_SIZE bytes) so records
+ * are written and read by simple memory copying without system calls
+ * and the OS writes dirty pages to disk in background.
+ * Only the current write and read segments are mapped, so
+ * the used memory is bounded whatever the file size is.
+ * When all written records are read the file is reused from the beginning.
+ * <p>
+ * Every record is stored as: record number (4 bytes) + samples (4 bytes each).
+ * All records must have the same size.
+ * <p>
+ * This class is not thread safe. Writes and reads must be synchronized by the caller.
+ */
+public class RecordSpillFile {
+    private static final Log log = LogFactory.getLog(RecordSpillFile.class);
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024; // 16MB
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final int recordSize;
+    // segment contains the whole number of records so records never cross segments
+    private final int segmentSize;
+    private IntBuffer writeSegment;
+    private IntBuffer readSegment;
+    private long writePosition;
+    private long readPosition;
+    private long recordsCount;
+    private long fileSize;
+
+    /**
+     * Creates the temporary file in the default temporary-file directory.
+     * The file is deleted on close
+     *
+     * @param recordSize number of samples in every data record
+     * @throws IOException if the file can not be created
+     */
+    public RecordSpillFile(int recordSize) throws IOException {
+        this.recordSize = recordSize;
+        int recordBytes = (recordSize + 1) * 4;
+        segmentSize = Math.max(1, SEGMENT_SIZE / recordBytes) * recordBytes;
+        file = File.createTempFile("records_", ".spill");
+        file.deleteOnExit();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+    }
+
+    public void write(int[] record, int recordNumber) throws IOException {
+        if (writeSegment == null || !writeSegment.hasRemaining()) {
+            writeSegment = map(writePosition);
+        }
+        writeSegment.put(recordNumber);
+        writeSegment.put(record, 0, recordSize);
+        writePosition += (recordSize + 1) * 4;
+        recordsCount++;
+    }
+
+    /**
+     * Reads the oldest record to the given array
+     *
+     * @return record number
+     * @throws IllegalStateException if the file is empty
+     */
+    public int read(int[] record) throws IOException, IllegalStateException {
+        if (recordsCount == 0) {
+            throw new IllegalStateException("Spill file is empty");
+        }
+        if (readSegment == null || !readSegment.hasRemaining()) {
+            readSegment = map(readPosition);
+        }
+        int recordNumber = readSegment.get();
+        readSegment.get(record, 0, recordSize);
+        readPosition += (recordSize + 1) * 4;
+        recordsCount--;
+        if (recordsCount == 0) {
+            // start from the beginning to not let the file grow
+            readPosition = 0;
+            writePosition = 0;
+            readSegment = null;
+            writeSegment = null;
+        }
+        return recordNumber;
+    }
+
+    private IntBuffer map(long position) throws IOException {
+        if (position + segmentSize > fileSize) {
+            fileSize = position + segmentSize;
+            randomAccessFile.setLength(fileSize);
+        }
+        return channel.map(FileChannel.MapMode.READ_WRITE, position, segmentSize)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    public boolean isEmpty() {
+        return recordsCount == 0;
+    }
+
+    /**
+     * @return number of records waiting in the file
+     */
+    public long size() {
+        return recordsCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void close() {
+        writeSegment = null;
+        readSegment = null;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            log.error("Failed to close spill file " + file, ex);
+        }
+        if (!file.delete()) {
+            log.error("Failed to delete spill file " + file);
+        }
+    }
+}
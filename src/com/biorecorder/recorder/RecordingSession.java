@@ -0,0 +1,366 @@
+package com.biorecorder.recorder;
+
+import com.biorecorder.multisignal.recordformat.DataRecordStream;
+import com.sun.istack.internal.Nullable;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives several devices (BioRecorders on different comports) in one JVM.
+ * <p>
+ * All recorders of the session share the same bounded thread pools:
+ * <ul>
+ * <li>processing pool - frame decoding and data records handling (filtering)</li>
+ * <li>io pool - writing of records to the sinks (files)</li>
+ * <li>command pool - writing of comport commands (separated from the io pool,
+ * so stalled sinks never delay PING and STOP commands)</li>
+ * <li>control pool - Ads pinging and monitoring</li>
+ * <li>starting pool - Ads starting (waits for the device answers, so it is separated
+ * from the periodic tasks that must not be delayed)</li>
+ * </ul>
+ * Every device occupies a pool thread only while it has some work to do,
+ * so the number of threads stays constant when the number of devices grows.
+ * <p>
+ * If the merge stream is set, records of all devices are also aligned in time
+ * and merged into that stream (see {@link RecordMerger}). Merger needs continuous records
+ * so the recorders must not drop the received records (not {@link RecordRingBuffer.OverflowPolicy#DROP_OLDEST}).
+ * Merge stream is wrapped by {@link AsyncRecordStream} (SPILL policy, own thread),
+ * so its stalls never hold the io pool threads.
+ * <p>
+ * Sinks of the session recorders should not use
+ * {@link RecordRingBuffer.OverflowPolicy#BLOCK} (it would block the shared pool threads).
+ */
+public class RecordingSession {
+    private static final Log log = LogFactory.getLog(RecordingSession.class);
+    public static final int DEFAULT_PROCESSING_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+    public static final int DEFAULT_IO_THREADS = 2;
+    public static final int DEFAULT_COMMAND_THREADS = 1;
+    public static final int DEFAULT_CONTROL_THREADS = 2;
+    // every starting device waits for the answers in the starting thread
+    public static final int DEFAULT_STARTING_THREADS = 4;
+
+    private final ExecutorService processingExecutor;
+    private final ExecutorService ioExecutor;
+    private final ExecutorService commandExecutor;
+    private final ScheduledExecutorService controlExecutor;
+    private final ExecutorService startingExecutor;
+    private final List<BioRecorder> recorders = new CopyOnWriteArrayList<BioRecorder>();
+    private volatile long startTime;
+    private volatile DataRecordStream mergeStream;
+    // created for every recording if the merge stream is set
+    private volatile RecordMerger merger;
+    // merger inputs of the current recording. Replaced as a whole on start and stop
+    private volatile List<AsyncRecordStream> mergeInputs = Collections.emptyList();
+    // merge stream wrapper of the current recording (file stalls do not block the io pool) or null
+    private volatile AsyncRecordStream mergeSink;
+
+    public RecordingSession() {
+        this(DEFAULT_PROCESSING_THREADS, DEFAULT_IO_THREADS, DEFAULT_COMMAND_THREADS, DEFAULT_CONTROL_THREADS, DEFAULT_STARTING_THREADS);
+    }
+
+    public RecordingSession(int processingThreads, int ioThreads, int controlThreads) {
+        this(processingThreads, ioThreads, DEFAULT_COMMAND_THREADS, controlThreads, DEFAULT_STARTING_THREADS);
+    }
+
+    /**
+     * @param processingThreads number of threads to decode and filter the data of all devices
+     * @param ioThreads         number of threads to write records of all devices to the sinks
+     * @param commandThreads    number of threads to write commands to the comports of all devices
+     * @param controlThreads    number of threads to ping and monitor all devices
+     * @param startingThreads   number of threads to start all devices.
+     *                          If there are more devices than threads their starts are queued
+     */
+    public RecordingSession(int processingThreads, int ioThreads, int commandThreads, int controlThreads, int startingThreads) {
+        processingExecutor = Executors.newFixedThreadPool(processingThreads, new NamedThreadFactory("«Session» processing thread"));
+        ioExecutor = Executors.newFixedThreadPool(ioThreads, new NamedThreadFactory("«Session» io thread"));
+        commandExecutor = Executors.newFixedThreadPool(commandThreads, new NamedThreadFactory("«Session» command thread"));
+        controlExecutor = Executors.newScheduledThreadPool(controlThreads, new NamedThreadFactory("«Session» control thread"));
+        startingExecutor = Executors.newFixedThreadPool(startingThreads, new NamedThreadFactory("«Session» starting thread"));
+    }
+
+    /**
+     * Opens the comport and creates the BioRecorder working on the session thread pools
+     *
+     * @throws ConnectionRuntimeException if the comport can not be opened
+     */
+    public BioRecorder addRecorder(String comportName) throws ConnectionRuntimeException {
+        BioRecorder recorder = new BioRecorder(comportName, processingExecutor, commandExecutor, ioExecutor,
+                controlExecutor, startingExecutor);
+        recorders.add(recorder);
+        return recorder;
+    }
+
+    /**
+     * Disconnects the recorder and removes it from the session
+     */
+    public boolean removeRecorder(BioRecorder recorder) {
+        recorders.remove(recorder);
+        return recorder.disconnect();
+    }
+
+    /**
+     * Sets the stream to which the time aligned records of all devices are written
+     * (usually edf/bdf file stream). Its header is set on start. It is closed on stop.
+     * It will be applied to the next recording. Null (default) disables merging
+     */
+    public void setMergeStream(@Nullable DataRecordStream mergeStream) {
+        this.mergeStream = mergeStream;
+    }
+
+    /**
+     * @return merger of the current recording (to get its alignment statistic)
+     * or null if merging is disabled
+     */
+    public RecordMerger getMerger() {
+        return merger;
+    }
+
+    public List<BioRecorder> getRecorders() {
+        return new ArrayList<BioRecorder>(recorders);
+    }
+
+    /**
+     * Starts recording of all devices with the same config
+     *
+     * @return future completed as soon as all devices are started
+     * or completed exceptionally if some device failed to start
+     * @throws IllegalStateException    if some recorder is already recording or
+     *                                  if merging is enabled and some recorder does not keep its records continuous
+     * @throws IllegalArgumentException if all channels and accelerometer are disabled
+     */
+    public CompletableFuture<Void> startRecording(RecorderConfig recorderConfig) throws IllegalStateException, IllegalArgumentException {
+        List<RecorderConfig> configs = new ArrayList<RecorderConfig>(recorders.size());
+        for (int i = 0; i < recorders.size(); i++) {
+            configs.add(recorderConfig);
+        }
+        return startRecording(configs);
+    }
+
+    /**
+     * Starts recording of all devices
+     *
+     * @param recorderConfigs configs of the devices in the order they were added to the session
+     * @return future completed as soon as all devices are started
+     * or completed exceptionally if some device failed to start
+     * @throws IllegalStateException    if some recorder is already recording or
+     *                                  if merging is enabled and some recorder does not keep its records continuous
+     *                                  (drops records)
+     * @throws IllegalArgumentException if the number of configs does not coincide with the number of recorders
+     */
+    public CompletableFuture<Void> startRecording(List<RecorderConfig> recorderConfigs) throws IllegalStateException, IllegalArgumentException {
+        List<BioRecorder> recorders1 = getRecorders();
+        if (recorderConfigs.size() != recorders1.size()) {
+            String errMsg = "Number of configs: " + recorderConfigs.size() + " != number of recorders: " + recorders1.size();
+            throw new IllegalArgumentException(errMsg);
+        }
+        DataRecordStream mergeStream1 = mergeStream;
+        if (mergeStream1 != null) {
+            for (BioRecorder recorder : recorders1) {
+                checkMergeable(recorder);
+            }
+        }
+        startTime = System.currentTimeMillis();
+        merger = null;
+        List<AsyncRecordStream> inputs = new ArrayList<AsyncRecordStream>(recorders1.size());
+        AsyncRecordStream sink = null;
+        if (mergeStream1 != null) {
+            // merged records are written in the own thread, not in the io pool thread of the input
+            sink = new AsyncRecordStream(mergeStream1, AsyncRecordStream.DEFAULT_CAPACITY,
+                    RecordRingBuffer.OverflowPolicy.SPILL, "Merge stream");
+            RecordMerger merger1 = new RecordMerger(sink);
+            for (BioRecorder recorder : recorders1) {
+                // no records may be lost, otherwise the inputs can not be aligned
+                inputs.add(recorder.addDataStream(merger1.addInput(recorder),
+                        AsyncRecordStream.DEFAULT_CAPACITY, RecordRingBuffer.OverflowPolicy.SPILL));
+            }
+            for (int i = 0; i < recorders1.size(); i++) {
+                inputs.get(i).setHeader(recorders1.get(i).getDataHeader(recorderConfigs.get(i)));
+            }
+            merger = merger1;
+        }
+        CompletableFuture<?>[] startFutures = new CompletableFuture<?>[recorders1.size()];
+        int startedCount = 0;
+        try {
+            for (int i = 0; i < recorders1.size(); i++) {
+                startFutures[i] = recorders1.get(i).startRecording(recorderConfigs.get(i));
+                startedCount++;
+            }
+        } catch (RuntimeException ex) {
+            // the already started recorders are stopped and the merger is detached
+            for (int i = 0; i < startedCount; i++) {
+                stopRecorder(recorders1.get(i));
+            }
+            detachMergeInputs(recorders1, inputs, sink);
+            merger = null;
+            throw ex;
+        }
+        synchronized (this) {
+            mergeInputs = inputs;
+            mergeSink = sink;
+        }
+        return CompletableFuture.allOf(startFutures);
+    }
+
+    /**
+     * @throws IllegalStateException if the recorder does not keep its records continuous
+     */
+    private static void checkMergeable(BioRecorder recorder) throws IllegalStateException {
+        if (recorder.getRecordBufferOverflowPolicy() == RecordRingBuffer.OverflowPolicy.DROP_OLDEST) {
+            String errMsg = "Records can not be merged. Recorder: " + recorder.getComportName()
+                    + " drops records. Record buffer overflow policy: " + recorder.getRecordBufferOverflowPolicy();
+            throw new IllegalStateException(errMsg);
+        }
+    }
+
+    private static void stopRecorder(BioRecorder recorder) {
+        try {
+            recorder.stop();
+        } catch (IllegalStateException ex) {
+            log.error("Failed to stop recorder: " + recorder.getComportName(), ex);
+        }
+    }
+
+    /**
+     * Closes the merger inputs and then the merge stream wrapper (waits till the merged records are written)
+     */
+    private static void detachMergeInputs(List<BioRecorder> recorders, List<AsyncRecordStream> inputs,
+                                          @Nullable AsyncRecordStream sink) {
+        for (AsyncRecordStream input : inputs) {
+            for (BioRecorder recorder : recorders) {
+                recorder.removeDataStream(input);
+            }
+            input.close();
+        }
+        if (sink != null) {
+            sink.close();
+        }
+    }
+
+    /**
+     * Stops recording of all devices. See {@link BioRecorder#stop()}
+     *
+     * @return recording infos of the devices (null for devices that did not receive any data)
+     */
+    public List<RecordingInfo> stop() {
+        List<BioRecorder> recorders1 = getRecorders();
+        List<RecordingInfo> recordingInfos = new ArrayList<RecordingInfo>(recorders1.size());
+        for (BioRecorder recorder : recorders1) {
+            RecordingInfo recordingInfo = null;
+            try {
+                recordingInfo = recorder.stop();
+            } catch (IllegalStateException ex) {
+                log.error("Failed to stop recorder: " + recorder.getComportName(), ex);
+            }
+            recordingInfos.add(recordingInfo);
+        }
+        // all records are delivered to the sinks
+        List<AsyncRecordStream> inputs;
+        AsyncRecordStream sink;
+        synchronized (this) {
+            inputs = mergeInputs;
+            sink = mergeSink;
+            mergeInputs = Collections.emptyList();
+            mergeSink = null;
+        }
+        detachMergeInputs(recorders1, inputs, sink);
+        log.info(getStatistic());
+        return recordingInfos;
+    }
+
+    /**
+     * Disconnects all devices and shuts down the session threads
+     */
+    public void close() {
+        for (BioRecorder recorder : recorders) {
+            recorder.disconnect();
+        }
+        recorders.clear();
+        controlExecutor.shutdownNow();
+        startingExecutor.shutdownNow();
+        processingExecutor.shutdown();
+        ioExecutor.shutdown();
+        commandExecutor.shutdown();
+    }
+
+    /**
+     * @return data records handled per second by the device since the session start
+     */
+    public double getRecordsPerSecond(BioRecorder recorder) {
+        return perSecond(recorder.getHandledRecordsCount());
+    }
+
+    /**
+     * @return bytes received per second from the device since the session start
+     */
+    public double getBytesPerSecond(BioRecorder recorder) {
+        return perSecond(recorder.getReceivedBytesCount());
+    }
+
+    /**
+     * @return data records handled per second by all devices since the session start
+     */
+    public double getTotalRecordsPerSecond() {
+        long records = 0;
+        for (BioRecorder recorder : recorders) {
+            records += recorder.getHandledRecordsCount();
+        }
+        return perSecond(records);
+    }
+
+    /**
+     * @return bytes received per second from all devices since the session start
+     */
+    public double getTotalBytesPerSecond() {
+        long bytes = 0;
+        for (BioRecorder recorder : recorders) {
+            bytes += recorder.getReceivedBytesCount();
+        }
+        return perSecond(bytes);
+    }
+
+    private double perSecond(long count) {
+        long start = startTime;
+        if (start == 0) {
+            return 0;
+        }
+        long time = System.currentTimeMillis() - start;
+        return time <= 0 ? 0 : count * 1000.0 / time;
+    }
+
+    /**
+     * @return per device and total throughput
+     */
+    public String getStatistic() {
+        StringBuilder sb = new StringBuilder("Session throughput:");
+        for (BioRecorder recorder : recorders) {
+            sb.append("\n  ").append(recorder.getComportName())
+                    .append(": ").append(String.format("%.1f", getRecordsPerSecond(recorder))).append(" records/s, ")
+                    .append(String.format("%.0f", getBytesPerSecond(recorder))).append(" bytes/s, ")
+                    .append(recorder.getLostRecordsCount()).append(" lost records");
+        }
+        sb.append("\n  total: ").append(String.format("%.1f", getTotalRecordsPerSecond())).append(" records/s, ")
+                .append(String.format("%.0f", getTotalBytesPerSecond())).append(" bytes/s");
+        return sb.toString();
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}